@@ -0,0 +1,130 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Measures the cost of a history page as the reader's block list grows.
+ * The busiest chat is paged by one of its members, with the page query the
+ * client runs (QueryCatalog.READER_PAGE), in two series:
+ *
+ *   non-members  the block list holds 0 to 10000 users outside the chat,
+ *                so the visible history stays the same and only the
+ *                lookup of the list grows
+ *   senders      the reader blocks none, one, half and all but one of the
+ *                other senders of the chat, the busiest first, so pages
+ *                skip more and more blocked rows
+ *
+ * Pages are read round robin over the visible history.  Everything runs in
+ * one transaction that is rolled back at the end, so the data is left as
+ * it was.
+ *
+ *   java BlockFilterBenchmark <dbname> <port> <user> [-pages N]
+ *
+ */
+public class BlockFilterBenchmark {
+
+   private static final int[] BLOCK_LIST_SIZES = { 0, 10, 100, 1000, 10000 };
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: java " + BlockFilterBenchmark.class.getName () +
+            " <dbname> <port> <user> [-pages N]");
+         return;
+      }//end if
+      int pages = 200;
+      if (args.length > 4 && args[3].equals("-pages"))
+         pages = Integer.parseInt(args[4]);
+
+      Class.forName ("org.postgresql.Driver");
+      Messenger esql = new Messenger(args[0], args[1], args[2], "");
+      try {
+         esql.getConnection().setAutoCommit(false);
+         run(esql, pages);
+      }finally {
+         esql.getConnection().rollback();
+         esql.cleanup();
+      }
+   }//end main
+
+   private static void run (Messenger esql, int pages) throws SQLException {
+      List<List<String>> busiest = esql.executeQueryAndReturnResult(
+         "SELECT s.chat_id, s.message_count, l.member FROM chat_summary s, chat_list l WHERE l.chat_id = s.chat_id ORDER BY s.message_count DESC LIMIT 1");
+      if (busiest.isEmpty())
+         throw new SQLException("Load messages before running the benchmark");
+      int chatId = Integer.parseInt(busiest.get(0).get(0));
+      int messages = Integer.parseInt(busiest.get(0).get(1));
+      String reader = busiest.get(0).get(2).trim();
+      System.out.println(String.format("chat %d, %d messages, reader %s", chatId, messages, reader));
+
+      System.out.println("non-members blocked");
+      System.out.println(String.format("%12s %12s %12s %12s", "block list", "visible", "pages", "us/page"));
+      int blocked = 0;
+      for (int size : BLOCK_LIST_SIZES) {
+         esql.executeUpdate(String.format(
+            "INSERT INTO user_list_contains (list_id, list_member) " +
+            "SELECT (SELECT block_list FROM usr WHERE login = '%s'), u.login FROM usr u " +
+            "WHERE u.login NOT IN (SELECT member FROM chat_list WHERE chat_id = %d) " +
+            "AND u.login NOT IN (SELECT m.sender_login FROM message m WHERE m.chat_id = %d) " +
+            "AND u.login NOT IN (SELECT l.list_member FROM usr r, user_list_contains l WHERE r.login = '%s' AND l.list_id IN (r.block_list, r.contact_list)) " +
+            "ORDER BY u.login LIMIT %d", reader, chatId, chatId, reader, size - blocked));
+         blocked = size;
+         measure(esql, reader, chatId, pages, size);
+      }//end for
+
+      // the other senders of the chat, the busiest first
+      esql.executeUpdate(String.format(
+         "DELETE FROM user_list_contains WHERE list_id = (SELECT block_list FROM usr WHERE login = '%s')", reader));
+      List<String> senders = new ArrayList<String>();
+      for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+            "SELECT sender_login FROM message WHERE chat_id = %d AND sender_login <> '%s' GROUP BY sender_login ORDER BY count(*) DESC, sender_login", chatId, reader)))
+         senders.add(row.get(0).trim());
+      if (senders.size() < 2)
+         throw new SQLException("Chat " + chatId + " has fewer than two other senders");
+      System.out.println(String.format("senders blocked, of %d", senders.size()));
+      System.out.println(String.format("%12s %12s %12s %12s", "senders", "visible", "pages", "us/page"));
+      blocked = 0;
+      for (int count : new TreeSet<Integer>(Arrays.asList(0, 1, senders.size() / 2, senders.size() - 1))) {
+         for (String sender : senders.subList(blocked, count))
+            esql.executeUpdate(String.format(
+               "INSERT INTO user_list_contains (list_id, list_member) SELECT block_list, '%s' FROM usr WHERE login = '%s'", sender.replace("'", "''"), reader));
+         blocked = count;
+         measure(esql, reader, chatId, pages, count);
+      }//end for
+   }//end run
+
+   /**
+    * Pages through the visible history of the chat round robin, after a
+    * warm-up, and prints a row of the table.
+    */
+   private static void measure (Messenger esql, String reader, int chatId, int pages, int blocked) throws SQLException {
+      esql.executeUpdate("ANALYZE user_list_contains");
+      int visible = Integer.parseInt(esql.executeQueryAndReturnResult(String.format(
+         "SELECT count(*) FROM message m WHERE m.chat_id = %d AND %s", chatId, Messenger.BlockFilter(reader))).get(0).get(0));
+      int pageSize = MessengerStore.PAGE_SIZE;
+      int pageCount = Math.max(1, (visible + pageSize - 1) / pageSize);
+      for (int i = 0; i < 20; ++i)
+         esql.executePreparedAndReturnResult(QueryCatalog.READER_PAGE, chatId, reader, pageSize, (i % pageCount) * pageSize);
+      long start = System.nanoTime();
+      for (int i = 0; i < pages; ++i)
+         esql.executePreparedAndReturnResult(QueryCatalog.READER_PAGE, chatId, reader, pageSize, (i % pageCount) * pageSize);
+      long perPage = (System.nanoTime() - start) / 1000 / pages;
+      System.out.println(String.format("%12d %12d %12d %12d", blocked, visible, pages, perPage));
+   }//end measure
+
+}//end BlockFilterBenchmark
@@ -0,0 +1,360 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Deterministic generator that scales the data/ dataset up for load testing.
+ * The original rows are copied as they are and synthetic users, chats and
+ * messages are appended after them, so the output loads with load_data.sql
+ * in place of data/.
+ *
+ *   java DataGenerator <data dir> <out dir> [-users F] [-chats F]
+ *                      [-messages M] [-seed S]
+ *
+ * -users and -chats multiply the number of users and chats, -messages is
+ * the average number of messages per chat.  Chat activity is Zipfian and
+ * contact list sizes follow a power law, the same seed always produces the
+ * same files.  load_data.sql moves the id sequences past the loaded rows.
+ *
+ */
+public class DataGenerator {
+
+   // Zipf exponent of chat activity and of contact popularity
+   private static final double CHAT_SKEW = 1.1;
+   private static final double CONTACT_SKEW = 0.9;
+
+   // Pareto shape of contact list sizes and the largest list generated
+   private static final double CONTACT_SHAPE = 1.5;
+   private static final int MAX_CONTACTS = 500;
+
+   // messages are spread over this window before BASE_TIME
+   private static final long BASE_TIME = 1456000000000L;
+   private static final long WINDOW_MS = 365L * 24 * 3600 * 1000;
+
+   private static final String[] WORDS = {
+      "quia", "praesentium", "maxime", "iste", "in", "saepe", "libero", "ut",
+      "quod", "dolor", "sit", "amet", "eos", "et", "accusamus", "iusto",
+      "odio", "dignissimos", "ducimus", "qui", "blanditiis", "voluptatum",
+      "deleniti", "atque", "corrupti", "quos", "dolores", "quas", "molestias",
+      "excepturi", "sint", "occaecati", "cupiditate", "non", "provident"
+   };
+
+   private final Random _random;
+
+   // all logins, original ones first, and their list ids
+   private final List<String> _logins = new ArrayList<String>();
+   private final Map<String, Integer> _loginIndex = new HashMap<String, Integer>();
+   private int[] _contactList;
+
+   // members of every chat as indexes into _logins
+   private final List<int[]> _chatMembers = new ArrayList<int[]>();
+
+   private int _nextListId = 0;
+
+   public DataGenerator (long seed) {
+      this._random = new Random(seed);
+   }//end DataGenerator
+
+   public static void main (String[] args) throws IOException {
+      if (args.length < 2) {
+         System.err.println (
+            "Usage: java " + DataGenerator.class.getName () +
+            " <data dir> <out dir> [-users F] [-chats F] [-messages M] [-seed S]");
+         return;
+      }//end if
+      double userFactor = 10, chatFactor = 10, messagesPerChat = 20;
+      long seed = 42;
+      for (int i = 2; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-users")) userFactor = Double.parseDouble(args[i + 1]);
+         else if (args[i].equals("-chats")) chatFactor = Double.parseDouble(args[i + 1]);
+         else if (args[i].equals("-messages")) messagesPerChat = Double.parseDouble(args[i + 1]);
+         else if (args[i].equals("-seed")) seed = Long.parseLong(args[i + 1]);
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }//end for
+
+      File in = new File(args[0]);
+      File out = new File(args[1]);
+      out.mkdirs();
+      long start = System.currentTimeMillis();
+      DataGenerator gen = new DataGenerator(seed);
+      gen.generateUsers(in, out, userFactor);
+      gen.generateContacts(out);
+      gen.generateChats(in, out, chatFactor);
+      long messages = gen.generateMessages(out, messagesPerChat);
+      System.out.println(String.format("Generated %d users, %d chats, %d messages in %d ms",
+         gen._logins.size(), gen._chatMembers.size(), messages, System.currentTimeMillis() - start));
+   }//end main
+
+   /**
+    * Copies usr.csv and usr_list.csv and appends synthetic users, each with
+    * an empty block list and a contact list.
+    */
+   private void generateUsers (File in, File out, double factor) throws IOException {
+      BufferedWriter lists = writer(out, "usr_list.csv");
+      for (String[] row : read(in, "usr_list.csv")) {
+         lists.write(join(row));
+         _nextListId = Math.max(_nextListId, Integer.parseInt(row[0]) + 1);
+      }
+      List<Integer> contactLists = new ArrayList<Integer>();
+      BufferedWriter users = writer(out, "usr.csv");
+      for (String[] row : read(in, "usr.csv")) {
+         users.write(join(row));
+         addLogin(row[0]);
+         contactLists.add(Integer.parseInt(row[5]));
+      }
+      int original = _logins.size();
+      int total = (int) Math.round(original * factor);
+      for (int n = original; n < total; ++n) {
+         String login = "user_" + n;
+         int block = _nextListId++;
+         int contact = _nextListId++;
+         lists.write(block + ";block\n");
+         lists.write(contact + ";contact\n");
+         users.write(join(new String[] {
+            login, phone(n), password(), words(1 + _random.nextInt(4)),
+            Integer.toString(block), Integer.toString(contact) }));
+         addLogin(login);
+         contactLists.add(contact);
+      }
+      lists.close();
+      users.close();
+      _contactList = new int[contactLists.size()];
+      for (int i = 0; i < _contactList.length; ++i)
+         _contactList[i] = contactLists.get(i);
+   }//end generateUsers
+
+   /**
+    * Writes usr_list_contains.csv.  List sizes are Pareto distributed and
+    * members are drawn from a Zipfian popularity ranking, so a few users are
+    * in very many contact lists.
+    */
+   private void generateContacts (File out) throws IOException {
+      int users = _logins.size();
+      ZipfSampler popular = new ZipfSampler(users, CONTACT_SKEW, shuffled(users));
+      BufferedWriter writer = writer(out, "usr_list_contains.csv");
+      for (int u = 0; u < users; ++u) {
+         int size = (int) Math.min(MAX_CONTACTS, Math.floor(3 * Math.pow(1 - _random.nextDouble(), -1 / CONTACT_SHAPE)) - 2);
+         int[] picked = new int[size];
+         int count = 0;
+         for (int i = 0; i < size; ++i) {
+            int member = popular.next(_random);
+            if (member == u || contains(picked, count, member))
+               continue;
+            picked[count++] = member;
+            writer.write(_contactList[u] + ";" + _logins.get(member) + "\n");
+         }
+      }
+      writer.close();
+   }//end generateContacts
+
+   /**
+    * Copies chat.csv and chat_list.csv and appends synthetic chats with 2 to
+    * 10 members like the original ones.
+    */
+   private void generateChats (File in, File out, double factor) throws IOException {
+      BufferedWriter chats = writer(out, "chat.csv");
+      int nextChat = 0;
+      for (String[] row : read(in, "chat.csv")) {
+         chats.write(join(row));
+         nextChat = Math.max(nextChat, Integer.parseInt(row[0]) + 1);
+      }
+      int[][] members = new int[nextChat][];
+      List<List<Integer>> original = new ArrayList<List<Integer>>();
+      for (int i = 0; i < nextChat; ++i)
+         original.add(new ArrayList<Integer>());
+      BufferedWriter chatList = writer(out, "chat_list.csv");
+      for (String[] row : read(in, "chat_list.csv")) {
+         chatList.write(join(row));
+         Integer member = _loginIndex.get(row[1]);
+         if (member != null)
+            original.get(Integer.parseInt(row[0])).add(member);
+      }
+      for (int i = 0; i < nextChat; ++i) {
+         members[i] = new int[original.get(i).size()];
+         for (int j = 0; j < members[i].length; ++j)
+            members[i][j] = original.get(i).get(j);
+         _chatMembers.add(members[i]);
+      }
+      original = null;
+
+      int users = _logins.size();
+      int total = (int) Math.round(nextChat * factor);
+      for (int c = nextChat; c < total; ++c) {
+         int size = 2 + _random.nextInt(9);
+         int[] chat = new int[size];
+         int count = 0;
+         while (count < size) {
+            int member = _random.nextInt(users);
+            if (!contains(chat, count, member))
+               chat[count++] = member;
+         }
+         chats.write(c + ";" + (size > 2 ? "group" : "private") + ";" + _logins.get(chat[0]) + "\n");
+         for (int j = 0; j < size; ++j)
+            chatList.write(c + ";" + _logins.get(chat[j]) + "\n");
+         _chatMembers.add(chat);
+      }
+      chats.close();
+      chatList.close();
+   }//end generateChats
+
+   /**
+    * Writes message.csv and an empty message_revision.csv.  Chats are ranked in a random order and messages
+    * are assigned to them by a Zipf distribution over that ranking, the
+    * sender is always one of the chat members.
+    */
+   private long generateMessages (File out, double perChat) throws IOException {
+      int chats = _chatMembers.size();
+      long total = Math.round(chats * perChat);
+      ZipfSampler active = new ZipfSampler(chats, CHAT_SKEW, shuffled(chats));
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      BufferedWriter writer = writer(out, "message.csv");
+      // chats without members get no message, the draw is skipped
+      long written = 0;
+      for (long n = 0; n < total; ++n) {
+         int chat = active.next(_random);
+         int[] members = _chatMembers.get(chat);
+         if (members.length == 0)
+            continue;
+         String sender = _logins.get(members[_random.nextInt(members.length)]);
+         long time = BASE_TIME - (long) (_random.nextDouble() * WINDOW_MS);
+         String text = words(1 + _random.nextInt(30));
+         if (text.length() > 300)
+            text = text.substring(0, 300);
+         writer.write(written++ + ";" + text + ";" + format.format(new Date(time)) + ";" + sender + ";" + chat + "\n");
+      }
+      writer.close();
+      // no message has been edited yet, load_data.sql still expects the file
+      writer(out, "message_revision.csv").close();
+      return written;
+   }//end generateMessages
+
+   /**
+    * Samples ranks 0..n-1 with probability proportional to 1/(rank+1)^s and
+    * maps them through a permutation so the hot items are scattered.
+    */
+   static class ZipfSampler {
+      private final double[] _cdf;
+      private final int[] _items;
+
+      ZipfSampler (int n, double s, int[] items) {
+         _cdf = new double[n];
+         _items = items;
+         double sum = 0;
+         for (int i = 0; i < n; ++i) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            _cdf[i] = sum;
+         }
+         for (int i = 0; i < n; ++i)
+            _cdf[i] /= sum;
+      }
+
+      int next (Random random) {
+         int rank = Arrays.binarySearch(_cdf, random.nextDouble());
+         if (rank < 0)
+            rank = -rank - 1;
+         return _items[Math.min(rank, _items.length - 1)];
+      }
+   }//end ZipfSampler
+
+   private void addLogin (String login) {
+      _loginIndex.put(login, _logins.size());
+      _logins.add(login);
+   }//end addLogin
+
+   private int[] shuffled (int n) {
+      int[] items = new int[n];
+      for (int i = 0; i < n; ++i)
+         items[i] = i;
+      for (int i = n - 1; i > 0; --i) {
+         int j = _random.nextInt(i + 1);
+         int tmp = items[i];
+         items[i] = items[j];
+         items[j] = tmp;
+      }
+      return items;
+   }//end shuffled
+
+   private String phone (int n) {
+      // +9 never occurs in data/usr.csv, which keeps the numbers unique
+      return String.format("+9(%03d)%03d-%04d", (n / 10000000) % 1000, (n / 10000) % 1000, n % 10000);
+   }//end phone
+
+   private String password () {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 36; ++i)
+         sb.append(Character.forDigit(_random.nextInt(16), 16));
+      return sb.toString();
+   }//end password
+
+   private String words (int count) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < count; ++i) {
+         if (i > 0)
+            sb.append(' ');
+         sb.append(WORDS[_random.nextInt(WORDS.length)]);
+      }
+      return sb.toString();
+   }//end words
+
+   private static boolean contains (int[] values, int count, int value) {
+      for (int i = 0; i < count; ++i)
+         if (values[i] == value)
+            return true;
+      return false;
+   }//end contains
+
+   private static String join (String[] row) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < row.length; ++i) {
+         if (i > 0)
+            sb.append(';');
+         sb.append(row[i]);
+      }
+      return sb.append('\n').toString();
+   }//end join
+
+   private static List<String[]> read (File dir, String name) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(new File(dir, name)));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null)
+            if (line.length() > 0)
+               rows.add(line.split(";", -1));
+      }finally {
+         reader.close();
+      }
+      return rows;
+   }//end read
+
+   private static BufferedWriter writer (File dir, String name) throws IOException {
+      return new BufferedWriter(new FileWriter(new File(dir, name)), 1 << 16);
+   }//end writer
+
+}//end DataGenerator
@@ -0,0 +1,260 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recovery check of MessageJournal against a database.  It writes rounds of
+ * messages through a journal with small segments, damages the files the
+ * way a crash does, reopens the journal and checks which rows reached
+ * MESSAGE:
+ *
+ *   apply            every message is inserted once, the segments roll
+ *                    and the applied ones are deleted
+ *   resume           records journaled while the applier could not
+ *                    write are applied after a reopen, from the offset in
+ *                    JOURNAL_APPLIED, and nothing applied before comes
+ *                    back
+ *   torn tail        the last record, cut short, is dropped and the
+ *                    records before it are applied
+ *   checksum         a record that fails its CRC ends the journal, the
+ *                    valid records after it do not come back, and a new
+ *                    append lands where it was
+ *
+ * A round stops the applier by giving it a read-only connection, whose
+ * inserts fail until the journal is reopened with a normal one, so the
+ * records are on disk and not in Postgres, as after a crash.  The failing
+ * applier reports its errors on stderr.
+ *
+ *   java JournalCheck <dbname> <port> <user> <dir>
+ *
+ * The users, chat and messages of the run are committed, under logins
+ * unique to the run.  Exits with status 1 when a check fails.
+ *
+ */
+public class JournalCheck {
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final int SEGMENT_BYTES = 2048;
+
+   private final Messenger _esql;
+   private final File _dir;
+   private final String _node = "journalcheck_" + Long.toString(System.nanoTime(), 36);
+   private final String _sender = "jc_" + Long.toString(System.nanoTime(), 36);
+   private int _chatId;
+   private int _failures = 0;
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: java " + JournalCheck.class.getName () +
+            " <dbname> <port> <user> <dir>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      Messenger esql = new Messenger(args[0], args[1], args[2], "");
+      JournalCheck check = new JournalCheck(esql, new File(args[3]));
+      try {
+         check.run();
+      }finally {
+         esql.executeUpdate(String.format("DELETE FROM journal_applied WHERE node = '%s'", check._node));
+         esql.cleanup();
+      }
+      System.out.println(check._failures == 0 ? "all checks passed" : check._failures + " checks failed");
+      if (check._failures > 0)
+         System.exit(1);
+   }//end main
+
+   private JournalCheck (Messenger esql, File dir) {
+      this._esql = esql;
+      this._dir = dir;
+   }//end JournalCheck
+
+   private void run () throws Exception {
+      if (_dir.exists() && _dir.list().length > 0)
+         throw new IOException(_dir + " is not empty");
+      String phone = Long.toString(System.nanoTime() % 10000000000L);
+      MessengerStore store = _esql.getStore();
+      store.createUser(_sender, "pw", "+5" + phone);
+      store.createUser(_sender + "_b", "pw", "+6" + phone);
+      _chatId = store.createChat(_sender, Arrays.asList(_sender + "_b"));
+
+      // apply: a hundred records over several segments
+      MessageJournal journal = open(false);
+      append(journal, "r1", 100);
+      journal.close(10000);
+      check("apply", texts("r1").equals(names("r1", 0, 100)));
+      check("segment roll", Long.parseLong(value("SELECT applied_offset FROM journal_applied WHERE node = '" + _node + "'")) > 2 * SEGMENT_BYTES);
+      check("applied deleted", segments().length == 1);
+
+      // resume: journaled, not applied, then reopened
+      journal = open(true);
+      append(journal, "r2", 30);
+      journal.close(0);
+      check("stalled applier", texts("r2").isEmpty());
+      journal = open(false);
+      journal.close(10000);
+      check("resume", texts("r2").equals(names("r2", 0, 30)) && texts("r1").size() == 100);
+
+      // torn tail: the last record loses its last bytes
+      journal = open(true);
+      append(journal, "r3", 20);
+      journal.close(0);
+      List<int[]> records = records(last());
+      int[] tail = records.get(records.size() - 1);
+      write(last(), tail[0] + 8 + tail[1] - 4, new byte[4]);
+      journal = open(false);
+      journal.append(_chatId, _sender, "r3-after");
+      journal.close(10000);
+      List<String> expected = names("r3", 0, 19);
+      expected.add("r3-after");
+      check("torn tail", texts("r3").equals(expected));
+
+      // checksum: a record in the middle of the unapplied ones is corrupted
+      journal = open(true);
+      append(journal, "r4", 20);
+      journal.close(0);
+      records = records(last());
+      int first = 0;
+      while (!text(last(), records.get(first)).startsWith("r4"))
+         ++first;
+      int[] bad = records.get(Math.max(first, records.size() - 5));
+      int cut = Integer.parseInt(text(last(), bad).substring(3));
+      write(last(), bad[0] + 8 + bad[1] - 1, new byte[] { (byte) '~' });
+      journal = open(false);
+      journal.append(_chatId, _sender, "r4-after");
+      journal.close(10000);
+      expected = names("r4", 0, cut);
+      expected.add("r4-after");
+      check("checksum", texts("r4").equals(expected));
+   }//end run
+
+   /**
+    * Opens the journal of the run, with an applier that cannot write when
+    * stalled.
+    */
+   private MessageJournal open (boolean stalled) throws SQLException {
+      Connection conn = _esql.openHelperConnection();
+      if (stalled) {
+         Statement stmt = conn.createStatement();
+         try {
+            stmt.execute("SET default_transaction_read_only = on");
+         }finally {
+            stmt.close();
+         }
+      }
+      return new MessageJournal(_dir, _node, conn, SEGMENT_BYTES, 1, 7);
+   }//end open
+
+   private void append (MessageJournal journal, String round, int count) throws SQLException {
+      for (String text : names(round, 0, count))
+         journal.append(_chatId, _sender, text);
+   }//end append
+
+   private static List<String> names (String round, int from, int to) {
+      List<String> names = new ArrayList<String>();
+      for (int i = from; i < to; ++i)
+         names.add(String.format("%s-%03d", round, i));
+      return names;
+   }//end names
+
+   /**
+    * @return the texts of a round in MESSAGE, in insertion order
+    */
+   private List<String> texts (String round) throws SQLException {
+      List<String> texts = new ArrayList<String>();
+      for (List<String> row : _esql.executeQueryAndReturnResult(String.format(
+            "SELECT msg_text FROM message WHERE chat_id = %d AND msg_text LIKE '%s-%%' ORDER BY msg_id", _chatId, round)))
+         texts.add(row.get(0).trim());
+      return texts;
+   }//end texts
+
+   private String value (String query) throws SQLException {
+      return _esql.executeQueryAndReturnResult(query).get(0).get(0);
+   }//end value
+
+   private File[] segments () {
+      File[] files = _dir.listFiles();
+      Arrays.sort(files);
+      return files;
+   }//end segments
+
+   private File last () {
+      File[] files = segments();
+      return files[files.length - 1];
+   }//end last
+
+   /**
+    * Walks the records of a segment.
+    *
+    * @return the position and body size of each record
+    */
+   private static List<int[]> records (File segment) throws IOException {
+      ByteBuffer b = ByteBuffer.wrap(read(segment));
+      List<int[]> records = new ArrayList<int[]>();
+      int pos = 0;
+      while (pos + 8 <= b.capacity() && b.getInt(pos) > 0) {
+         records.add(new int[] { pos, b.getInt(pos) });
+         pos += 8 + b.getInt(pos);
+      }
+      return records;
+   }//end records
+
+   private static String text (File segment, int[] record) throws IOException {
+      ByteBuffer b = ByteBuffer.wrap(read(segment));
+      b.position(record[0] + 8 + 8 + 4);
+      int sender = b.getShort();
+      b.position(b.position() + sender);
+      byte[] t = new byte[b.getInt()];
+      b.get(t);
+      return new String(t, UTF8);
+   }//end text
+
+   private static byte[] read (File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         byte[] data = new byte[(int) raf.length()];
+         raf.readFully(data);
+         return data;
+      }finally {
+         raf.close();
+      }
+   }//end read
+
+   private static void write (File file, long pos, byte[] data) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.seek(pos);
+         raf.write(data);
+      }finally {
+         raf.close();
+      }
+   }//end write
+
+   private void check (String name, boolean ok) {
+      System.out.println(String.format("%-22s %s", name, ok ? "ok" : "FAILED"));
+      if (!ok)
+         ++_failures;
+   }//end check
+
+}//end JournalCheck
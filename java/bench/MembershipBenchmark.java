@@ -0,0 +1,180 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers the members of one chat from many threads at once and checks the
+ * outcome.  Each thread adds and removes its own users, so every call must
+ * report a change, and the final members are known.  Checked at the end:
+ *
+ *   every setChatMember changed the members
+ *   the chat has exactly the expected members
+ *   sql: CHAT_SUMMARY.member_count matches CHAT_LIST and chat_type is
+ *        private for two members and group for more
+ *
+ *   java MembershipBenchmark embedded <dir> [-threads T] [-ops N]
+ *   java MembershipBenchmark sql <dbname> <port> <user> [-threads T] [-ops N]
+ *
+ * Every sql thread has a Messenger of its own.  The sql run commits its
+ * rows, under logins that start with mb_.  Exits with status 1 when a
+ * check fails.
+ *
+ */
+public class MembershipBenchmark {
+
+   // users each thread moves in and out of the chat
+   private static final int USERS_PER_THREAD = 4;
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 2 || (args[0].equals("sql") && args.length < 4)) {
+         System.err.println (
+            "Usage: java " + MembershipBenchmark.class.getName () +
+            " embedded <dir> | sql <dbname> <port> <user> [-threads T] [-ops N]");
+         return;
+      }//end if
+      int threads = 16, ops = 200;
+      for (int i = args[0].equals("sql") ? 4 : 2; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-threads")) threads = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-ops")) ops = Integer.parseInt(args[i + 1]);
+      }
+
+      boolean ok;
+      if (args[0].equals("embedded")) {
+         MessengerStore store = new EmbeddedStore(new File(args[1]), false);
+         try {
+            MessengerStore[] stores = new MessengerStore[threads];
+            Arrays.fill(stores, store);
+            ok = run(store, stores, null, ops);
+         }finally {
+            store.close();
+         }
+      }else {
+         Class.forName ("org.postgresql.Driver");
+         Messenger esql = new Messenger(args[1], args[2], args[3], "");
+         List<Messenger> sessions = new ArrayList<Messenger>();
+         try {
+            MessengerStore[] stores = new MessengerStore[threads];
+            for (int t = 0; t < threads; ++t) {
+               Messenger session = new Messenger(args[1], args[2], args[3], "");
+               sessions.add(session);
+               stores[t] = session.getStore();
+            }
+            ok = run(esql.getStore(), stores, esql, ops);
+         }finally {
+            for (Messenger session : sessions)
+               session.cleanup();
+            esql.cleanup();
+         }
+      }
+      System.out.println(ok ? "all checks passed" : "checks failed");
+      if (!ok)
+         System.exit(1);
+   }//end main
+
+   private static boolean run (MessengerStore store, final MessengerStore[] stores, Messenger esql, final int ops) throws Exception {
+      final int threads = stores.length;
+      String run = Long.toString(System.currentTimeMillis() % 1000000L, 36);
+      final String owner = "mb_" + run + "_owner";
+      store.createUser(owner, "pw", String.format("+8%s%06d", run, 999999));
+      final String[][] logins = new String[threads][USERS_PER_THREAD];
+      for (int t = 0; t < threads; ++t) {
+         for (int k = 0; k < USERS_PER_THREAD; ++k) {
+            logins[t][k] = "mb_" + run + "_" + t + "_" + k;
+            store.createUser(logins[t][k], "pw", String.format("+8%s%06d", run, t * USERS_PER_THREAD + k));
+         }
+      }
+      // starts private: the owner and the first user of thread 0
+      final int chatId = store.createChat(owner, Arrays.asList(logins[0][0]));
+
+      final boolean[][] present = new boolean[threads][USERS_PER_THREAD];
+      present[0][0] = true;
+      final AtomicLong unchanged = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final long[] worst = new long[threads];
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int t = 0; t < threads; ++t) {
+         final int me = t;
+         workers.add(new Thread(new Runnable() {
+            public void run () {
+               Random random = new Random(me);
+               for (int i = 0; i < ops; ++i) {
+                  int k = random.nextInt(USERS_PER_THREAD);
+                  long start = System.nanoTime();
+                  try {
+                     if (!stores[me].setChatMember(chatId, logins[me][k], !present[me][k]))
+                        unchanged.incrementAndGet();
+                     present[me][k] = !present[me][k];
+                  }catch (SQLException e) {
+                     if (errors.incrementAndGet() == 1)
+                        System.err.println(e.getMessage());
+                  }
+                  worst[me] = Math.max(worst[me], System.nanoTime() - start);
+               }
+            }
+         }, "membership-" + t));
+      }
+      long start = System.nanoTime();
+      for (Thread worker : workers)
+         worker.start();
+      for (Thread worker : workers)
+         worker.join();
+      long ns = System.nanoTime() - start;
+      long slowest = 0;
+      for (long w : worst)
+         slowest = Math.max(slowest, w);
+      long total = (long) threads * ops;
+      System.out.println(String.format("%d threads, %d changes of chat %d in %d ms, %.0f changes/s, slowest %.1f ms",
+         threads, total, chatId, ns / 1000000, total * 1e9 / ns, slowest / 1e6));
+
+      List<String> expected = new ArrayList<String>();
+      expected.add(owner);
+      for (int t = 0; t < threads; ++t)
+         for (int k = 0; k < USERS_PER_THREAD; ++k)
+            if (present[t][k])
+               expected.add(logins[t][k]);
+      Collections.sort(expected);
+      // the database orders by its collation, compare in one order
+      List<String> members = new ArrayList<String>();
+      for (List<String> row : store.chatsOf(owner))
+         if (Integer.parseInt(row.get(0).trim()) == chatId)
+            members.addAll(Arrays.asList(row.get(2).trim().split(" ")));
+      Collections.sort(members);
+
+      boolean ok = check("no errors", errors.get() == 0);
+      ok &= check("every call changed", unchanged.get() == 0);
+      ok &= check("members", expected.equals(members));
+      if (esql != null) {
+         List<String> row = esql.executeQueryAndReturnResult(String.format(
+            "SELECT c.chat_type, s.member_count, (SELECT count(*) FROM chat_list l WHERE l.chat_id = c.chat_id) " +
+            "FROM chat c, chat_summary s WHERE c.chat_id = %d AND s.chat_id = c.chat_id", chatId)).get(0);
+         int counted = Integer.parseInt(row.get(2).trim());
+         ok &= check("member count", counted == expected.size() && Integer.parseInt(row.get(1).trim()) == counted);
+         ok &= check("chat type", row.get(0).trim().equals(counted > 2 ? "group" : "private"));
+      }
+      return ok;
+   }//end run
+
+   private static boolean check (String name, boolean ok) {
+      System.out.println(String.format("%-22s %s", name, ok ? "ok" : "FAILED"));
+      return ok;
+   }//end check
+
+}//end MembershipBenchmark
@@ -0,0 +1,275 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Query plan regression check of every template in QueryCatalog.  On a
+ * database loaded with a dataset (create_db.sh, or DataGenerator output for
+ * the larger sizes) it analyzes the tables, explains each template filled
+ * with values of the busiest chat and one of its members, and checks:
+ *
+ *   the plan uses the indexes the catalog names
+ *   no table of QueryCatalog.GUARDED is read with a sequential scan,
+ *     unless the catalog allows it and says why
+ *   the estimated total cost stays under the bound of the template
+ *   every template of the catalog has a plan
+ *
+ *   java PlanCheck <dbname> <port> <user> [-costScale F] [-minMessages N]
+ *
+ * A template with ? parameters is prepared on the server and explained with
+ * EXECUTE under plan_cache_mode = force_generic_plan, so its bounds hold
+ * for the plan the server reuses for any value.
+ *
+ * A guarded table of fewer than SMALL_PAGES pages, like message_revision
+ * when few messages were edited, is read whole faster than through an
+ * index.  A plan that fails only on such tables is explained again under
+ * enable_seqscan = off, and its scans and indexes are checked on that
+ * plan: the index must still be usable once the table grows.  The cost
+ * bound holds for the first plan.
+ *
+ * -costScale multiplies the bounds, for datasets much larger than the
+ * sample one.  Nothing is written, the statements are only explained.
+ * Exits with status 1 when a check fails, so scripts/bench.sh can gate a
+ * schema or index change on it.
+ *
+ */
+public class PlanCheck {
+
+   private static final Pattern COST = Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+   private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+   private static final Pattern INDEX = Pattern.compile("(?:using|Bitmap Index Scan on) (\\w+)");
+   private static final int SMALL_PAGES = 10;
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: java " + PlanCheck.class.getName () +
+            " <dbname> <port> <user> [-costScale F] [-minMessages N]");
+         return;
+      }//end if
+      double costScale = 1;
+      int minMessages = 1000;
+      for (int i = 3; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-costScale")) costScale = Double.parseDouble(args[i + 1]);
+         else if (args[i].equals("-minMessages")) minMessages = Integer.parseInt(args[i + 1]);
+      }
+
+      Class.forName ("org.postgresql.Driver");
+      Messenger esql = new Messenger(args[0], args[1], args[2], "");
+      boolean ok;
+      try {
+         ok = run(esql, costScale, minMessages);
+      }finally {
+         esql.cleanup();
+      }
+      System.out.println(ok ? "all checks passed" : "checks failed");
+      if (!ok)
+         System.exit(1);
+   }//end main
+
+   private static boolean run (Messenger esql, double costScale, int minMessages) throws Exception {
+      // plans of an empty database say nothing about the loaded one
+      int messages = Integer.parseInt(value(esql, "SELECT count(*) FROM message"));
+      if (!check(String.format("dataset, %d messages", messages), messages >= minMessages)) {
+         System.out.println("load a dataset first, see sql/scripts/create_db.sh and DataGenerator");
+         return false;
+      }
+      esql.executeUpdate("ANALYZE");
+
+      List<List<String>> busiest = esql.executeQueryAndReturnResult(
+         "SELECT chat_id, max(msg_id) FROM message GROUP BY chat_id ORDER BY count(*) DESC LIMIT 1");
+      int chatId = Integer.parseInt(busiest.get(0).get(0).trim());
+      int msgId = Integer.parseInt(busiest.get(0).get(1).trim());
+      List<List<String>> members = esql.executeQueryAndReturnResult(String.format(
+         "SELECT rtrim(member) FROM chat_list WHERE chat_id = %d ORDER BY member LIMIT 2", chatId));
+      String login = members.isEmpty() ? value(esql, "SELECT rtrim(min(login)) FROM usr") : members.get(0).get(0);
+      String other = members.size() < 2 ? value(esql, "SELECT rtrim(max(login)) FROM usr") : members.get(1).get(0);
+      System.out.println(String.format("chat %d, message %d, users %s and %s, cost bounds x%s", chatId, msgId, login, other, costScale));
+
+      // the small guarded tables and their indexes
+      Set<String> small = new HashSet<String>();
+      for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+            "SELECT t.relname, i.relname FROM pg_class t LEFT JOIN pg_index x ON x.indrelid = t.oid LEFT JOIN pg_class i ON i.oid = x.indexrelid " +
+            "WHERE t.relkind = 'r' AND t.relpages < %d AND t.relname IN ('%s')", SMALL_PAGES, join(QueryCatalog.GUARDED, "', '")))) {
+         small.add(row.get(0).trim());
+         if (row.get(1) != null)
+            small.add(row.get(1).trim());
+      }
+      if (!small.isEmpty())
+         System.out.println(String.format("under %d pages, checked with enable_seqscan = off: %s", SMALL_PAGES, new TreeSet<String>(small)));
+
+      boolean ok = true;
+      Set<String> planned = new HashSet<String>();
+      for (QueryCatalog.Plan plan : QueryCatalog.plans(login, other, chatId, msgId)) {
+         planned.add(plan.name);
+         ok &= explain(esql, plan, costScale, small);
+      }
+      List<String> missing = new ArrayList<String>();
+      for (Field field : QueryCatalog.class.getFields()) {
+         if (field.getType() != String.class || !Modifier.isStatic(field.getModifiers()))
+            continue;
+         // the column names are not statements
+         if (((String) field.get(null)).indexOf(' ') >= 0 && !planned.contains(field.getName()))
+            missing.add(field.getName());
+      }
+      ok &= check("every template planned" + (missing.isEmpty() ? "" : " " + missing), missing.isEmpty());
+      return ok;
+   }//end run
+
+   /**
+    * Explains one plan and prints its verdict, with the plan when it fails.
+    */
+   private static boolean explain (Messenger esql, QueryCatalog.Plan plan, double costScale, Set<String> small) throws Exception {
+      List<String> lines = lines(esql, plan, false);
+      List<String> problems = new ArrayList<String>();
+
+      Matcher cost = COST.matcher(lines.isEmpty() ? "" : lines.get(0));
+      double total = cost.find() ? Double.parseDouble(cost.group(1)) : Double.NaN;
+      if (!(total <= plan.maxCost * costScale))
+         problems.add(String.format("cost %.0f over %.0f", total, plan.maxCost * costScale));
+
+      Set<String> relations = new HashSet<String>();
+      List<String> access = access(lines, plan, relations);
+      // a small table may be scanned, as long as its index still serves
+      boolean indexOnly = !access.isEmpty() && small.containsAll(relations);
+      if (indexOnly) {
+         lines = lines(esql, plan, true);
+         access = access(lines, plan, relations);
+      }
+      problems.addAll(access);
+
+      String verdict = (problems.isEmpty() ? "ok" : "FAILED " + problems) + (indexOnly ? ", enable_seqscan = off" : "");
+      System.out.println(String.format("%-22s %10.1f  %s", plan.name, total, verdict));
+      if (problems.isEmpty() && plan.reason != null)
+         System.out.println(String.format("%-22s %10s  scans %s: %s", "", "", plan.scans, plan.reason));
+      if (!problems.isEmpty()) {
+         System.out.println("   " + plan.sql);
+         for (String line : lines)
+            System.out.println("   " + line);
+      }
+      return problems.isEmpty();
+   }//end explain
+
+   /**
+    * The scans and missing indexes of a plan against the rules of the
+    * catalog; the tables and indexes they name go to relations.
+    */
+   private static List<String> access (List<String> lines, QueryCatalog.Plan plan, Set<String> relations) {
+      List<String> problems = new ArrayList<String>();
+      relations.clear();
+      Set<String> used = new HashSet<String>();
+      for (String line : lines) {
+         Matcher index = INDEX.matcher(line);
+         while (index.find())
+            used.add(index.group(1));
+         Matcher scan = SEQ_SCAN.matcher(line);
+         if (scan.find()) {
+            String table = scan.group(1);
+            if (QueryCatalog.GUARDED.contains(table) && !plan.scans.contains(table)) {
+               problems.add("seq scan on " + table);
+               relations.add(table);
+            }
+         }
+      }
+      for (String index : plan.indexes)
+         if (!used.contains(index)) {
+            problems.add("no " + index);
+            relations.add(index);
+         }
+      return problems;
+   }//end access
+
+   /**
+    * The EXPLAIN output of a plan, with sequential scans disabled when
+    * indexOnly is set.
+    */
+   private static List<String> lines (Messenger esql, QueryCatalog.Plan plan, boolean indexOnly) throws SQLException {
+      Statement stmt = esql.getConnection().createStatement();
+      try {
+         if (indexOnly)
+            stmt.execute("SET enable_seqscan = off");
+         try {
+            if (!plan.params.isEmpty())
+               return explainGeneric(stmt, plan);
+            List<String> lines = new ArrayList<String>();
+            ResultSet rs = stmt.executeQuery("EXPLAIN " + plan.sql);
+            while (rs.next())
+               lines.add(rs.getString(1));
+            return lines;
+         }finally {
+            if (indexOnly)
+               stmt.execute("RESET enable_seqscan");
+         }
+      }finally {
+         stmt.close();
+      }
+   }//end lines
+
+   /**
+    * Explains the generic plan of a parameter template: the ? become $1,
+    * $2 and so on of a server side PREPARE, which EXPLAIN EXECUTE runs
+    * with the sample values.
+    */
+   private static List<String> explainGeneric (Statement stmt, QueryCatalog.Plan plan) throws SQLException {
+      StringBuilder sql = new StringBuilder();
+      int n = 0;
+      for (char c : plan.sql.toCharArray()) {
+         if (c == '?') sql.append('$').append(++n);
+         else sql.append(c);
+      }
+      StringBuilder values = new StringBuilder();
+      for (String param : plan.params)
+         values.append(values.length() == 0 ? "" : ", ").append(param);
+      List<String> lines = new ArrayList<String>();
+      stmt.execute("SET plan_cache_mode = force_generic_plan");
+      stmt.execute("PREPARE plancheck AS " + sql);
+      try {
+         ResultSet rs = stmt.executeQuery("EXPLAIN EXECUTE plancheck(" + values + ")");
+         while (rs.next())
+            lines.add(rs.getString(1));
+      }finally {
+         stmt.execute("DEALLOCATE plancheck");
+         stmt.execute("RESET plan_cache_mode");
+      }
+      return lines;
+   }//end explainGeneric
+
+   private static String join (List<String> values, String separator) {
+      StringBuilder joined = new StringBuilder();
+      for (String value : values)
+         joined.append(joined.length() == 0 ? "" : separator).append(value);
+      return joined.toString();
+   }//end join
+
+   private static String value (Messenger esql, String query) throws Exception {
+      return esql.executeQueryAndReturnResult(query).get(0).get(0);
+   }//end value
+
+   private static boolean check (String name, boolean ok) {
+      System.out.println(String.format("%-22s %s", name, ok ? "ok" : "FAILED"));
+      return ok;
+   }//end check
+
+}//end PlanCheck
@@ -0,0 +1,151 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the write amplification and bloat of editing and deleting
+ * messages in place, as EditMessage and RemoveMessage used to, with
+ * appending revisions and tombstones.  Both approaches run the same random
+ * sequence of edits and deletes on scratch copies of the first N messages:
+ *
+ *   bench_inplace                    UPDATE msg_text, DELETE
+ *   bench_message, bench_revision    INSERT revision, INSERT tombstone
+ *
+ * and report the WAL written, the growth of the tables and their indexes,
+ * the dead tuples left for vacuum, and the latency of a history page.  The
+ * scratch tables are dropped at the end.
+ *
+ *   java RevisionBenchmark <dbname> <port> <user> [-rows N] [-changes C]
+ *
+ */
+public class RevisionBenchmark {
+
+   // one change in this many is a delete, the others are edits
+   private static final int DELETE_EVERY = 10;
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: java " + RevisionBenchmark.class.getName () +
+            " <dbname> <port> <user> [-rows N] [-changes C]");
+         return;
+      }//end if
+      int rows = 10000, changes = 5000;
+      for (int i = 3; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-rows")) rows = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-changes")) changes = Integer.parseInt(args[i + 1]);
+      }
+
+      Class.forName ("org.postgresql.Driver");
+      Messenger esql = new Messenger(args[0], args[1], args[2], "");
+      try {
+         drop(esql);
+         esql.executeUpdate("CREATE TABLE bench_inplace (LIKE message INCLUDING ALL)");
+         esql.executeUpdate("CREATE TABLE bench_message (LIKE message INCLUDING ALL)");
+         esql.executeUpdate("CREATE TABLE bench_revision (LIKE message_revision INCLUDING ALL)");
+         esql.executeUpdate(String.format("INSERT INTO bench_inplace SELECT * FROM message ORDER BY msg_id LIMIT %d", rows));
+         esql.executeUpdate("INSERT INTO bench_message SELECT * FROM bench_inplace");
+         esql.executeUpdate("VACUUM ANALYZE bench_inplace");
+         esql.executeUpdate("VACUUM ANALYZE bench_message");
+         List<List<String>> range = esql.executeQueryAndReturnResult("SELECT min(msg_id), count(*) FROM bench_inplace");
+         int first = Integer.parseInt(range.get(0).get(0) == null ? "0" : range.get(0).get(0));
+         rows = Integer.parseInt(range.get(0).get(1));
+         if (rows == 0)
+            throw new SQLException("Load messages before running the benchmark");
+         int chatId = Integer.parseInt(esql.executeQueryAndReturnResult(
+            "SELECT chat_id FROM bench_inplace GROUP BY chat_id ORDER BY count(*) DESC LIMIT 1").get(0).get(0));
+
+         System.out.println(String.format("%d messages, %d changes, one delete in %d", rows, changes, DELETE_EVERY));
+         System.out.println(String.format("%-10s %10s %12s %12s %10s %10s %10s",
+            "approach", "ms", "WAL bytes", "growth", "dead", "hot upd", "us/page"));
+         run(esql, "in place", new String[] { "bench_inplace" }, first, rows, changes, chatId,
+            "UPDATE bench_inplace SET msg_text = '%2$s' WHERE msg_id = %1$d",
+            "DELETE FROM bench_inplace WHERE msg_id = %1$d",
+            "SELECT msg_id, msg_text, msg_timestamp, sender_login FROM bench_inplace WHERE chat_id = %d ORDER BY msg_timestamp LIMIT 10 OFFSET %d");
+         run(esql, "revisions", new String[] { "bench_message", "bench_revision" }, first, rows, changes, chatId,
+            "INSERT INTO bench_revision (msg_id, rev, chat_id, msg_text) SELECT m.msg_id, coalesce((SELECT max(r.rev) FROM bench_revision r WHERE r.msg_id = m.msg_id), 0) + 1, m.chat_id, '%2$s' " +
+            "FROM bench_message m WHERE m.msg_id = %1$d AND NOT EXISTS (SELECT 1 FROM bench_revision r WHERE r.msg_id = m.msg_id AND r.msg_text IS NULL)",
+            "INSERT INTO bench_revision (msg_id, rev, chat_id, msg_text) SELECT m.msg_id, coalesce((SELECT max(r.rev) FROM bench_revision r WHERE r.msg_id = m.msg_id), 0) + 1, m.chat_id, NULL " +
+            "FROM bench_message m WHERE m.msg_id = %1$d AND NOT EXISTS (SELECT 1 FROM bench_revision r WHERE r.msg_id = m.msg_id AND r.msg_text IS NULL)",
+            "SELECT m.msg_id, coalesce(r.msg_text, m.msg_text), m.msg_timestamp, m.sender_login FROM bench_message m " +
+            "LEFT JOIN LATERAL (SELECT msg_text, msg_text IS NULL AS deleted FROM bench_revision WHERE msg_id = m.msg_id ORDER BY rev DESC LIMIT 1) r ON true " +
+            "WHERE m.chat_id = %d AND r.deleted IS NOT TRUE ORDER BY m.msg_timestamp LIMIT 10 OFFSET %d");
+      }finally {
+         drop(esql);
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Runs one approach with the same seed as the other and prints a report
+    * line.  Every statement commits on its own, like the interactive client.
+    */
+   private static void run (Messenger esql, String name, String[] tables, int first, int rows, int changes,
+                            int chatId, String edit, String delete, String page) throws Exception {
+      long sizeBefore = size(esql, tables);
+      String walBefore = value(esql, "SELECT pg_current_wal_lsn()");
+      Random random = new Random(42);
+      long start = System.nanoTime();
+      for (int i = 0; i < changes; ++i) {
+         int msgId = first + random.nextInt(rows);
+         if (i % DELETE_EVERY == DELETE_EVERY - 1)
+            esql.executeUpdate(String.format(delete, msgId));
+         else
+            esql.executeUpdate(String.format(edit, msgId, "edit " + i));
+      }
+      long ms = (System.nanoTime() - start) / 1000000;
+      long wal = Long.parseLong(value(esql, String.format("SELECT pg_wal_lsn_diff(pg_current_wal_lsn(), '%s')::bigint", walBefore)));
+      long growth = size(esql, tables) - sizeBefore;
+
+      // the statistics collector reports with a delay
+      Thread.sleep(1500);
+      long dead = 0, hot = 0;
+      for (String table : tables) {
+         List<List<String>> stats = esql.executeQueryAndReturnResult(String.format(
+            "SELECT n_dead_tup, n_tup_hot_upd FROM pg_stat_user_tables WHERE relname = '%s'", table));
+         dead += Long.parseLong(stats.get(0).get(0));
+         hot += Long.parseLong(stats.get(0).get(1));
+      }
+
+      int pages = 200;
+      for (int i = 0; i < 20; ++i)
+         esql.executeQueryAndReturnResult(String.format(page, chatId, (i % 5) * 10));
+      long readStart = System.nanoTime();
+      for (int i = 0; i < pages; ++i)
+         esql.executeQueryAndReturnResult(String.format(page, chatId, (i % 5) * 10));
+      long perPage = (System.nanoTime() - readStart) / 1000 / pages;
+
+      System.out.println(String.format("%-10s %10d %12d %12d %10d %10d %10d", name, ms, wal, growth, dead, hot, perPage));
+   }//end run
+
+   private static long size (Messenger esql, String[] tables) throws SQLException {
+      long bytes = 0;
+      for (String table : tables)
+         bytes += Long.parseLong(value(esql, String.format("SELECT pg_total_relation_size('%s')", table)));
+      return bytes;
+   }//end size
+
+   private static String value (Messenger esql, String query) throws SQLException {
+      return esql.executeQueryAndReturnResult(query).get(0).get(0);
+   }//end value
+
+   private static void drop (Messenger esql) throws SQLException {
+      esql.executeUpdate("DROP TABLE IF EXISTS bench_inplace");
+      esql.executeUpdate("DROP TABLE IF EXISTS bench_revision");
+      esql.executeUpdate("DROP TABLE IF EXISTS bench_message");
+   }//end drop
+
+}//end RevisionBenchmark
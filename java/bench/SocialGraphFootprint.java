@@ -0,0 +1,95 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds a SocialGraph from the usr.csv and usr_list_contains.csv files of a
+ * data directory, such as the output of DataGenerator, and reports its
+ * memory footprint and query latencies.  No database is needed.
+ *
+ *   java SocialGraphFootprint <data dir> [-queries N]
+ *
+ */
+public class SocialGraphFootprint {
+
+   public static void main (String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println (
+            "Usage: java " + SocialGraphFootprint.class.getName () + " <data dir> [-queries N]");
+         return;
+      }//end if
+      int queries = 100000;
+      if (args.length > 2 && args[1].equals("-queries"))
+         queries = Integer.parseInt(args[2]);
+
+      File dir = new File(args[0]);
+      long start = System.nanoTime();
+      SocialGraph graph = new SocialGraph();
+      List<String> logins = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new FileReader(new File(dir, "usr.csv")));
+      String line;
+      while ((line = reader.readLine()) != null) {
+         String[] row = line.split(";", -1);
+         graph.addUser(row[0], Integer.parseInt(row[4]), Integer.parseInt(row[5]));
+         logins.add(row[0]);
+      }
+      reader.close();
+      File contains = new File(dir, "usr_list_contains.csv");
+      if (contains.exists()) {
+         reader = new BufferedReader(new FileReader(contains));
+         while ((line = reader.readLine()) != null) {
+            int sep = line.indexOf(';');
+            graph.apply(Integer.parseInt(line.substring(0, sep)), line.substring(sep + 1), true);
+         }
+         reader.close();
+      }
+      long loadMs = (System.nanoTime() - start) / 1000000;
+
+      System.out.println(String.format("users %d, list entries %d, loaded in %d ms",
+         graph.userCount(), graph.edgeCount(), loadMs));
+      System.out.println(String.format("footprint %.1f MB (%.1f bytes per user)",
+         graph.footprintBytes() / 1048576.0, graph.footprintBytes() / (double) Math.max(1, graph.userCount())));
+
+      Random random = new Random(42);
+      int n = logins.size();
+      long hits = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < queries; ++i)
+         if (graph.isContact(logins.get(random.nextInt(n)), logins.get(random.nextInt(n))))
+            ++hits;
+      report("isContact", queries, start);
+      start = System.nanoTime();
+      for (int i = 0; i < queries; ++i)
+         hits += graph.mutualContacts(logins.get(random.nextInt(n)), logins.get(random.nextInt(n))).length;
+      report("mutualContacts", queries, start);
+      int suggestions = Math.max(1, queries / 10);
+      start = System.nanoTime();
+      for (int i = 0; i < suggestions; ++i)
+         hits += graph.suggestContacts(logins.get(random.nextInt(n)), 10).length;
+      report("suggestContacts", suggestions, start);
+      System.out.println("(" + hits + ")");
+   }//end main
+
+   private static void report (String name, int count, long start) {
+      double us = (System.nanoTime() - start) / 1000.0 / count;
+      System.out.println(String.format("%-16s %10d queries %8.2f us/query", name, count, us));
+   }//end report
+
+}//end SocialGraphFootprint
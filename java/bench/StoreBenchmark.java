@@ -0,0 +1,136 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the same workload against a MessengerStore backend: users with
+ * contacts and blocks, chats, message appends, then history pages and
+ * ownership checks.  Reports the throughput of each step.
+ *
+ *   java StoreBenchmark embedded <dir> [-users U] [-chats C] [-messages M] [-pages P]
+ *   java StoreBenchmark sql <dbname> <port> <user> [-users U] [-chats C] [-messages M] [-pages P]
+ *
+ * The sql run commits its rows, under logins that start with sb_.
+ *
+ */
+public class StoreBenchmark {
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 2 || (args[0].equals("sql") && args.length < 4)) {
+         System.err.println (
+            "Usage: java " + StoreBenchmark.class.getName () +
+            " embedded <dir> | sql <dbname> <port> <user> [-users U] [-chats C] [-messages M] [-pages P]");
+         return;
+      }//end if
+      int users = 1000, chats = 200, messages = 20000, pages = 5000;
+      for (int i = args[0].equals("sql") ? 4 : 2; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-users")) users = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-chats")) chats = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-messages")) messages = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-pages")) pages = Integer.parseInt(args[i + 1]);
+      }
+
+      if (args[0].equals("embedded")) {
+         MessengerStore store = new EmbeddedStore(new File(args[1]), false);
+         try {
+            run(store, users, chats, messages, pages);
+         }finally {
+            store.close();
+         }
+      }else {
+         Class.forName ("org.postgresql.Driver");
+         Messenger esql = new Messenger(args[1], args[2], args[3], "");
+         try {
+            run(esql.getStore(), users, chats, messages, pages);
+         }finally {
+            esql.cleanup();
+         }
+      }
+   }//end main
+
+   private static void run (MessengerStore store, int users, int chats, int messages, int pages) throws SQLException {
+      Random random = new Random(42);
+      String run = Long.toString(System.currentTimeMillis() % 1000000L, 36);
+      System.out.println(String.format("%-16s %10s %10s %12s", "step", "ops", "ms", "ops/s"));
+
+      long start = System.nanoTime();
+      List<String> logins = new ArrayList<String>();
+      for (int i = 0; i < users; ++i) {
+         String login = "sb_" + run + "_" + i;
+         store.createUser(login, "pw", String.format("+9%s%06d", run, i));
+         logins.add(login);
+      }
+      report("createUser", users, start);
+
+      start = System.nanoTime();
+      int lists = 0;
+      for (int i = 0; i < users; ++i) {
+         for (int k = 0; k < 5; ++k) {
+            store.setListMember(logins.get(i), logins.get(random.nextInt(users)), k == 4, true);
+            ++lists;
+         }
+      }
+      report("setListMember", lists, start);
+
+      start = System.nanoTime();
+      List<Integer> chatIds = new ArrayList<Integer>();
+      List<String[]> members = new ArrayList<String[]>();
+      for (int i = 0; i < chats; ++i) {
+         String a = logins.get(random.nextInt(users));
+         String b = logins.get(random.nextInt(users));
+         while (b.equals(a))
+            b = logins.get(random.nextInt(users));
+         chatIds.add(store.createChat(a, Arrays.asList(b)));
+         members.add(new String[] { a, b });
+      }
+      report("createChat", chats, start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < messages; ++i) {
+         int c = random.nextInt(chats);
+         store.appendMessage(chatIds.get(c), members.get(c)[i & 1], "benchmark message " + i);
+      }
+      report("appendMessage", messages, start);
+
+      int perChat = Math.max(1, messages / chats);
+      start = System.nanoTime();
+      long rows = 0;
+      for (int i = 0; i < pages; ++i) {
+         int c = random.nextInt(chats);
+         int offset = random.nextInt(Math.max(1, perChat / MessengerStore.PAGE_SIZE)) * MessengerStore.PAGE_SIZE;
+         rows += store.messagePage(chatIds.get(c), members.get(c)[i & 1], offset, MessengerStore.PAGE_SIZE).size();
+      }
+      report("messagePage", pages, start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < pages; ++i) {
+         int c = random.nextInt(chats);
+         if (store.isChatMember(chatIds.get(c), members.get(c)[0]) && store.isListMember(members.get(c)[0], members.get(c)[1], true))
+            ++rows;
+      }
+      report("membership", pages, start);
+      System.out.println("(" + rows + ")");
+   }//end run
+
+   private static void report (String name, int ops, long start) {
+      long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+      System.out.println(String.format("%-16s %10d %10d %12d", name, ops, ms, ops * 1000L / ms));
+   }//end report
+
+}//end StoreBenchmark
@@ -0,0 +1,237 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the same scenario against a MessengerStore backend and checks every
+ * result, so both backends are held to the same behaviour:
+ *
+ *   java StoreConformance embedded <dir>
+ *   java StoreConformance sql <dbname> <port> <user>
+ *   java -Dmessenger.shards=<port>/<dbname>,... StoreConformance sharded <dbname> <port> <user>
+ *
+ * The sql run happens in one transaction that is rolled back at the end.
+ * The sharded run spans databases and commits its rows.
+ * Exits with status 1 when a check fails.
+ *
+ */
+public class StoreConformance {
+
+   private int _failures = 0;
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 2 || (!args[0].equals("embedded") && args.length < 4)) {
+         System.err.println (
+            "Usage: java " + StoreConformance.class.getName () +
+            " embedded <dir> | sql <dbname> <port> <user> | sharded <dbname> <port> <user>");
+         return;
+      }//end if
+      StoreConformance check = new StoreConformance();
+      if (args[0].equals("embedded")) {
+         File dir = new File(args[1]);
+         MessengerStore store = new EmbeddedStore(dir, false);
+         try {
+            check.run(store);
+         }finally {
+            store.close();
+         }
+         // everything must come back after a reopen
+         store = new EmbeddedStore(dir, false);
+         try {
+            check.reopened(store);
+         }finally {
+            store.close();
+         }
+      }else if (args[0].equals("sharded")) {
+         Class.forName ("org.postgresql.Driver");
+         Messenger esql = new Messenger(args[1], args[2], args[3], "");
+         try {
+            MessengerStore store = ShardedStore.fromSystemProperties(esql, args[3], "");
+            if (store == null)
+               throw new SQLException("Set messenger.shards to run against shards");
+            esql.setStore(store);
+            check.run(store);
+         }finally {
+            esql.cleanup();
+         }
+      }else {
+         Class.forName ("org.postgresql.Driver");
+         Messenger esql = new Messenger(args[1], args[2], args[3], "");
+         try {
+            esql.getConnection().setAutoCommit(false);
+            check.run(esql.getStore());
+         }finally {
+            esql.getConnection().rollback();
+            esql.cleanup();
+         }
+      }
+      System.out.println(check._failures == 0 ? "all checks passed" : check._failures + " checks failed");
+      if (check._failures > 0)
+         System.exit(1);
+   }//end main
+
+   // logins unique to this run, so the scenario also runs on a loaded database
+   private final String _a = "conf_a_" + Long.toString(System.nanoTime(), 36);
+   private final String _b = "conf_b_" + Long.toString(System.nanoTime(), 36);
+   private final String _c = "conf_c_" + Long.toString(System.nanoTime(), 36);
+   private int _chatId;
+   private int _pairId;
+   private int _firstMsgId;
+
+   private void run (MessengerStore store) throws SQLException {
+      String phone = Long.toString(System.nanoTime() % 10000000000L);
+      store.createUser(_a, "pa", "+1" + phone);
+      store.createUser(_b, "pb", "+2" + phone);
+      store.createUser(_c, "pc", "+3" + phone);
+      check("authenticate", store.authenticate(_a, "pa"));
+      check("wrong password", !store.authenticate(_a, "px"));
+      check("unknown login", !store.authenticate(_a + "x", "pa"));
+      try {
+         store.createUser(_a, "pa", "+4" + phone);
+         check("duplicate login", false);
+      }catch (SQLException e) {
+         check("duplicate login", true);
+      }
+
+      check("add contact", store.setListMember(_a, _b, false, true));
+      check("add contact twice", !store.setListMember(_a, _b, false, true));
+      check("is contact", store.isListMember(_a, _b, false));
+      check("not blocked", !store.isListMember(_a, _b, true));
+      check("block", store.setListMember(_a, _c, true, true));
+      check("add and remove", store.setListMember(_b, _c, false, true) && store.setListMember(_b, _c, false, false)
+         && !store.isListMember(_b, _c, false));
+
+      _chatId = store.createChat(_a, Arrays.asList(_b, _c));
+      check("member", store.isChatMember(_chatId, _a) && store.isChatMember(_chatId, _c));
+      check("not member", !store.isChatMember(_chatId, _a + "x"));
+
+      // 25 messages, every third one from c, whom a blocked
+      String[] senders = { _a, _b, _c };
+      for (int i = 0; i < 25; ++i)
+         store.appendMessage(_chatId, senders[i % 3], "message " + i);
+
+      List<List<String>> page = store.messagePage(_chatId, _b, 0, MessengerStore.PAGE_SIZE);
+      check("full page", page.size() == MessengerStore.PAGE_SIZE);
+      check("oldest first", page.get(0).get(1).trim().equals("message 0") && page.get(9).get(1).trim().equals("message 9"));
+      check("sender column", page.get(2).get(3).trim().equals(_c));
+      check("last page", store.messagePage(_chatId, _b, 20, MessengerStore.PAGE_SIZE).size() == 5);
+      check("past the end", store.messagePage(_chatId, _b, 30, MessengerStore.PAGE_SIZE).isEmpty());
+      check("page limit", store.messagePage(_chatId, _b, 7, 4).size() == 4
+         && store.messagePage(_chatId, _b, 7, 4).get(0).get(1).trim().equals("message 7"));
+      check("block filter", visible(store, _a) == 17 && !containsSender(store, _a, _c));
+      _firstMsgId = Integer.parseInt(page.get(0).get(0).trim());
+      check("chat list", chatRow(store, _b) != null && chatRow(store, _b).get(1).trim().equals(_a)
+         && chatRow(store, _b).get(3).trim().equals("25") && chatRow(store, _a + "x") == null);
+
+      check("owns", store.ownsMessage(_chatId, _firstMsgId, _a));
+      check("does not own", !store.ownsMessage(_chatId, _firstMsgId, _b));
+      store.reviseMessage(_chatId, _firstMsgId, "edited");
+      check("edit", store.messagePage(_chatId, _b, 0, MessengerStore.PAGE_SIZE).get(0).get(1).trim().equals("edited"));
+      int second = Integer.parseInt(page.get(1).get(0).trim());
+      store.reviseMessage(_chatId, second, null);
+      check("delete", visible(store, _b) == 24 && !store.ownsMessage(_chatId, second, _b));
+      check("delete keeps order", store.messagePage(_chatId, _b, 0, MessengerStore.PAGE_SIZE).get(1).get(1).trim().equals("message 2"));
+
+      _pairId = store.createChat(_a, Arrays.asList(_b));
+      check("add member", store.setChatMember(_pairId, _c, true) && store.isChatMember(_pairId, _c));
+      check("add member twice", !store.setChatMember(_pairId, _c, true));
+      check("remove member", store.setChatMember(_pairId, _b, false) && !store.isChatMember(_pairId, _b)
+         && members(store, _pairId, _a).equals(sorted(_a, _c)));
+      check("remove member twice", !store.setChatMember(_pairId, _b, false));
+      try {
+         store.setChatMember(_pairId, _a + "x", true);
+         check("add unknown member", false);
+      }catch (SQLException e) {
+         check("add unknown member", true);
+      }
+
+      // a left the chat after posting: a's messages stay, and stay filtered
+      // for b, who blocked a, on every page
+      store.setListMember(_b, _a, true, true);
+      int leftId = store.createChat(_c, Arrays.asList(_a, _b));
+      for (int i = 0; i < 10; ++i)
+         store.appendMessage(leftId, _a, "left " + i);
+      for (int i = 0; i < 30; ++i)
+         store.appendMessage(leftId, _c, "stayed " + i);
+      store.setChatMember(leftId, _a, false);
+      List<List<String>> later = store.messagePage(leftId, _b, 20, MessengerStore.PAGE_SIZE);
+      check("removed sender pages", later.size() == 10 && later.get(0).get(1).trim().equals("stayed 20")
+         && later.get(9).get(1).trim().equals("stayed 29"));
+      store.setListMember(_b, _a, true, false);
+   }//end run
+
+   private void reopened (MessengerStore store) throws SQLException {
+      check("reopen user", store.authenticate(_a, "pa") && store.isListMember(_a, _c, true));
+      check("reopen chat", store.isChatMember(_chatId, _b));
+      check("reopen members", store.isChatMember(_pairId, _c) && !store.isChatMember(_pairId, _b));
+      check("reopen messages", visible(store, _b) == 24 && visible(store, _a) == 16);
+      check("reopen edit", store.messagePage(_chatId, _b, 0, MessengerStore.PAGE_SIZE).get(0).get(1).trim().equals("edited"));
+      store.appendMessage(_chatId, _a, "after reopen");
+      check("reopen append", visible(store, _b) == 25 && chatRow(store, _c).get(3).trim().equals("25"));
+   }//end reopened
+
+   private int visible (MessengerStore store, String reader) throws SQLException {
+      int n = 0;
+      for (int offset = 0; ; offset += MessengerStore.PAGE_SIZE) {
+         int rows = store.messagePage(_chatId, reader, offset, MessengerStore.PAGE_SIZE).size();
+         n += rows;
+         if (rows < MessengerStore.PAGE_SIZE)
+            return n;
+      }
+   }//end visible
+
+   private List<String> chatRow (MessengerStore store, String login) throws SQLException {
+      for (List<String> row : store.chatsOf(login))
+         if (Integer.parseInt(row.get(0).trim()) == _chatId)
+            return row;
+      return null;
+   }//end chatRow
+
+   private String members (MessengerStore store, int chatId, String login) throws SQLException {
+      for (List<String> row : store.chatsOf(login))
+         if (Integer.parseInt(row.get(0).trim()) == chatId)
+            return row.get(2).trim();
+      return null;
+   }//end members
+
+   private static String sorted (String... logins) {
+      String[] copy = logins.clone();
+      Arrays.sort(copy);
+      StringBuilder sb = new StringBuilder();
+      for (String login : copy)
+         sb.append(sb.length() == 0 ? "" : " ").append(login);
+      return sb.toString();
+   }//end sorted
+
+   private boolean containsSender (MessengerStore store, String reader, String sender) throws SQLException {
+      for (int offset = 0; ; offset += MessengerStore.PAGE_SIZE) {
+         List<List<String>> page = store.messagePage(_chatId, reader, offset, MessengerStore.PAGE_SIZE);
+         for (List<String> row : page)
+            if (row.get(3).trim().equals(sender))
+               return true;
+         if (page.size() < MessengerStore.PAGE_SIZE)
+            return false;
+      }
+   }//end containsSender
+
+   private void check (String name, boolean ok) {
+      System.out.println(String.format("%-22s %s", name, ok ? "ok" : "FAILED"));
+      if (!ok)
+         ++_failures;
+   }//end check
+
+}//end StoreConformance
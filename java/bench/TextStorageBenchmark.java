@@ -0,0 +1,135 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares storing message text blank padded, as msg_text char(300) did,
+ * with variable length varchar(300).  The first N messages are copied into
+ * a scratch table per type, generate a corpus with DataGenerator first:
+ *
+ *   bench_text_char       msg_text char(300)
+ *   bench_text_varchar    msg_text varchar(300)
+ *
+ * and the report gives the table and index bytes per message, the stored
+ * bytes of one text, and for random history pages the bytes the client
+ * receives, the same page gzip compressed as HistoryExport sends it, and
+ * the latency.  The scratch tables are dropped at the end.
+ *
+ *   java TextStorageBenchmark <dbname> <port> <user> [-rows N] [-pages P]
+ *
+ */
+public class TextStorageBenchmark {
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final String[] TYPES = { "char(300)", "varchar(300)" };
+   private static final String[] TABLES = { "bench_text_char", "bench_text_varchar" };
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: java " + TextStorageBenchmark.class.getName () +
+            " <dbname> <port> <user> [-rows N] [-pages P]");
+         return;
+      }//end if
+      int rows = 100000, pages = 2000;
+      for (int i = 3; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-rows")) rows = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-pages")) pages = Integer.parseInt(args[i + 1]);
+      }
+
+      Class.forName ("org.postgresql.Driver");
+      Messenger esql = new Messenger(args[0], args[1], args[2], "");
+      try {
+         drop(esql);
+         for (int t = 0; t < TABLES.length; ++t) {
+            esql.executeUpdate(String.format(
+               "CREATE TABLE %s AS SELECT msg_id, rtrim(msg_text)::%s AS msg_text, msg_timestamp, sender_login, chat_id FROM message ORDER BY msg_id LIMIT %d",
+               TABLES[t], TYPES[t], rows));
+            esql.executeUpdate(String.format("CREATE INDEX ON %s (chat_id, msg_timestamp)", TABLES[t]));
+            esql.executeUpdate("VACUUM ANALYZE " + TABLES[t]);
+         }
+         rows = Integer.parseInt(value(esql, "SELECT count(*) FROM " + TABLES[0]));
+         if (rows == 0)
+            throw new SQLException("Load messages before running the benchmark");
+         // chats with at least one full page, the page offsets stay inside them
+         List<List<String>> chats = esql.executeQueryAndReturnResult(String.format(
+            "SELECT chat_id, count(*) FROM %s GROUP BY chat_id HAVING count(*) >= 10", TABLES[0]));
+         if (chats.isEmpty())
+            throw new SQLException("No chat has a full page of messages");
+
+         System.out.println(String.format("%d messages, %d pages over %d chats", rows, pages, chats.size()));
+         System.out.println(String.format("%-14s %12s %12s %12s %12s %10s",
+            "msg_text", "bytes/msg", "text bytes", "page bytes", "page gzip", "us/page"));
+         for (int t = 0; t < TABLES.length; ++t)
+            run(esql, t, rows, pages, chats);
+      }finally {
+         drop(esql);
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Measures one table with the same random pages as the other.
+    */
+   private static void run (Messenger esql, int t, int rows, int pages, List<List<String>> chats) throws Exception {
+      long size = Long.parseLong(value(esql, String.format("SELECT pg_total_relation_size('%s')", TABLES[t])));
+      String text = value(esql, String.format("SELECT round(avg(pg_column_size(msg_text)), 1) FROM %s", TABLES[t]));
+      String page = "SELECT msg_id, msg_text, msg_timestamp, sender_login FROM " + TABLES[t] +
+         " WHERE chat_id = %s ORDER BY msg_timestamp LIMIT 10 OFFSET %d";
+
+      Random random = new Random(42);
+      long bytes = 0, gzip = 0, nanos = 0;
+      for (int i = 0; i < pages; ++i) {
+         List<String> chat = chats.get(random.nextInt(chats.size()));
+         int offset = random.nextInt(Integer.parseInt(chat.get(1)) / 10) * 10;
+         long start = System.nanoTime();
+         List<List<String>> result = esql.executeQueryAndReturnResult(String.format(page, chat.get(0), offset));
+         nanos += System.nanoTime() - start;
+         StringBuilder csv = new StringBuilder();
+         for (List<String> row : result) {
+            for (int c = 0; c < row.size(); ++c)
+               csv.append(c == 0 ? "" : ";").append(row.get(c));
+            csv.append('\n');
+         }
+         byte[] raw = csv.toString().getBytes(UTF8);
+         bytes += raw.length;
+         gzip += gzipped(raw);
+      }
+      System.out.println(String.format("%-14s %12d %12s %12d %12d %10d",
+         TYPES[t], size / rows, text, bytes / pages, gzip / pages, nanos / 1000 / pages));
+   }//end run
+
+   private static int gzipped (byte[] data) throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      GZIPOutputStream gz = new GZIPOutputStream(out);
+      gz.write(data);
+      gz.close();
+      return out.size();
+   }//end gzipped
+
+   private static String value (Messenger esql, String query) throws SQLException {
+      return esql.executeQueryAndReturnResult(query).get(0).get(0);
+   }//end value
+
+   private static void drop (Messenger esql) throws SQLException {
+      for (String table : TABLES)
+         esql.executeUpdate("DROP TABLE IF EXISTS " + table);
+   }//end drop
+
+}//end TextStorageBenchmark
@@ -0,0 +1,365 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent workload driver.  Each worker thread owns a Messenger
+ * connection and replays a weighted mix of the LogIn, NewMessage,
+ * PrintChats, AddToContact and StartChat menu actions against users and
+ * chats picked with a Zipfian skew.  Throughput and latency percentiles are
+ * reported per operation at the end of the run.
+ *
+ *   java WorkloadDriver <dbname> <port> <user> [-threads N] [-seconds S]
+ *                       [-seed S] [-mix login,message,print,contact,chat]
+ *                       [-kind platform|virtual]
+ *
+ * An operation makes the calls of its handler without the prompts: the
+ * store methods and QueryCatalog statements, the rate limits, and one
+ * admission per action.  Pages are read as the user with READER_PAGE, and
+ * chats are started with one of the user's contacts.  With
+ * -Dmessenger.journal the messages go through one MessageJournal shared by
+ * the workers, as they go through the journal of the client process.  An
+ * action the rate limits refuse is counted as limited and not timed.
+ *
+ * -kind virtual runs the workers on virtual threads, which needs Java 21.
+ *
+ */
+public class WorkloadDriver {
+
+   static final String[] OPERATIONS = { "LogIn", "NewMessage", "PrintChats", "AddToContact", "StartChat" };
+   static final int LOGIN = 0, NEW_MESSAGE = 1, PRINT_CHATS = 2, ADD_TO_CONTACT = 3, START_CHAT = 4;
+
+   // users and chats sampled from the database before the run
+   private static final int SAMPLE_SIZE = 10000;
+
+   private final String _dbname, _dbport, _user;
+   private final int[] _mix;
+   private final List<String[]> _users = new ArrayList<String[]>();
+   private final List<Integer> _chats = new ArrayList<Integer>();
+   // (login, contact) pairs StartChat picks from
+   private final List<String[]> _contacts = new ArrayList<String[]>();
+   // shared by the workers, null without messenger.journal
+   private MessageJournal _journal = null;
+
+   private final LatencyHistogram[] _latency = new LatencyHistogram[OPERATIONS.length];
+   private final AtomicLongArray _errors = new AtomicLongArray(OPERATIONS.length);
+   private final AtomicLongArray _limited = new AtomicLongArray(OPERATIONS.length);
+
+   public WorkloadDriver (String dbname, String dbport, String user, int[] mix) {
+      this._dbname = dbname;
+      this._dbport = dbport;
+      this._user = user;
+      this._mix = mix;
+      for (int i = 0; i < OPERATIONS.length; ++i)
+         _latency[i] = new LatencyHistogram();
+   }//end WorkloadDriver
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: java " + WorkloadDriver.class.getName () +
+            " <dbname> <port> <user> [-threads N] [-seconds S] [-seed S] [-mix 20,30,40,5,5] [-kind platform|virtual]");
+         return;
+      }//end if
+      int threads = 8, seconds = 30;
+      long seed = 42;
+      int[] mix = { 20, 30, 40, 5, 5 };
+      boolean virtual = false;
+      for (int i = 3; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-threads")) threads = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-seconds")) seconds = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-seed")) seed = Long.parseLong(args[i + 1]);
+         else if (args[i].equals("-mix")) mix = parseMix(args[i + 1]);
+         else if (args[i].equals("-kind")) virtual = args[i + 1].equals("virtual");
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }//end for
+
+      Class.forName ("org.postgresql.Driver");
+      WorkloadDriver driver = new WorkloadDriver(args[0], args[1], args[2], mix);
+      driver.loadSample();
+      try {
+         driver.run(threads, seconds * 1000L, seed, virtual);
+      }finally {
+         if (driver._journal != null)
+            driver._journal.close(10000);
+      }
+   }//end main
+
+   private static int[] parseMix (String value) {
+      String[] parts = value.split(",");
+      if (parts.length != OPERATIONS.length)
+         throw new IllegalArgumentException("-mix needs " + OPERATIONS.length + " weights");
+      int[] mix = new int[parts.length];
+      for (int i = 0; i < parts.length; ++i)
+         mix[i] = Integer.parseInt(parts[i].trim());
+      return mix;
+   }//end parseMix
+
+   /**
+    * Reads the users and chats the workers pick from.
+    */
+   private void loadSample () throws SQLException {
+      Messenger esql = connect();
+      try {
+         for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+               "SELECT login, password FROM usr ORDER BY login LIMIT %d", SAMPLE_SIZE)))
+            _users.add(new String[] { row.get(0).trim(), row.get(1).trim() });
+         for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+               "SELECT chat_id FROM chat ORDER BY chat_id LIMIT %d", SAMPLE_SIZE)))
+            _chats.add(Integer.parseInt(row.get(0)));
+         for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+               "SELECT u.login, l.list_member FROM usr u, user_list_contains l WHERE l.list_id = u.contact_list ORDER BY u.login, l.list_member LIMIT %d", SAMPLE_SIZE)))
+            _contacts.add(new String[] { row.get(0).trim(), row.get(1).trim() });
+         _journal = MessageJournal.fromSystemProperties(esql);
+      }finally {
+         esql.cleanup();
+      }
+      if (_users.size() < 2 || _chats.isEmpty() || _contacts.isEmpty())
+         throw new SQLException("Load data before running the workload");
+   }//end loadSample
+
+   /**
+    * Runs the workers for the given time and prints the report.
+    */
+   private void run (int threads, final long durationMs, long seed, boolean virtual) throws Exception {
+      final CountDownLatch ready = new CountDownLatch(threads);
+      final CountDownLatch done = new CountDownLatch(threads);
+      final long[] deadline = new long[1];
+      final Object startSignal = new Object();
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int t = 0; t < threads; ++t) {
+         final Random random = new Random(seed + t);
+         Thread worker = newWorker(virtual, "workload-" + t, new Runnable() {
+            public void run () {
+               Messenger esql = null;
+               try {
+                  esql = connect();
+                  ready.countDown();
+                  synchronized (startSignal) {
+                     while (deadline[0] == 0)
+                        startSignal.wait();
+                  }
+                  work(esql, random, deadline[0]);
+               }catch (Exception e) {
+                  System.err.println(e.getMessage());
+               }finally {
+                  if (esql != null) {
+                     // the journal is shared, main closes it after the run;
+                     // the SqlStore behind it holds nothing of its own
+                     if (_journal != null)
+                        esql.setStore(null);
+                     esql.cleanup();
+                  }
+                  done.countDown();
+               }
+            }
+         });
+         workers.add(worker);
+         worker.start();
+      }
+      ready.await();
+      long start = System.nanoTime();
+      synchronized (startSignal) {
+         deadline[0] = start + durationMs * 1000000L;
+         startSignal.notifyAll();
+      }
+      done.await();
+      report((System.nanoTime() - start) / 1e9, threads);
+   }//end run
+
+   /**
+    * Creates a platform or a virtual worker thread.  Virtual threads are
+    * looked up reflectively so the tools still build for Java 17.
+    */
+   private static Thread newWorker (boolean virtual, String name, Runnable body) throws Exception {
+      if (!virtual)
+         return new Thread(body, name);
+      Class<?> type = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = type.getMethod("name", String.class).invoke(builder, name);
+      Method unstarted = type.getMethod("unstarted", Runnable.class);
+      return (Thread) unstarted.invoke(builder, body);
+   }//end newWorker
+
+   private void work (Messenger esql, Random random, long deadline) {
+      DataGenerator.ZipfSampler users = new DataGenerator.ZipfSampler(_users.size(), 1.0, identity(_users.size()));
+      DataGenerator.ZipfSampler chats = new DataGenerator.ZipfSampler(_chats.size(), 1.1, identity(_chats.size()));
+      int total = 0;
+      for (int w : _mix)
+         total += w;
+      while (System.nanoTime() < deadline) {
+         int pick = random.nextInt(total);
+         int op = 0;
+         while (pick >= _mix[op])
+            pick -= _mix[op++];
+         String[] user = _users.get(users.next(random));
+         long start = System.nanoTime();
+         boolean ran = true;
+         Messenger.beginAction();
+         try {
+            switch (op) {
+               case LOGIN: logIn(esql, user); break;
+               case NEW_MESSAGE: ran = newMessage(esql, user[0], _chats.get(chats.next(random))); break;
+               case PRINT_CHATS: ran = printChats(esql, user[0], _chats.get(chats.next(random)), random.nextInt(3) * HistoryView.PAGE_SIZE); break;
+               case ADD_TO_CONTACT: addToContact(esql, user[0], _users.get(random.nextInt(_users.size()))[0]); break;
+               case START_CHAT: startChat(esql, _contacts.get(random.nextInt(_contacts.size()))); break;
+            }
+            if (ran)
+               _latency[op].record((System.nanoTime() - start) / 1000);
+            else
+               _limited.incrementAndGet(op);
+         }catch (SQLException e) {
+            _errors.incrementAndGet(op);
+         }
+      }//end while
+   }//end work
+
+   // the calls of the Messenger menu handlers, without the prompts; false
+   // when a rate limit refused the action
+
+   private static void logIn (Messenger esql, String[] user) throws SQLException {
+      if (esql.getStore().authenticate(user[0], user[1]))
+         esql.touch(user[0]);
+   }//end logIn
+
+   private static boolean newMessage (Messenger esql, String sender, int chatId) throws SQLException {
+      if (!Messenger.MESSAGE_USER_LIMIT.tryAcquire(sender) || !Messenger.MESSAGE_CHAT_LIMIT.tryAcquire(String.valueOf(chatId)))
+         return false;
+      esql.getStore().appendMessage(chatId, sender, "workload message");
+      return true;
+   }//end newMessage
+
+   private static boolean printChats (Messenger esql, String reader, int chatId, int offset) throws SQLException {
+      if (!Messenger.PAGE_USER_LIMIT.tryAcquire(reader))
+         return false;
+      // one row more tells HistoryView whether a next page exists
+      esql.getStore().messagePage(chatId, reader, offset, HistoryView.PAGE_SIZE + 1);
+      return true;
+   }//end printChats
+
+   private static void addToContact (Messenger esql, String user, String target) throws SQLException {
+      if (esql.executeQuery(String.format(QueryCatalog.USER_BY_LOGIN, target)) != 1)
+         return;
+      if (esql.getStore().isListMember(user, target, true))
+         return;
+      // skips a target that is already a contact, the handler fails on it
+      esql.getStore().setListMember(user, target, false, true);
+   }//end addToContact
+
+   private static void startChat (Messenger esql, String[] pair) throws SQLException {
+      String user = pair[0], target = pair[1];
+      if (esql.executeQuery(String.format(QueryCatalog.USER_BY_LOGIN, target)) != 1)
+         return;
+      MessengerStore store = esql.getStore();
+      if (!store.isListMember(user, target, false) || store.isListMember(user, target, true))
+         return;
+      store.createChat(user, Arrays.asList(target));
+   }//end startChat
+
+   /**
+    * Opens a worker connection, with its store behind the shared journal
+    * when there is one.
+    */
+   private Messenger connect () throws SQLException {
+      Messenger esql = new Messenger(_dbname, _dbport, _user, "");
+      if (_journal != null)
+         esql.setStore(new JournaledStore(esql.getStore(), _journal));
+      return esql;
+   }//end connect
+
+   private void report (double seconds, int threads) {
+      System.out.println();
+      System.out.println(String.format("%d threads, %.1f s", threads, seconds));
+      System.out.println(String.format("%-14s %10s %10s %8s %8s %10s %10s %10s %10s",
+         "operation", "count", "ops/s", "errors", "limited", "p50 us", "p95 us", "p99 us", "max us"));
+      long all = 0;
+      for (int i = 0; i < OPERATIONS.length; ++i) {
+         LatencyHistogram h = _latency[i];
+         all += h.count();
+         System.out.println(String.format("%-14s %10d %10.1f %8d %8d %10d %10d %10d %10d",
+            OPERATIONS[i], h.count(), h.count() / seconds, _errors.get(i), _limited.get(i),
+            h.percentile(0.50), h.percentile(0.95), h.percentile(0.99), h.max()));
+      }
+      System.out.println(String.format("%-14s %10d %10.1f", "total", all, all / seconds));
+      System.out.println("metrics: " + Metrics.format());
+   }//end report
+
+   private static int[] identity (int n) {
+      int[] items = new int[n];
+      for (int i = 0; i < n; ++i)
+         items[i] = i;
+      return items;
+   }//end identity
+
+   /**
+    * Lock free latency histogram in microseconds.  Buckets are powers of two
+    * split in 16 linear steps, which keeps the error under 7%.
+    */
+   static class LatencyHistogram {
+      private static final int SUB_BUCKETS = 16;
+      private final AtomicLongArray _buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+      private final AtomicLongArray _stats = new AtomicLongArray(2); // count, max
+
+      void record (long micros) {
+         _buckets.incrementAndGet(bucketOf(Math.max(0, micros)));
+         _stats.incrementAndGet(0);
+         long max;
+         while (micros > (max = _stats.get(1)) && !_stats.compareAndSet(1, max, micros))
+            ;
+      }
+
+      long count () {
+         return _stats.get(0);
+      }
+
+      long max () {
+         return _stats.get(1);
+      }
+
+      long percentile (double p) {
+         long target = (long) Math.ceil(count() * p);
+         long seen = 0;
+         for (int i = 0; i < _buckets.length(); ++i) {
+            seen += _buckets.get(i);
+            if (seen >= target && seen > 0)
+               return valueOf(i);
+         }
+         return 0;
+      }
+
+      private static int bucketOf (long v) {
+         if (v < SUB_BUCKETS)
+            return (int) v;
+         int exp = 63 - Long.numberOfLeadingZeros(v);
+         int sub = (int) ((v >>> (exp - 4)) & (SUB_BUCKETS - 1));
+         return (exp - 3) * SUB_BUCKETS + sub;
+      }
+
+      private static long valueOf (int bucket) {
+         if (bucket < SUB_BUCKETS)
+            return bucket;
+         int exp = bucket / SUB_BUCKETS + 3;
+         int sub = bucket % SUB_BUCKETS;
+         return ((long) (SUB_BUCKETS + sub)) << (exp - 4);
+      }
+   }//end LatencyHistogram
+
+}//end WorkloadDriver
@@ -0,0 +1,19 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use, Java 17 or later
+# export JAVA_HOME=/usr/lib/jvm/java-21
+# export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the program together with the load testing tools
+mvn -q -B -Pbench -f $DIR/../pom.xml package || exit 1
+
+#run a tool, e.g.
+#  bench.sh DataGenerator ../data /tmp/data10x -users 10 -chats 10 -messages 20
+#  bench.sh WorkloadDriver $DB_NAME $PGPORT $USER -threads 16 -seconds 60
+#  bench.sh WorkloadDriver $DB_NAME $PGPORT $USER -threads 1000 -kind virtual
+#  bench.sh PlanCheck $DB_NAME $PGPORT $USER      fails on a regressed query plan
+#  bench.sh JournalCheck $DB_NAME $PGPORT $USER /tmp/journalcheck   checks MessageJournal recovery
+#
+#compare driver settings by running the same workload with, e.g.
+#  JAVA_OPTS=-Dmessenger.jdbc.options=prepareThreshold=0
+java $JAVA_OPTS -cp "$DIR/../target/classes:$DIR/../target/lib/*" "$@"
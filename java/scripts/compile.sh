@@ -1,13 +1,12 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
-# Indicate the path of the java compiler to use
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+# Indicate the path of the java compiler to use, Java 17 or later
+# export JAVA_HOME=/usr/lib/jvm/java-21
+# export PATH=$JAVA_HOME/bin:$PATH
 
-# compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java
+# compile the java program, the PostgreSQL driver is copied to target/lib
+mvn -q -B -f $DIR/../pom.xml package || exit 1
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
-
+java -cp "$DIR/../target/classes:$DIR/../target/lib/*" Messenger $DB_NAME $PGPORT $USER
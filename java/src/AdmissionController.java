@@ -0,0 +1,160 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide admission control for database statements.  A statement is
+ * shed when too many are already in flight or when the moving average of
+ * statement latency is over the limit.  While shedding on latency one probe
+ * statement is let through per interval, so the average can recover.
+ *
+ * A sample counts for at most twice the limit, so one lock wait or large
+ * read cannot push the average over it alone, and the average halves every
+ * HALF_LIFE_MS without samples, so it recovers with time and not only
+ * through probes.  Statements whose latency says nothing about load, such
+ * as a COPY of a whole chat, are released without a sample.  Messenger
+ * admits a user action at its first statement and lets the rest of it in
+ * with enter, so an action is not shed halfway.
+ *
+ */
+public class AdmissionController {
+
+   // weight of the newest sample in the latency average
+   private static final double ALPHA = 0.1;
+   private static final long PROBE_INTERVAL_MS = 100;
+   private static final double HALF_LIFE_MS = 1000;
+   // a sample counts for at most this multiple of the limit
+   private static final long MAX_SAMPLE = 2;
+
+   private final int _maxInFlight;
+   private final long _maxLatencyNanos;
+
+   private final AtomicInteger _inFlight = new AtomicInteger();
+   // latency average as of the last sample, guarded by this
+   private double _avgLatencyNanos = 0;
+   private long _lastSampleNanos = System.nanoTime();
+   private final AtomicLong _lastProbe = new AtomicLong();
+   private final AtomicLong _shed = Metrics.counter("admission.shed");
+   private final AtomicLong _admitted = Metrics.counter("admission.admitted");
+
+   /**
+    * Creates a new controller.
+    *
+    * @param maxInFlight statements allowed to run at once
+    * @param maxLatencyMs average statement latency above which load is shed
+    */
+   public AdmissionController (int maxInFlight, long maxLatencyMs) {
+      this._maxInFlight = maxInFlight;
+      this._maxLatencyNanos = maxLatencyMs * 1000000L;
+   }//end AdmissionController
+
+   /**
+    * Builds a controller from the messenger.admission.maxInFlight and
+    * messenger.admission.maxLatencyMs system properties.
+    *
+    * @return the controller
+    */
+   public static AdmissionController fromSystemProperties () {
+      return new AdmissionController(
+         Integer.getInteger("messenger.admission.maxInFlight", 64),
+         Long.getLong("messenger.admission.maxLatencyMs", 500L));
+   }//end fromSystemProperties
+
+   /**
+    * Asks to run a statement.  Every true result must be followed by a call
+    * to release.
+    *
+    * @return true if the statement may run
+    */
+   public boolean tryAdmit () {
+      if (average() > _maxLatencyNanos) {
+         long now = System.currentTimeMillis();
+         long last = _lastProbe.get();
+         if (now - last < PROBE_INTERVAL_MS || !_lastProbe.compareAndSet(last, now)) {
+            _shed.incrementAndGet();
+            return false;
+         }
+      }
+      if (_inFlight.incrementAndGet() > _maxInFlight) {
+         _inFlight.decrementAndGet();
+         _shed.incrementAndGet();
+         return false;
+      }
+      _admitted.incrementAndGet();
+      return true;
+   }//end tryAdmit
+
+   /**
+    * Runs a statement without asking, for the later statements of an
+    * admitted user action.  Must be followed by a call to release.
+    */
+   public void enter () {
+      _inFlight.incrementAndGet();
+   }//end enter
+
+   /**
+    * Reports the end of an admitted statement.
+    *
+    * @param latencyNanos how long the statement took
+    */
+   public void release (long latencyNanos) {
+      _inFlight.decrementAndGet();
+      long sample = Math.min(latencyNanos, MAX_SAMPLE * _maxLatencyNanos);
+      long now = System.nanoTime();
+      synchronized (this) {
+         double avg = average(now);
+         _avgLatencyNanos = avg + ALPHA * (sample - avg);
+         _lastSampleNanos = now;
+      }
+   }//end release
+
+   /**
+    * Reports the end of an admitted statement and leaves its latency out of
+    * the average.
+    */
+   public void release () {
+      _inFlight.decrementAndGet();
+   }//end release
+
+   private double average () {
+      return average(System.nanoTime());
+   }//end average
+
+   private synchronized double average (long now) {
+      return _avgLatencyNanos * Math.pow(0.5, (now - _lastSampleNanos) / (HALF_LIFE_MS * 1e6));
+   }//end average
+
+   /**
+    * @return the number of statements running
+    */
+   public int inFlight () {
+      return _inFlight.get();
+   }//end inFlight
+
+   /**
+    * @return the moving average of statement latency in milliseconds
+    */
+   public double averageLatencyMs () {
+      return average() / 1e6;
+   }//end averageLatencyMs
+
+   /**
+    * @return the number of statements shed so far
+    */
+   public long shed () {
+      return _shed.get();
+   }//end shed
+
+}//end AdmissionController
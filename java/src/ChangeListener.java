@@ -0,0 +1,186 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Listens for the NOTIFY events raised by the triggers in create_triggers.sql
+ * and hands them to in-process subscribers.  One listener runs per process on
+ * its own connection, so other Messenger processes writing to the same
+ * database are seen here without polling the tables themselves.
+ *
+ */
+public class ChangeListener implements Runnable {
+
+   // channels raised by the triggers in create_triggers.sql
+   public static final String MESSAGE_CHANNEL = "message_event";
+   public static final String CHAT_LIST_CHANNEL = "chat_list_event";
+   public static final String CONTACT_CHANNEL = "user_list_event";
+
+   // how long one wait for new notifications lasts
+   private static final long POLL_INTERVAL_MS = 250;
+
+   // dedicated connection, the Messenger connection belongs to the UI thread
+   private final Connection _connection;
+
+   // subscribers per channel, read on every notification and rarely written
+   private final Map<String, List<ChangeSubscriber>> _subscribers =
+      new ConcurrentHashMap<String, List<ChangeSubscriber>>();
+
+   private volatile boolean _running = false;
+   private Thread _thread = null;
+
+   /**
+    * Creates a new listener with its own physical connection.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public ChangeListener (String url, String user, String passwd) throws SQLException {
+      this._connection = DriverManager.getConnection(url, user, passwd);
+   }//end ChangeListener
+
+   /**
+    * Registers a subscriber for a channel.  The channel is LISTENed to the
+    * first time anybody subscribes to it.
+    *
+    * @param channel the notification channel
+    * @param subscriber the callback to invoke
+    * @throws java.sql.SQLException when the LISTEN fails
+    */
+   public synchronized void subscribe (String channel, ChangeSubscriber subscriber) throws SQLException {
+      List<ChangeSubscriber> list = _subscribers.get(channel);
+      if (list == null) {
+         list = new CopyOnWriteArrayList<ChangeSubscriber>();
+         _subscribers.put(channel, list);
+         execute("LISTEN " + channel);
+      }
+      list.add(subscriber);
+   }//end subscribe
+
+   /**
+    * Removes a subscriber registered with subscribe.
+    *
+    * @param channel the notification channel
+    * @param subscriber the callback to remove
+    */
+   public void unsubscribe (String channel, ChangeSubscriber subscriber) {
+      List<ChangeSubscriber> list = _subscribers.get(channel);
+      if (list != null)
+         list.remove(subscriber);
+   }//end unsubscribe
+
+   /**
+    * Starts the listener thread.  The thread is a daemon so it never keeps
+    * the process alive on its own.
+    */
+   public synchronized void start () {
+      if (_running)
+         return;
+      _running = true;
+      _thread = new Thread(this, "messenger-change-listener");
+      _thread.setDaemon(true);
+      _thread.start();
+   }//end start
+
+   /**
+    * Stops the listener thread and closes its connection.
+    */
+   public void stop () {
+      _running = false;
+      Thread thread;
+      synchronized (this) {
+         thread = _thread;
+         _thread = null;
+      }
+      if (thread != null) {
+         thread.interrupt();
+         try {
+            thread.join(POLL_INTERVAL_MS * 4);
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      try {
+         _connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }//end stop
+
+   public void run () {
+      while (_running) {
+         try {
+            poll();
+         }catch (SQLException e) {
+            if (!_running)
+               return;
+            System.err.println("Change listener: " + e.getMessage());
+            try {
+               Thread.sleep(POLL_INTERVAL_MS * 20);
+            }catch (InterruptedException ie) {
+               return;
+            }
+         }
+      }//end while
+   }//end run
+
+   /**
+    * Waits up to POLL_INTERVAL_MS for notifications and dispatches them.
+    */
+   private void poll () throws SQLException {
+      PGNotification[] notifications;
+      synchronized (this) {
+         notifications = ((PGConnection) _connection).getNotifications((int) POLL_INTERVAL_MS);
+      }
+      if (notifications == null)
+         return;
+      for (int i = 0; i < notifications.length; ++i) {
+         String channel = notifications[i].getName();
+         List<ChangeSubscriber> list = _subscribers.get(channel);
+         if (list == null)
+            continue;
+         String payload = notifications[i].getParameter();
+         if (payload != null && payload.length() == 0)
+            payload = null;
+         for (ChangeSubscriber subscriber : list) {
+            try {
+               subscriber.onChange(channel, payload);
+            }catch (RuntimeException e) {
+               System.err.println("Change subscriber failed: " + e.getMessage());
+            }
+         }
+      }
+   }//end poll
+
+   private void execute (String sql) throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      try {
+         stmt.execute (sql);
+      }finally {
+         stmt.close ();
+      }
+   }//end execute
+
+}//end ChangeListener
@@ -0,0 +1,30 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * Callback registered with a ChangeListener.  Implementations are invoked on
+ * the listener thread, so they must be quick and must not use the Messenger
+ * connection directly.
+ *
+ */
+public interface ChangeSubscriber {
+
+   /**
+    * Called once for every notification received on a subscribed channel.
+    *
+    * @param channel the channel the notification was sent on
+    * @param payload the ';' delimited payload, or null if the event has none
+    */
+   public void onChange(String channel, String payload);
+
+}//end ChangeSubscriber
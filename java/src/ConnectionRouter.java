@@ -0,0 +1,279 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes the statements of one Messenger session between the primary and a
+ * set of read replicas.  Writes and everything inside a transaction go to
+ * the primary.  Reads go round robin to the healthy replicas, except for a
+ * short window after the session last wrote, during which the session stays
+ * pinned to the primary so it always reads its own writes.
+ *
+ * A daemon thread checks every replica on a separate connection and takes
+ * it out of rotation when it is unreachable or lags too far behind.  A
+ * replica that comes back gets a new session connection; the old one is
+ * closed once the reads running on it are done.  For
+ * testing, a second local instance started as a streaming replica of the
+ * first works as a stand-in:
+ *
+ *   -Dmessenger.replicas=localhost:5433/mydb,localhost:5434/mydb
+ *   -Dmessenger.replicas.pinMs=5000 -Dmessenger.replicas.maxLagMs=2000
+ *
+ */
+public class ConnectionRouter {
+
+   private static final long CHECK_INTERVAL_MS = 5000;
+
+   /**
+    * One read replica and its health.
+    */
+   static class Replica {
+      final String url;
+      volatile Connection connection;
+      volatile boolean healthy = false;
+
+      Replica (String url) {
+         this.url = url;
+      }
+   }//end Replica
+
+   private final Connection _primary;
+   private final List<Replica> _replicas = new ArrayList<Replica>();
+   private final String _user;
+   private final String _passwd;
+   private final long _pinMs;
+   private final long _maxLagMs;
+
+   // the replica connections handed out by forRead and not yet done, and
+   // the replaced ones that are closed when their last read is done
+   private final Map<Connection, Integer> _inUse = new IdentityHashMap<Connection, Integer>();
+   private final List<Connection> _retired = new ArrayList<Connection>();
+
+   private final AtomicLong _next = new AtomicLong();
+   private volatile long _lastWrite = 0;
+   private volatile boolean _running = true;
+   private final Thread _checker;
+
+   private final AtomicLong _replicaReads = Metrics.counter("router.replica.reads");
+   private final AtomicLong _primaryReads = Metrics.counter("router.primary.reads");
+
+   /**
+    * Creates a router and starts the health checks.
+    *
+    * @param primary the Messenger primary connection
+    * @param replicaUrls the JDBC URLs of the replicas
+    * @param user the user name used to login to the databases
+    * @param passwd the user login password
+    * @param pinMs how long reads stay on the primary after a write
+    * @param maxLagMs replication lag above which a replica is not used
+    */
+   public ConnectionRouter (Connection primary, List<String> replicaUrls, String user, String passwd, long pinMs, long maxLagMs) {
+      this._primary = primary;
+      this._user = user;
+      this._passwd = passwd;
+      this._pinMs = pinMs;
+      this._maxLagMs = maxLagMs;
+      for (String url : replicaUrls)
+         _replicas.add(new Replica(url));
+      checkAll();
+      _checker = new Thread(new Runnable() {
+         public void run () {
+            while (_running) {
+               try {
+                  Thread.sleep(CHECK_INTERVAL_MS);
+               }catch (InterruptedException e) {
+                  return;
+               }
+               checkAll();
+            }
+         }
+      }, "messenger-replica-check");
+      _checker.setDaemon(true);
+      _checker.start();
+   }//end ConnectionRouter
+
+   /**
+    * Builds a router from the messenger.replicas system property, a comma
+    * separated list of host:port/dbname.
+    *
+    * @return the router, or null when no replicas are configured
+    */
+   public static ConnectionRouter fromSystemProperties (Connection primary, String user, String passwd) {
+      String replicas = System.getProperty("messenger.replicas", "").trim();
+      if (replicas.length() == 0)
+         return null;
+      List<String> urls = new ArrayList<String>();
+      for (String replica : replicas.split(","))
+         if (replica.trim().length() > 0)
+            urls.add(Messenger.jdbcUrl(replica.trim()));
+      return new ConnectionRouter(primary, urls, user, passwd,
+         Long.getLong("messenger.replicas.pinMs", 5000L),
+         Long.getLong("messenger.replicas.maxLagMs", 2000L));
+   }//end fromSystemProperties
+
+   /**
+    * Returns the connection for a write and pins the session to the primary.
+    *
+    * @return the primary connection
+    */
+   public Connection forWrite () {
+      _lastWrite = System.currentTimeMillis();
+      return _primary;
+   }//end forWrite
+
+   /**
+    * Returns the connection for a read.  A replica connection stays open
+    * until the read hands it back with done.
+    *
+    * @return a healthy replica, or the primary when the session is pinned,
+    *         a transaction is open or no replica is healthy
+    * @throws java.sql.SQLException when the transaction state cannot be read
+    */
+   public Connection forRead () throws SQLException {
+      if (!_primary.getAutoCommit() || System.currentTimeMillis() - _lastWrite < _pinMs) {
+         _primaryReads.incrementAndGet();
+         return _primary;
+      }
+      int n = _replicas.size();
+      long start = _next.getAndIncrement();
+      synchronized (this) {
+         for (int i = 0; i < n; ++i) {
+            Replica replica = _replicas.get((int) ((start + i) % n));
+            Connection conn = replica.connection;
+            if (replica.healthy && conn != null) {
+               Integer users = _inUse.get(conn);
+               _inUse.put(conn, users == null ? 1 : users + 1);
+               _replicaReads.incrementAndGet();
+               return conn;
+            }
+         }
+      }
+      _primaryReads.incrementAndGet();
+      return _primary;
+   }//end forRead
+
+   /**
+    * Hands back a connection returned by forRead once the read is over,
+    * its result set included.  A replaced replica connection is closed
+    * when its last read is done.
+    *
+    * @param conn the connection the read ran on
+    */
+   public synchronized void done (Connection conn) {
+      Integer users = _inUse.get(conn);
+      if (users == null)
+         return;
+      if (users > 1) {
+         _inUse.put(conn, users - 1);
+         return;
+      }
+      _inUse.remove(conn);
+      if (_retired.remove(conn))
+         closeQuietly(conn);
+   }//end done
+
+   /**
+    * Reports that a statement failed on a connection returned by forRead.
+    * A replica connection is taken out of rotation until the next check.
+    *
+    * @param conn the connection the statement ran on
+    */
+   public void failed (Connection conn) {
+      for (Replica replica : _replicas)
+         if (replica.connection == conn)
+            replica.healthy = false;
+   }//end failed
+
+   /**
+    * Stops the health checks and closes the replica connections.
+    */
+   public void close () {
+      _running = false;
+      _checker.interrupt();
+      synchronized (this) {
+         for (Replica replica : _replicas)
+            closeQuietly(replica.connection);
+         for (Connection conn : _retired)
+            closeQuietly(conn);
+         _retired.clear();
+      }
+   }//end close
+
+   /**
+    * Checks every replica: it must answer, be in recovery and lag less than
+    * the limit.  A replica that has replayed everything it received counts
+    * as current even if the primary has been idle.  A replica whose session
+    * connection broke gets a new one, and the old one is retired.
+    */
+   private void checkAll () {
+      for (Replica replica : _replicas) {
+         Connection probe = null;
+         try {
+            probe = DriverManager.getConnection(replica.url, _user, _passwd);
+            Statement stmt = probe.createStatement();
+            ResultSet rs = stmt.executeQuery(
+               "SELECT pg_is_in_recovery(), CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+               "ELSE coalesce(extract(epoch FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END");
+            boolean ok = rs.next() && rs.getString(1).startsWith("t") && rs.getDouble(2) <= _maxLagMs;
+            stmt.close();
+            if (ok && (replica.connection == null || !replica.healthy))
+               replace(replica, DriverManager.getConnection(replica.url, _user, _passwd));
+            replica.healthy = ok;
+         }catch (SQLException e) {
+            replica.healthy = false;
+         }finally {
+            closeQuietly(probe);
+         }
+      }
+   }//end checkAll
+
+   /**
+    * Swaps in the new session connection of a replica.  The old one is
+    * closed now when no read uses it, or else by done after the last one.
+    */
+   private synchronized void replace (Replica replica, Connection conn) {
+      if (!_running) {
+         closeQuietly(conn);
+         return;
+      }
+      Connection old = replica.connection;
+      replica.connection = conn;
+      if (old == null)
+         return;
+      if (_inUse.containsKey(old))
+         _retired.add(old);
+      else
+         closeQuietly(old);
+   }//end replace
+
+   private static void closeQuietly (Connection conn) {
+      if (conn == null)
+         return;
+      try {
+         conn.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }//end closeQuietly
+
+}//end ConnectionRouter
@@ -0,0 +1,223 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Batch variants of AddToContact, AddToBlock, RemoveContact and RemoveBlock.
+ * A batch of logins or phone numbers, in any formatting, is resolved with
+ * one set based query,
+ * written with one INSERT ... SELECT or DELETE, and runs in one transaction,
+ * so importing an address book costs three round trips instead of three or
+ * four per entry.
+ *
+ */
+public class ContactBatch {
+
+   /**
+    * Outcome of one batch entry.
+    */
+   public enum Outcome {
+      ADDED, REMOVED, ALREADY_PRESENT, NOT_PRESENT, NOT_FOUND, CONFLICT, SELF
+   }
+
+   /**
+    * Result of one batch entry, in input order.
+    */
+   public static class Entry {
+      public final String input;
+      public final String login;
+      public final Outcome outcome;
+
+      Entry (String input, String login, Outcome outcome) {
+         this.input = input;
+         this.login = login;
+         this.outcome = outcome;
+      }
+   }//end Entry
+
+   private ContactBatch () {
+   }
+
+   /**
+    * Adds users to the contact or block list of owner.  Entries that do not
+    * resolve to a user, that are on the opposite list or that are already
+    * present are reported and skipped.
+    *
+    * @param esql the Messenger to run on
+    * @param owner the login whose list is changed
+    * @param targets logins or phone numbers
+    * @param block true for the block list, false for the contact list
+    * @return one entry per target, in input order
+    * @throws java.sql.SQLException when the transaction failed
+    */
+   public static List<Entry> add (Messenger esql, final String owner, final List<String> targets, final boolean block) throws SQLException {
+      if (targets.isEmpty())
+         return new ArrayList<Entry>();
+      final String list = block ? "block_list" : "contact_list";
+      final String opposite = block ? "contact_list" : "block_list";
+      List<Entry> entries = esql.inTransaction(new TransactionCallback<List<Entry>>() {
+         public List<Entry> doInTransaction (Messenger esql) throws SQLException {
+            List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(QueryCatalog.LIST_TARGETS,
+               list, opposite, values(targets), quote(owner)));
+
+            List<Entry> result = new ArrayList<Entry>();
+            Set<String> seen = new HashSet<String>();
+            List<String> insert = new ArrayList<String>();
+            for (List<String> row : rows) {
+               String input = targets.get(Integer.parseInt(row.get(0)));
+               String login = row.get(1) == null ? null : row.get(1).trim();
+               Outcome outcome;
+               if (login == null) outcome = Outcome.NOT_FOUND;
+               else if (login.equals(owner)) outcome = Outcome.SELF;
+               else if (row.get(3).equals("1")) outcome = Outcome.CONFLICT;
+               else if (row.get(2).equals("1") || !seen.add(login)) outcome = Outcome.ALREADY_PRESENT;
+               else {
+                  outcome = Outcome.ADDED;
+                  insert.add(login);
+               }
+               result.add(new Entry(input, login, outcome));
+            }
+            if (!insert.isEmpty())
+               esql.executeUpdate(String.format(QueryCatalog.ADD_LIST_MEMBERS, list, quote(owner), in(insert)));
+            return result;
+         }
+      });
+      SocialGraph graph = esql.getSocialGraph();
+      if (graph != null)
+         for (Entry e : entries)
+            if (e.outcome == Outcome.ADDED) {
+               if (block) graph.setBlock(owner, e.login, true);
+               else graph.setContact(owner, e.login, true);
+            }
+      return entries;
+   }//end add
+
+   /**
+    * Removes users from the contact or block list of owner.
+    *
+    * @param esql the Messenger to run on
+    * @param owner the login whose list is changed
+    * @param targets logins or phone numbers
+    * @param block true for the block list, false for the contact list
+    * @return one entry per target, in input order
+    * @throws java.sql.SQLException when the transaction failed
+    */
+   public static List<Entry> remove (Messenger esql, final String owner, final List<String> targets, final boolean block) throws SQLException {
+      if (targets.isEmpty())
+         return new ArrayList<Entry>();
+      final String list = block ? "block_list" : "contact_list";
+      final String opposite = block ? "contact_list" : "block_list";
+      List<Entry> entries = esql.inTransaction(new TransactionCallback<List<Entry>>() {
+         public List<Entry> doInTransaction (Messenger esql) throws SQLException {
+            // the opposite list is not needed to remove, the column is ignored
+            List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(QueryCatalog.LIST_TARGETS,
+               list, opposite, values(targets), quote(owner)));
+
+            List<Entry> result = new ArrayList<Entry>();
+            Set<String> seen = new HashSet<String>();
+            List<String> delete = new ArrayList<String>();
+            for (List<String> row : rows) {
+               String input = targets.get(Integer.parseInt(row.get(0)));
+               String login = row.get(1) == null ? null : row.get(1).trim();
+               Outcome outcome;
+               if (login == null) outcome = Outcome.NOT_FOUND;
+               else if (row.get(2).equals("0") || !seen.add(login)) outcome = Outcome.NOT_PRESENT;
+               else {
+                  outcome = Outcome.REMOVED;
+                  delete.add(login);
+               }
+               result.add(new Entry(input, login, outcome));
+            }
+            if (!delete.isEmpty())
+               esql.executeUpdate(String.format(QueryCatalog.REMOVE_LIST_MEMBERS, list, quote(owner), in(delete)));
+            return result;
+         }
+      });
+      SocialGraph graph = esql.getSocialGraph();
+      if (graph != null)
+         for (Entry e : entries)
+            if (e.outcome == Outcome.REMOVED) {
+               if (block) graph.setBlock(owner, e.login, false);
+               else graph.setContact(owner, e.login, false);
+            }
+      return entries;
+   }//end remove
+
+   /**
+    * Splits user input on commas, semicolons and new lines.
+    *
+    * @param input the raw input
+    * @return the non blank entries
+    */
+   public static List<String> parse (String input) {
+      List<String> targets = new ArrayList<String>();
+      for (String part : input.split("[,;\\n]")) {
+         part = part.trim();
+         if (part.length() > 0)
+            targets.add(part);
+      }
+      return targets;
+   }//end parse
+
+   /**
+    * Prints the outcome of every entry and a summary line.
+    *
+    * @param entries the batch result
+    */
+   public static void print (List<Entry> entries) {
+      int changed = 0;
+      StringBuilder sb = new StringBuilder();
+      for (Entry e : entries) {
+         sb.append('\t').append(e.input).append('\t').append(e.outcome.name().toLowerCase().replace('_', ' '));
+         if (e.login != null && !e.login.equals(e.input))
+            sb.append(" (").append(e.login).append(')');
+         sb.append('\n');
+         if (e.outcome == Outcome.ADDED || e.outcome == Outcome.REMOVED)
+            ++changed;
+      }
+      sb.append(String.format("\t%d of %d entries applied\n", changed, entries.size()));
+      System.out.print(sb);
+   }//end print
+
+   private static String values (List<String> targets) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < targets.size(); ++i) {
+         if (i > 0)
+            sb.append(", ");
+         String phone = PhoneDirectory.normalize(targets.get(i));
+         sb.append('(').append(i).append(", ").append(quote(targets.get(i)))
+            .append(", ").append(phone == null ? "NULL" : quote(phone)).append(')');
+      }
+      return sb.toString();
+   }//end values
+
+   private static String in (List<String> logins) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < logins.size(); ++i) {
+         if (i > 0)
+            sb.append(", ");
+         sb.append(quote(logins.get(i)));
+      }
+      return sb.toString();
+   }//end in
+
+   private static String quote (String value) {
+      return "'" + value.replace("'", "''") + "'";
+   }//end quote
+
+}//end ContactBatch
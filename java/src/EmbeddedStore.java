@@ -0,0 +1,616 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * MessengerStore kept in-process in a local directory, without a database
+ * server.  It backs StoreConformance and the store benchmarks; the client
+ * cannot run on it, because Messenger opens a Postgres connection and its
+ * menus still query the other tables (status, contacts suggestions, phone
+ * lookups, retention) with SQL.
+ *
+ *   meta.log        users, list changes, chats and members, append-only,
+ *                   replayed into hash indexes when the store opens
+ *   chat-<id>.log   the messages and revisions of one chat, an append-only
+ *                   memory-mapped log
+ *
+ * Records of both logs are framed like the MessageJournal ones:
+ *
+ *   int length, int crc32 of the body, body
+ *
+ * A chat log is written in time order, so its records are also in msg_id
+ * and timestamp order.  Every 16th message goes into a sparse index of
+ * (position, msg_id), which finds a message by id with a binary search and
+ * a short scan, and lets a page that needs no filtering start next to its
+ * first row instead of at the start of the log.  Edits and deletes are
+ * revision records appended to the same log, like MESSAGE_REVISION.
+ *
+ * Writes reach the page cache when a method returns and the disk when the
+ * store is closed, or at once when it is opened with sync.  Without sync a
+ * crash can lose the last writes.  On open each log is read up to the first
+ * record that is incomplete or fails its checksum, and the rest of it is
+ * cleared, so a torn tail is dropped rather than replayed.  All methods are
+ * synchronized.
+ *
+ */
+public class EmbeddedStore implements MessengerStore {
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final int INITIAL_LOG_BYTES = 64 * 1024;
+   private static final int SPARSE_EVERY = 16;
+
+   // chat log record types
+   private static final byte MESSAGE = 1;
+   private static final byte REVISION = 2;
+
+   // meta log record types
+   private static final byte USER = 'U';
+   private static final byte LIST = 'L';
+   private static final byte CHAT = 'C';
+   private static final byte MEMBER = 'M';
+
+   /**
+    * A user and its lists.
+    */
+   static class User {
+      final String password;
+      final Set<String> contacts = new HashSet<String>();
+      final Set<String> blocks = new HashSet<String>();
+
+      User (String password) {
+         this.password = password;
+      }
+   }//end User
+
+   /**
+    * One message record read back from a chat log.
+    */
+   static class Record {
+      byte type;
+      int msgId;
+      long time;
+      String sender;
+      String text;
+      int next;
+   }//end Record
+
+   /**
+    * The memory-mapped log of one chat and its in-memory indexes.
+    */
+   static class ChatLog {
+      final int chatId;
+      String initSender;
+      long last = 0;
+      final Set<String> members = new HashSet<String>();
+      // everyone who ever posted, removed members included
+      final Set<String> senders = new HashSet<String>();
+      final Map<Integer, String> revised = new HashMap<Integer, String>();
+      final Set<Integer> deleted = new HashSet<Integer>();
+      final FileChannel channel;
+      MappedByteBuffer buffer;
+      int end = 0;
+      int count = 0;
+      int[] sparsePos = new int[16];
+      int[] sparseMsgId = new int[16];
+      int sparseCount = 0;
+
+      ChatLog (int chatId, File file) throws IOException {
+         this.chatId = chatId;
+         this.channel = new RandomAccessFile(file, "rw").getChannel();
+         this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_LOG_BYTES, channel.size()));
+      }
+   }//end ChatLog
+
+   private final File _dir;
+   private final boolean _sync;
+   private final Map<String, User> _users = new HashMap<String, User>();
+   private final Set<String> _phones = new HashSet<String>();
+   private final Map<Integer, ChatLog> _chats = new HashMap<Integer, ChatLog>();
+   private final SimpleDateFormat _time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+   private FileOutputStream _metaFile;
+   private DataOutputStream _meta;
+   private int _nextChatId = 1;
+   private int _nextMsgId = 1;
+
+   /**
+    * Opens the store in a directory, creating it if needed, and replays its
+    * logs.
+    *
+    * @param dir the store directory
+    * @param sync true to force every write to disk before returning
+    * @throws java.sql.SQLException when the logs cannot be read
+    */
+   public EmbeddedStore (File dir, boolean sync) throws SQLException {
+      this._dir = dir;
+      this._sync = sync;
+      try {
+         if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+         replayMeta(new File(dir, "meta.log"));
+         for (ChatLog chat : _chats.values())
+            replayChat(chat);
+      }catch (IOException e) {
+         throw new SQLException("Cannot open store " + dir + ": " + e.getMessage());
+      }
+   }//end EmbeddedStore
+
+   public synchronized void createUser (String login, String password, String phone) throws SQLException {
+      if (_users.containsKey(login))
+         throw new SQLException("Login " + login + " already exists");
+      if (_phones.contains(phone))
+         throw new SQLException("Phone number " + phone + " already exists");
+      writeMeta(USER, login, password, phone);
+      _users.put(login, new User(password));
+      _phones.add(phone);
+   }//end createUser
+
+   public synchronized boolean authenticate (String login, String password) {
+      User user = _users.get(login);
+      return user != null && user.password.equals(password);
+   }//end authenticate
+
+   public synchronized boolean setListMember (String owner, String member, boolean block, boolean present) throws SQLException {
+      User user = user(owner);
+      user(member);
+      Set<String> list = block ? user.blocks : user.contacts;
+      if (list.contains(member) == present)
+         return false;
+      writeMeta(LIST, owner, member, block ? "b" : "c", present ? "+" : "-");
+      if (present) list.add(member);
+      else list.remove(member);
+      return true;
+   }//end setListMember
+
+   public synchronized boolean isListMember (String owner, String member, boolean block) {
+      User user = _users.get(owner);
+      return user != null && (block ? user.blocks : user.contacts).contains(member);
+   }//end isListMember
+
+   public synchronized int createChat (String initSender, List<String> members) throws SQLException {
+      user(initSender);
+      for (String member : members)
+         user(member);
+      int chatId = _nextChatId;
+      writeMeta(CHAT, String.valueOf(chatId), initSender);
+      ChatLog chat = openChat(chatId);
+      chat.initSender = initSender;
+      chat.members.add(initSender);
+      for (String member : members) {
+         writeMeta(MEMBER, String.valueOf(chatId), member);
+         chat.members.add(member);
+      }
+      return chatId;
+   }//end createChat
+
+   public synchronized boolean isChatMember (int chatId, String login) {
+      ChatLog chat = _chats.get(chatId);
+      return chat != null && chat.members.contains(login);
+   }//end isChatMember
+
+   public synchronized boolean setChatMember (int chatId, String member, boolean present) throws SQLException {
+      ChatLog chat = chat(chatId);
+      if (present)
+         user(member);
+      if (chat.members.contains(member) == present)
+         return false;
+      writeMeta(MEMBER, String.valueOf(chatId), member, present ? "+" : "-");
+      if (present) chat.members.add(member);
+      else chat.members.remove(member);
+      return true;
+   }//end setChatMember
+
+   public synchronized List<List<String>> chatsOf (String login) {
+      List<Integer> ids = new ArrayList<Integer>();
+      for (ChatLog chat : _chats.values())
+         if (chat.members.contains(login))
+            ids.add(chat.chatId);
+      Collections.sort(ids);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int id : ids) {
+         ChatLog chat = _chats.get(id);
+         List<String> members = new ArrayList<String>(chat.members);
+         Collections.sort(members);
+         StringBuilder names = new StringBuilder();
+         for (String member : members)
+            names.append(names.length() == 0 ? "" : " ").append(member);
+         List<String> row = new ArrayList<String>(5);
+         row.add(String.valueOf(id));
+         row.add(chat.initSender);
+         row.add(names.toString());
+         row.add(String.valueOf(chat.count - chat.deleted.size()));
+         row.add(chat.last == 0 ? null : _time.format(new Date(chat.last)));
+         rows.add(row);
+      }
+      return rows;
+   }//end chatsOf
+
+   public synchronized void appendMessage (int chatId, String sender, String text) throws SQLException {
+      ChatLog chat = chat(chatId);
+      if (!chat.members.contains(sender))
+         throw new SQLException(sender + " is not a member of chat " + chatId);
+      int msgId = _nextMsgId++;
+      int pos = append(chat, MESSAGE, msgId, sender, text);
+      index(chat, pos, msgId);
+      chat.senders.add(sender);
+   }//end appendMessage
+
+   public synchronized List<List<String>> messagePage (int chatId, String reader, int offset, int limit) throws SQLException {
+      ChatLog chat = chat(chatId);
+      User user = _users.get(reader);
+      Set<String> blocks = user == null ? new HashSet<String>() : user.blocks;
+      List<List<String>> rows = new ArrayList<List<String>>();
+
+      // nothing to filter: the sparse index finds the first row directly;
+      // removed members keep their messages, so the senders are checked
+      int pos = 0, skip = offset;
+      if (chat.deleted.isEmpty() && !intersects(blocks, chat.senders)) {
+         int k = offset / SPARSE_EVERY;
+         if (k >= chat.sparseCount)
+            return rows;
+         pos = chat.sparsePos[k];
+         skip = offset - k * SPARSE_EVERY;
+      }
+      Record r = new Record();
+      while (pos < chat.end && rows.size() < limit) {
+         read(chat, pos, r);
+         pos = r.next;
+         if (r.type != MESSAGE || chat.deleted.contains(r.msgId) || blocks.contains(r.sender))
+            continue;
+         if (skip > 0) {
+            --skip;
+            continue;
+         }
+         List<String> row = new ArrayList<String>(4);
+         String text = chat.revised.get(r.msgId);
+         row.add(String.valueOf(r.msgId));
+         row.add(text == null ? r.text : text);
+         row.add(_time.format(new Date(r.time)));
+         row.add(r.sender);
+         rows.add(row);
+      }
+      return rows;
+   }//end messagePage
+
+   public synchronized boolean ownsMessage (int chatId, int msgId, String sender) throws SQLException {
+      ChatLog chat = chat(chatId);
+      Record r = find(chat, msgId);
+      return r != null && r.sender.equals(sender) && !chat.deleted.contains(msgId);
+   }//end ownsMessage
+
+   public synchronized void reviseMessage (int chatId, int msgId, String text) throws SQLException {
+      ChatLog chat = chat(chatId);
+      if (find(chat, msgId) == null)
+         throw new SQLException("No message " + msgId + " in chat " + chatId);
+      append(chat, REVISION, msgId, "", text);
+      if (text == null) chat.deleted.add(msgId);
+      else chat.revised.put(msgId, text);
+   }//end reviseMessage
+
+   public synchronized void close () {
+      for (ChatLog chat : _chats.values()) {
+         try {
+            chat.buffer.force();
+            chat.channel.close();
+         }catch (IOException e) {
+            // ignored.
+         }
+      }
+      try {
+         if (_meta != null)
+            _meta.close();
+      }catch (IOException e) {
+         // ignored.
+      }
+   }//end close
+
+   /**
+    * @return the number of messages in all chats
+    */
+   public synchronized long messageCount () {
+      long n = 0;
+      for (ChatLog chat : _chats.values())
+         n += chat.count;
+      return n;
+   }//end messageCount
+
+   private User user (String login) throws SQLException {
+      User user = _users.get(login);
+      if (user == null)
+         throw new SQLException("No user " + login);
+      return user;
+   }//end user
+
+   private ChatLog chat (int chatId) throws SQLException {
+      ChatLog chat = _chats.get(chatId);
+      if (chat == null)
+         throw new SQLException("No chat " + chatId);
+      return chat;
+   }//end chat
+
+   private ChatLog openChat (int chatId) throws SQLException {
+      try {
+         ChatLog chat = new ChatLog(chatId, new File(_dir, "chat-" + chatId + ".log"));
+         _chats.put(chatId, chat);
+         _nextChatId = Math.max(_nextChatId, chatId + 1);
+         return chat;
+      }catch (IOException e) {
+         throw new SQLException("Cannot open log of chat " + chatId + ": " + e.getMessage());
+      }
+   }//end openChat
+
+   /**
+    * Appends one record and returns its position.  The body and its
+    * checksum are written first and the length last.
+    */
+   private int append (ChatLog chat, byte type, int msgId, String sender, String text) throws SQLException {
+      byte[] s = sender.getBytes(UTF8);
+      byte[] t = text == null ? null : text.getBytes(UTF8);
+      int size = 1 + 4 + 8 + 2 + s.length + 4 + (t == null ? 0 : t.length);
+      try {
+         if (chat.end + 8 + size + 4 > chat.buffer.capacity()) {
+            chat.buffer.force();
+            chat.buffer = chat.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+               Math.max(2L * chat.buffer.capacity(), chat.end + 8L + size + 4));
+         }
+      }catch (IOException e) {
+         throw new SQLException("Cannot grow log of chat " + chat.chatId + ": " + e.getMessage());
+      }
+      MappedByteBuffer b = chat.buffer;
+      int pos = chat.end;
+      long now = System.currentTimeMillis();
+      b.position(pos + 8);
+      b.put(type).putInt(msgId).putLong(now).putShort((short) s.length).put(s);
+      if (t == null)
+         b.putInt(-1);
+      else
+         b.putInt(t.length).put(t);
+      b.putInt(pos + 4, crc(b, pos + 8, size));
+      b.putInt(pos, size);
+      chat.end = pos + 8 + size;
+      if (type == MESSAGE)
+         chat.last = now;
+      if (_sync)
+         b.force();
+      return pos;
+   }//end append
+
+   private void read (ChatLog chat, int pos, Record r) {
+      MappedByteBuffer b = chat.buffer;
+      int size = b.getInt(pos);
+      b.position(pos + 8);
+      r.type = b.get();
+      r.msgId = b.getInt();
+      r.time = b.getLong();
+      byte[] s = new byte[b.getShort()];
+      b.get(s);
+      r.sender = new String(s, UTF8);
+      int len = b.getInt();
+      if (len < 0)
+         r.text = null;
+      else {
+         byte[] t = new byte[len];
+         b.get(t);
+         r.text = new String(t, UTF8);
+      }
+      r.next = pos + 8 + size;
+   }//end read
+
+   /**
+    * Finds a message by id: a binary search of the sparse index, then a
+    * scan of at most SPARSE_EVERY messages.
+    */
+   private Record find (ChatLog chat, int msgId) {
+      int lo = 0, hi = chat.sparseCount - 1;
+      while (lo < hi) {
+         int mid = (lo + hi + 1) >>> 1;
+         if (chat.sparseMsgId[mid] <= msgId) lo = mid;
+         else hi = mid - 1;
+      }
+      if (chat.sparseCount == 0 || chat.sparseMsgId[lo] > msgId)
+         return null;
+      Record r = new Record();
+      int pos = chat.sparsePos[lo];
+      while (pos < chat.end) {
+         read(chat, pos, r);
+         pos = r.next;
+         if (r.type != MESSAGE)
+            continue;
+         if (r.msgId == msgId)
+            return r;
+         if (r.msgId > msgId)
+            break;
+      }
+      return null;
+   }//end find
+
+   private void index (ChatLog chat, int pos, int msgId) {
+      if (chat.count % SPARSE_EVERY == 0) {
+         if (chat.sparseCount == chat.sparsePos.length) {
+            chat.sparsePos = Arrays.copyOf(chat.sparsePos, chat.sparseCount * 2);
+            chat.sparseMsgId = Arrays.copyOf(chat.sparseMsgId, chat.sparseCount * 2);
+         }
+         chat.sparsePos[chat.sparseCount] = pos;
+         chat.sparseMsgId[chat.sparseCount] = msgId;
+         ++chat.sparseCount;
+      }
+      ++chat.count;
+   }//end index
+
+   /**
+    * Rebuilds the indexes of a chat from its log.  Reading stops at the
+    * first record that is incomplete or fails its checksum, and everything
+    * after it is zeroed.
+    */
+   private void replayChat (ChatLog chat) {
+      MappedByteBuffer b = chat.buffer;
+      Record r = new Record();
+      int pos = 0;
+      while (pos + 8 <= b.capacity()) {
+         int size = b.getInt(pos);
+         if (size <= 0 || pos + 8 + size > b.capacity() || crc(b, pos + 8, size) != b.getInt(pos + 4))
+            break;
+         read(chat, pos, r);
+         if (r.type == MESSAGE) {
+            index(chat, pos, r.msgId);
+            chat.senders.add(r.sender);
+            chat.last = Math.max(chat.last, r.time);
+            _nextMsgId = Math.max(_nextMsgId, r.msgId + 1);
+         }else if (r.text == null)
+            chat.deleted.add(r.msgId);
+         else
+            chat.revised.put(r.msgId, r.text);
+         pos = r.next;
+      }
+      chat.end = pos;
+      // a torn write can leave valid looking records further on
+      boolean cut = false;
+      for (int i = pos; i < b.capacity(); ++i)
+         if (b.get(i) != 0) {
+            b.put(i, (byte) 0);
+            cut = true;
+         }
+      if (cut)
+         b.force();
+   }//end replayChat
+
+   /**
+    * Replays the meta log and reopens it for appending.  The log is cut at
+    * the first record that is incomplete or fails its checksum.
+    */
+   private void replayMeta (File file) throws IOException, SQLException {
+      int good = 0;
+      if (file.exists()) {
+         byte[] bytes = new byte[(int) file.length()];
+         DataInputStream in = new DataInputStream(new FileInputStream(file));
+         try {
+            in.readFully(bytes);
+         }finally {
+            in.close();
+         }
+         ByteBuffer log = ByteBuffer.wrap(bytes);
+         while (good + 8 <= bytes.length) {
+            int size = log.getInt(good);
+            if (size <= 0 || good + 8 + size > bytes.length || crc(log, good + 8, size) != log.getInt(good + 4))
+               break;
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes, good + 8, size));
+            byte type = record.readByte();
+            String[] f = new String[record.readByte()];
+            for (int i = 0; i < f.length; ++i)
+               f[i] = record.readUTF();
+            applyMeta(type, f);
+            good += 8 + size;
+         }
+         if (good < bytes.length) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+               raf.setLength(good);
+            }finally {
+               raf.close();
+            }
+         }
+      }
+      _metaFile = new FileOutputStream(file, true);
+      _meta = new DataOutputStream(_metaFile);
+   }//end replayMeta
+
+   private void applyMeta (byte type, String[] f) throws SQLException {
+      switch (type) {
+      case USER:
+         _users.put(f[0], new User(f[1]));
+         _phones.add(f[2]);
+         break;
+      case LIST:
+         Set<String> list = f[2].equals("b") ? _users.get(f[0]).blocks : _users.get(f[0]).contacts;
+         if (f[3].equals("+")) list.add(f[1]);
+         else list.remove(f[1]);
+         break;
+      case CHAT:
+         ChatLog chat = openChat(Integer.parseInt(f[0]));
+         chat.initSender = f[1];
+         chat.members.add(f[1]);
+         break;
+      case MEMBER:
+         // members written by createChat carry no sign
+         if (f.length > 2 && f[2].equals("-")) _chats.get(Integer.parseInt(f[0])).members.remove(f[1]);
+         else _chats.get(Integer.parseInt(f[0])).members.add(f[1]);
+         break;
+      }
+   }//end applyMeta
+
+   private void writeMeta (byte type, String... fields) throws SQLException {
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+         DataOutputStream body = new DataOutputStream(bytes);
+         body.writeByte(type);
+         body.writeByte(fields.length);
+         for (String field : fields)
+            body.writeUTF(field);
+         ByteBuffer record = ByteBuffer.allocate(8 + bytes.size());
+         record.position(8);
+         record.put(bytes.toByteArray());
+         record.putInt(4, crc(record, 8, bytes.size()));
+         record.putInt(0, bytes.size());
+         _meta.write(record.array());
+         _meta.flush();
+         if (_sync)
+            _metaFile.getFD().sync();
+      }catch (IOException e) {
+         throw new SQLException("Cannot write meta log: " + e.getMessage());
+      }
+   }//end writeMeta
+
+   private static int crc (ByteBuffer b, int pos, int size) {
+      byte[] data = new byte[size];
+      ByteBuffer body = b.duplicate();
+      body.position(pos);
+      body.get(data);
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      return (int) crc.getValue();
+   }//end crc
+
+   private static boolean intersects (Set<String> a, Set<String> b) {
+      Set<String> small = a.size() < b.size() ? a : b;
+      Set<String> large = small == a ? b : a;
+      for (String s : small)
+         if (large.contains(s))
+            return true;
+      return false;
+   }//end intersects
+
+}//end EmbeddedStore
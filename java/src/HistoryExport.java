@@ -0,0 +1,124 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the history of a chat as a reader sees it, gzip compressed, in
+ * the layout of data/message.csv:
+ *
+ *   msg_id;msg_text;msg_timestamp;sender_login;chat_id
+ *
+ * A full export holds the current text of every message that is not
+ * deleted.  An export since a timestamp is for syncing a copy: it holds the
+ * messages sent or revised after it, and deleted ones with an empty text.
+ * Rows stream from COPY through the compressor to the file, so the size of
+ * a chat does not matter.
+ *
+ */
+public class HistoryExport {
+
+   private final Messenger _esql;
+   private long _rawBytes = 0;
+   private long _compressedBytes = 0;
+
+   public HistoryExport (Messenger esql) {
+      this._esql = esql;
+   }//end HistoryExport
+
+   /**
+    * Writes the history of a chat to a gzip file.
+    *
+    * @param chatId the chat
+    * @param reader the member exporting it, whose block list applies
+    * @param since only changes after this timestamp, or null for all
+    * @param file the file written
+    * @return the number of messages written
+    * @throws java.sql.SQLException when reader is not a member, the chats
+    *         are sharded or the export fails
+    */
+   public long export (int chatId, String reader, String since, File file) throws SQLException {
+      // the history is read from this database, not from the chat's shard
+      if (_esql.isSharded())
+         throw new SQLException("Export is not available with shards");
+      if (!_esql.getStore().isChatMember(chatId, reader))
+         throw new SQLException("You are not a member of chat " + chatId);
+      try {
+         CountingOutputStream compressed = new CountingOutputStream(new FileOutputStream(file));
+         CountingOutputStream raw = new CountingOutputStream(new GZIPOutputStream(compressed, 64 * 1024));
+         try {
+            return _esql.copyOut(HistoryQuery(chatId, reader, since), raw);
+         }finally {
+            raw.close();
+            _rawBytes = raw.count;
+            _compressedBytes = compressed.count;
+         }
+      }catch (IOException e) {
+         throw new SQLException("Cannot write " + file + ": " + e.getMessage());
+      }
+   }//end export
+
+   /**
+    * @return the size of the last export before compression
+    */
+   public long getRawBytes () {
+      return _rawBytes;
+   }//end getRawBytes
+
+   /**
+    * @return the size of the last export file
+    */
+   public long getCompressedBytes () {
+      return _compressedBytes;
+   }//end getCompressedBytes
+
+   /**
+    * Builds the export query of a chat, see the class comment.
+    */
+   public static String HistoryQuery (int chatId, String reader, String since) {
+      String changed = "r.deleted IS NOT TRUE";
+      if (since != null) {
+         String ts = "'" + since.replace("'", "''") + "'::timestamp";
+         changed = String.format("(m.msg_timestamp > %s OR r.rev_timestamp > %s)", ts, ts);
+      }
+      return String.format(QueryCatalog.HISTORY_EXPORT, chatId, changed, Messenger.BlockFilter(reader));
+   }//end HistoryQuery
+
+   /**
+    * Counts the bytes written through it.
+    */
+   static class CountingOutputStream extends FilterOutputStream {
+      long count = 0;
+
+      CountingOutputStream (OutputStream out) {
+         super(out);
+      }
+
+      public void write (int b) throws IOException {
+         out.write(b);
+         ++count;
+      }
+
+      public void write (byte[] b, int off, int len) throws IOException {
+         out.write(b, off, len);
+         count += len;
+      }
+   }//end CountingOutputStream
+
+}//end HistoryExport
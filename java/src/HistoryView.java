@@ -0,0 +1,279 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One user's view of a chat's history, open while the Messages Menu of the
+ * chat is.  The pages read are kept as one run of rows from the oldest
+ * message, so paging back over them, and the edit and delete prompts that
+ * show the history again, need no query.  While the user reads a page the
+ * next one is read on a background executor, with its own store and
+ * connection, so paging forward is mostly answered from memory as well.
+ *
+ * The run stays in step with the chat.  Edits and deletes of this view are
+ * applied to the rows directly.  message_event notifications of other
+ * sessions drop the rows from the changed message on, and an appended
+ * message makes the end of the run unknown again.  A prefetch that started
+ * before the rows changed is discarded.
+ *
+ * Configured with system properties:
+ *   messenger.page.size      messages per page (default 10)
+ *   messenger.page.prefetch  false reads every page on demand (default true)
+ *
+ */
+public class HistoryView implements ChangeSubscriber {
+
+   public static final int PAGE_SIZE = Math.max(1, Integer.getInteger("messenger.page.size", MessengerStore.PAGE_SIZE));
+   public static final boolean PREFETCH = Boolean.parseBoolean(System.getProperty("messenger.page.prefetch", "true"));
+
+   private final MessengerStore _store;
+
+   // reads the next page off the UI thread, null when prefetch is off
+   private final MessengerStore _background;
+   private final ExecutorService _executor;
+
+   private final int _chatId;
+   private final String _reader;
+   private final int _pageSize;
+
+   // the first _rows.size() messages the reader sees, in page order
+   private final List<List<String>> _rows = new ArrayList<List<String>>();
+
+   // true when _rows ends with the last message of the chat
+   private boolean _complete = false;
+
+   // changes on every edit, delete or eviction of _rows
+   private int _version = 0;
+
+   // the next rows being read in the background, starting at _aheadOffset
+   private Future<List<List<String>>> _ahead = null;
+   private int _aheadOffset = 0;
+   private int _aheadLimit = 0;
+   private int _aheadVersion = 0;
+
+   // messages changed by this view whose notification is still to come
+   private final Set<Integer> _own = new HashSet<Integer>();
+
+   private static final AtomicLong HITS = Metrics.counter("history.hits");
+   private static final AtomicLong READS = Metrics.counter("history.reads");
+   private static final AtomicLong PREFETCHED = Metrics.counter("history.prefetched");
+
+   public HistoryView (MessengerStore store, MessengerStore background, ExecutorService executor,
+                       int chatId, String reader, int pageSize) {
+      this._store = store;
+      this._background = executor == null ? null : background;
+      this._executor = executor;
+      this._chatId = chatId;
+      this._reader = reader;
+      this._pageSize = Math.max(1, pageSize);
+   }//end HistoryView
+
+   /**
+    * @return the messages per page
+    */
+   public int getPageSize () {
+      return _pageSize;
+   }//end getPageSize
+
+   /**
+    * @return true if the page can be shown without reading the chat
+    */
+   public synchronized boolean isCached (int index) {
+      return _complete || _rows.size() >= (index + 1) * _pageSize;
+   }//end isCached
+
+   /**
+    * @return true unless the page is known to end the history
+    */
+   public synchronized boolean hasMore (int index) {
+      return !_complete || _rows.size() > (index + 1) * _pageSize;
+   }//end hasMore
+
+   /**
+    * Returns one page, from the rows already read, from the prefetched rows
+    * or with one read of the rows still missing.
+    *
+    * @param index the page, 0 is the oldest
+    * @return up to the page size rows of MessengerStore.PAGE_COLUMNS
+    * @throws java.sql.SQLException when failed to read the chat
+    */
+   public List<List<String>> page (int index) throws SQLException {
+      int from = index * _pageSize, to = from + _pageSize;
+      boolean read = false;
+      while (true) {
+         Future<List<List<String>>> ahead;
+         int offset, limit, version;
+         synchronized (this) {
+            if (_complete || _rows.size() >= to) {
+               if (!read)
+                  HITS.incrementAndGet();
+               return new ArrayList<List<String>>(_rows.subList(Math.min(from, _rows.size()), Math.min(to, _rows.size())));
+            }
+            ahead = _ahead;
+            offset = _aheadOffset;
+            limit = _aheadLimit;
+            version = _aheadVersion;
+            _ahead = null;
+         }
+         if (ahead != null) {
+            List<List<String>> rows = await(ahead);
+            synchronized (this) {
+               if (rows != null && version == _version && offset == _rows.size()) {
+                  append(rows, limit);
+                  PREFETCHED.incrementAndGet();
+                  continue;
+               }
+            }
+         }
+         synchronized (this) {
+            offset = _rows.size();
+            version = _version;
+         }
+         // one more row than the page tells whether there is a next page
+         List<List<String>> rows = _store.messagePage(_chatId, _reader, offset, to + 1 - offset);
+         READS.incrementAndGet();
+         read = true;
+         synchronized (this) {
+            if (version == _version && offset == _rows.size())
+               append(rows, to + 1 - offset);
+         }
+      }
+   }//end page
+
+   private void append (List<List<String>> rows, int limit) {
+      _rows.addAll(rows);
+      _complete = rows.size() < limit;
+   }//end append
+
+   private static List<List<String>> await (Future<List<List<String>>> ahead) {
+      try {
+         return ahead.get();
+      }catch (ExecutionException e) {
+         return null;
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return null;
+      }
+   }//end await
+
+   /**
+    * Starts reading the page in the background unless it is read already
+    * or being read.
+    *
+    * @param index the page the user is likely to ask for next
+    */
+   public synchronized void prefetch (int index) {
+      if (_background == null || _ahead != null || isCached(index))
+         return;
+      final int offset = _rows.size();
+      final int limit = (index + 1) * _pageSize + 1 - offset;
+      try {
+         _ahead = _executor.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call () throws SQLException {
+               return _background.messagePage(_chatId, _reader, offset, limit);
+            }
+         });
+         _aheadOffset = offset;
+         _aheadLimit = limit;
+         _aheadVersion = _version;
+      }catch (RejectedExecutionException e) {
+         // shutting down, read on demand
+      }
+   }//end prefetch
+
+   /**
+    * Applies an edit or delete made through this view to the rows read.
+    *
+    * @param msgId the message
+    * @param text the new text, null when the message was deleted
+    */
+   public synchronized void revised (int msgId, String text) {
+      _own.add(msgId);
+      ++_version;
+      int i = indexOf(msgId);
+      if (i < 0)
+         return;
+      if (text == null) {
+         _rows.remove(i);
+      }else {
+         List<String> row = new ArrayList<String>(_rows.get(i));
+         row.set(1, text);
+         _rows.set(i, row);
+      }
+   }//end revised
+
+   /**
+    * Notes a message appended through this view, the history goes on past
+    * the rows read.
+    */
+   public synchronized void appended () {
+      _complete = false;
+   }//end appended
+
+   /**
+    * Keeps the rows in step with the message_event notifications of the
+    * chat, <op>;<chat_id>;<msg_id>;<sender_login>.
+    */
+   public synchronized void onChange (String channel, String payload) {
+      String[] fields = payload.split(";");
+      if (fields.length < 3 || !fields[1].equals(String.valueOf(_chatId)))
+         return;
+      if (fields[0].equals("I")) {
+         _complete = false;
+         return;
+      }
+      int msgId;
+      try {
+         msgId = Integer.parseInt(fields[2]);
+      }catch (NumberFormatException e) {
+         return;
+      }
+      if (_own.remove(msgId))
+         return;
+      int i = indexOf(msgId);
+      if (i < 0)
+         return;
+      _rows.subList(i, _rows.size()).clear();
+      _complete = false;
+      ++_version;
+   }//end onChange
+
+   private int indexOf (int msgId) {
+      String id = String.valueOf(msgId);
+      for (int i = 0; i < _rows.size(); ++i)
+         if (_rows.get(i).get(0).trim().equals(id))
+            return i;
+      return -1;
+   }//end indexOf
+
+   /**
+    * Cancels the background read, if any.
+    */
+   public synchronized void close () {
+      if (_ahead != null)
+         _ahead.cancel(false);
+      _ahead = null;
+   }//end close
+
+}//end HistoryView
@@ -0,0 +1,78 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out ids of the serial columns from blocks reserved in advance
+ * (hi/lo), so an insert carries its own id instead of reading it back with
+ * currval afterwards.  A block is reserved with one query that takes
+ * messenger.ids.block values from the sequence at once.  The sequence
+ * stays the one authority, so ids are unique across every process using
+ * the database, and inserts relying on the column default still work.
+ *
+ * Ids of a block that is not used up are lost when the process ends, so
+ * ids have gaps and are only ordered within one process.
+ *
+ */
+public class IdAllocator {
+
+   private final Messenger _esql;
+   private final int _block;
+   private final Map<String, int[]> _reserved = new HashMap<String, int[]>();
+   private final Map<String, Integer> _next = new HashMap<String, Integer>();
+
+   private final AtomicLong _reservations = Metrics.counter("ids.reservations");
+
+   /**
+    * @param esql the Messenger whose primary connection reserves the blocks
+    * @param block the number of ids reserved at once
+    */
+   public IdAllocator (Messenger esql, int block) {
+      this._esql = esql;
+      this._block = Math.max(1, block);
+   }//end IdAllocator
+
+   /**
+    * @param esql the Messenger whose primary connection reserves the blocks
+    * @return an allocator with the block size of messenger.ids.block
+    */
+   public static IdAllocator fromSystemProperties (Messenger esql) {
+      return new IdAllocator(esql, Integer.getInteger("messenger.ids.block", 32));
+   }//end fromSystemProperties
+
+   /**
+    * Returns the next id of a sequence, reserving a new block when the
+    * current one is used up.
+    *
+    * @param sequence the sequence of the serial column
+    * @return an id no other caller gets
+    * @throws java.sql.SQLException when a block cannot be reserved
+    */
+   public synchronized int next (String sequence) throws SQLException {
+      int[] ids = _reserved.get(sequence);
+      Integer next = _next.get(sequence);
+      if (ids == null || next == null || next >= ids.length) {
+         ids = _esql.reserveSeqVals(sequence, _block);
+         _reserved.put(sequence, ids);
+         next = 0;
+         _reservations.incrementAndGet();
+      }
+      _next.put(sequence, next + 1);
+      return ids[next];
+   }//end next
+
+}//end IdAllocator
@@ -0,0 +1,97 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * MessengerStore that sends new messages through a MessageJournal and
+ * everything else to the store behind it.  A sent message shows up in the
+ * history once the applier has inserted it, usually within a few
+ * milliseconds.
+ *
+ */
+public class JournaledStore implements MessengerStore {
+
+   // longest text MESSAGE.msg_text holds, varchar(300)
+   private static final int MAX_TEXT = 300;
+
+   private final MessengerStore _store;
+   private final MessageJournal _journal;
+
+   public JournaledStore (MessengerStore store, MessageJournal journal) {
+      this._store = store;
+      this._journal = journal;
+   }//end JournaledStore
+
+   public void createUser (String login, String password, String phone) throws SQLException {
+      _store.createUser(login, password, phone);
+   }//end createUser
+
+   public boolean authenticate (String login, String password) throws SQLException {
+      return _store.authenticate(login, password);
+   }//end authenticate
+
+   public boolean setListMember (String owner, String member, boolean block, boolean present) throws SQLException {
+      return _store.setListMember(owner, member, block, present);
+   }//end setListMember
+
+   public boolean isListMember (String owner, String member, boolean block) throws SQLException {
+      return _store.isListMember(owner, member, block);
+   }//end isListMember
+
+   public int createChat (String initSender, List<String> members) throws SQLException {
+      return _store.createChat(initSender, members);
+   }//end createChat
+
+   public boolean isChatMember (int chatId, String login) throws SQLException {
+      return _store.isChatMember(chatId, login);
+   }//end isChatMember
+
+   public boolean setChatMember (int chatId, String member, boolean present) throws SQLException {
+      return _store.setChatMember(chatId, member, present);
+   }//end setChatMember
+
+   public List<List<String>> chatsOf (String login) throws SQLException {
+      return _store.chatsOf(login);
+   }//end chatsOf
+
+   public void appendMessage (int chatId, String sender, String text) throws SQLException {
+      // rejected here, the applier could not insert it later
+      if (text.length() > MAX_TEXT)
+         throw new SQLException("value too long for type character varying(" + MAX_TEXT + ")");
+      _journal.append(chatId, sender, text);
+   }//end appendMessage
+
+   public List<List<String>> messagePage (int chatId, String reader, int offset, int limit) throws SQLException {
+      return _store.messagePage(chatId, reader, offset, limit);
+   }//end messagePage
+
+   public boolean ownsMessage (int chatId, int msgId, String sender) throws SQLException {
+      return _store.ownsMessage(chatId, msgId, sender);
+   }//end ownsMessage
+
+   public void reviseMessage (int chatId, int msgId, String text) throws SQLException {
+      _store.reviseMessage(chatId, msgId, text);
+   }//end reviseMessage
+
+   /**
+    * Gives the applier a few seconds to catch up, then closes the journal.
+    * Whatever is left is applied after the next start.
+    */
+   public void close () {
+      _journal.close(5000);
+      _store.close();
+   }//end close
+
+}//end JournaledStore
@@ -0,0 +1,490 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Durable local journal of sent messages in front of the MESSAGE table.
+ * append writes the message to a memory-mapped log segment and returns once
+ * the segment is forced to disk, so sending costs a local fsync instead of
+ * a database commit.  Appends arriving together share one fsync.  A
+ * background applier streams the journal into Postgres in batches.
+ *
+ * The journal is a directory of fixed-size segments named by the offset of
+ * their first byte.  A record never spans two segments:
+ *
+ *   int length, int crc32 of the body,
+ *   body: long time millis, int chat_id, short + sender, int + text
+ *
+ * Each batch is inserted in one transaction together with the journal
+ * offset it reaches, kept in JOURNAL_APPLIED under the node name.  After a
+ * restart the applier resumes from that offset, so every record is applied
+ * exactly once.  Fully applied segments are deleted.  On open the tail of
+ * the last segment is checked record by record and cut at the first record
+ * that is incomplete or fails its checksum.
+ *
+ * Configured with system properties:
+ *   messenger.journal               journal directory, unset disables it
+ *   messenger.journal.node          name of this journal (default host:dir)
+ *   messenger.journal.segmentBytes  segment size (default 16 MB)
+ *   messenger.journal.groupMs       fsync interval (default 2)
+ *   messenger.journal.batch         records per applied batch (default 500)
+ *
+ */
+public class MessageJournal {
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final String SUFFIX = ".seg";
+
+   private final File _dir;
+   private final String _node;
+   private final int _segmentBytes;
+   private final long _groupMs;
+   private final int _batch;
+   private final Connection _connection;
+
+   // current segment, written under the journal lock
+   private long _base;
+   private FileChannel _channel;
+   private MappedByteBuffer _segment;
+
+   // end of the last appended record, of the last forced record, and of
+   // the last record committed to Postgres
+   private volatile long _written;
+   private volatile long _flushed;
+   private volatile long _applied;
+
+   private volatile boolean _running = true;
+   private final Thread _flusher;
+   private final Thread _applier;
+
+   private final AtomicLong _appendedCount = Metrics.counter("journal.appended");
+   private final AtomicLong _appliedCount = Metrics.counter("journal.applied");
+   private final AtomicLong _fsyncCount = Metrics.counter("journal.fsyncs");
+
+   /**
+    * Opens the journal, recovers its tail and starts the flusher and the
+    * applier.
+    *
+    * @param dir the journal directory
+    * @param node the name the applied offset is kept under
+    * @param connection a connection owned by the applier
+    * @param segmentBytes the size of a segment
+    * @param groupMs the longest an append waits for its fsync to start
+    * @param batch the most records inserted per transaction
+    * @throws java.sql.SQLException when the journal or the offset cannot be read
+    */
+   public MessageJournal (File dir, String node, Connection connection, int segmentBytes, long groupMs, int batch) throws SQLException {
+      this._dir = dir;
+      this._node = node;
+      this._connection = connection;
+      this._segmentBytes = segmentBytes;
+      this._groupMs = Math.max(1, groupMs);
+      this._batch = Math.max(1, batch);
+      try {
+         if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+         _applied = readAppliedOffset();
+         recover();
+      }catch (IOException e) {
+         throw new SQLException("Cannot open journal " + dir + ": " + e.getMessage());
+      }
+      _flushed = _written;
+      _flusher = new Thread(new Runnable() {
+         public void run () { flushLoop(); }
+      }, "messenger-journal-flush");
+      _flusher.setDaemon(true);
+      _flusher.start();
+      _applier = new Thread(new Runnable() {
+         public void run () { applyLoop(); }
+      }, "messenger-journal-apply");
+      _applier.setDaemon(true);
+      _applier.start();
+   }//end MessageJournal
+
+   /**
+    * Opens the journal configured by the messenger.journal system
+    * properties.
+    *
+    * @param esql the Messenger to open the applier connection from
+    * @return the journal, or null when it is disabled
+    * @throws java.sql.SQLException when the journal cannot be opened
+    */
+   public static MessageJournal fromSystemProperties (Messenger esql) throws SQLException {
+      String dir = System.getProperty("messenger.journal", "").trim();
+      if (dir.length() == 0)
+         return null;
+      File file = new File(dir).getAbsoluteFile();
+      String node = System.getProperty("messenger.journal.node");
+      if (node == null) {
+         try {
+            node = InetAddress.getLocalHost().getHostName() + ":" + file.getPath();
+         }catch (IOException e) {
+            node = file.getPath();
+         }
+      }
+      return new MessageJournal(file, node, esql.openHelperConnection(),
+         Integer.getInteger("messenger.journal.segmentBytes", 16 << 20),
+         Long.getLong("messenger.journal.groupMs", 2L),
+         Integer.getInteger("messenger.journal.batch", 500));
+   }//end fromSystemProperties
+
+   /**
+    * Appends a message and waits until it is on disk.
+    *
+    * @param chatId the chat
+    * @param sender the sender login
+    * @param text the message text
+    * @throws java.sql.SQLException when the journal cannot be written
+    */
+   public void append (int chatId, String sender, String text) throws SQLException {
+      byte[] s = sender.getBytes(UTF8);
+      byte[] t = text.getBytes(UTF8);
+      int size = 8 + 4 + 2 + s.length + 4 + t.length;
+      if (8 + size > _segmentBytes)
+         throw new SQLException("Message does not fit in a journal segment");
+      long end;
+      synchronized (this) {
+         if (!_running)
+            throw new SQLException("Journal is closed");
+         int pos = (int) (_written - _base);
+         try {
+            if (pos + 8 + size > _segmentBytes) {
+               roll(_base + _segmentBytes);
+               pos = 0;
+            }
+         }catch (IOException e) {
+            throw new SQLException("Cannot roll journal segment: " + e.getMessage());
+         }
+         ByteBuffer b = _segment;
+         b.position(pos + 8);
+         b.putLong(System.currentTimeMillis()).putInt(chatId).putShort((short) s.length).put(s).putInt(t.length).put(t);
+         CRC32 crc = new CRC32();
+         ByteBuffer body = b.duplicate();
+         body.position(pos + 8);
+         body.limit(pos + 8 + size);
+         crc.update(bytes(body));
+         b.putInt(pos + 4, (int) crc.getValue());
+         b.putInt(pos, size);
+         end = _base + pos + 8 + size;
+         _written = end;
+         notifyAll();
+      }
+      _appendedCount.incrementAndGet();
+      awaitFlush(end);
+   }//end append
+
+   /**
+    * @return the number of journal bytes not yet in Postgres
+    */
+   public long lag () {
+      return _written - _applied;
+   }//end lag
+
+   /**
+    * Stops the threads after the applier caught up or the timeout passed,
+    * and closes the journal.  Records not applied yet stay in the journal
+    * and are applied after the next start.
+    *
+    * @param timeoutMs how long to wait for the applier
+    */
+   public void close (long timeoutMs) {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (_applied < _written && System.currentTimeMillis() < deadline) {
+         try {
+            Thread.sleep(10);
+         }catch (InterruptedException e) {
+            break;
+         }
+      }
+      synchronized (this) {
+         _running = false;
+         notifyAll();
+      }
+      _flusher.interrupt();
+      _applier.interrupt();
+      try {
+         _flusher.join(1000);
+         _applier.join(1000);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+         _segment.force();
+         try {
+            _channel.close();
+         }catch (IOException e) {
+            // ignored.
+         }
+      }
+      try {
+         _connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }//end close
+
+   /**
+    * Waits until the flusher forced the journal up to end.
+    */
+   private void awaitFlush (long end) throws SQLException {
+      synchronized (this) {
+         while (_flushed < end) {
+            if (!_running)
+               throw new SQLException("Journal closed before the message was written");
+            try {
+               wait(_groupMs);
+            }catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new SQLException("Interrupted while writing the journal");
+            }
+         }
+      }
+   }//end awaitFlush
+
+   /**
+    * Forces the journal every groupMs while there is something to force,
+    * which lets all appends of the interval share one fsync.
+    */
+   private void flushLoop () {
+      while (_running) {
+         MappedByteBuffer segment;
+         long target;
+         synchronized (this) {
+            while (_running && _flushed >= _written) {
+               try {
+                  wait();
+               }catch (InterruptedException e) {
+                  return;
+               }
+            }
+            segment = _segment;
+            target = _written;
+         }
+         try {
+            Thread.sleep(_groupMs);
+         }catch (InterruptedException e) {
+            return;
+         }
+         synchronized (this) {
+            // a roll forced the old segment already
+            segment = _segment;
+            target = _written;
+         }
+         segment.force();
+         _fsyncCount.incrementAndGet();
+         synchronized (this) {
+            _flushed = Math.max(_flushed, target);
+            notifyAll();
+         }
+      }
+   }//end flushLoop
+
+   /**
+    * Inserts the journal into Postgres batch by batch, each batch in one
+    * transaction with the new applied offset.
+    */
+   private void applyLoop () {
+      while (_running) {
+         try {
+            synchronized (this) {
+               while (_running && _applied >= _flushed)
+                  wait(100);
+            }
+            if (!_running)
+               return;
+            applyBatch();
+         }catch (InterruptedException e) {
+            return;
+         }catch (SQLException e) {
+            System.err.println("Journal: " + e.getMessage());
+            try {
+               _connection.rollback();
+               Thread.sleep(1000);
+            }catch (Exception ie) {
+               return;
+            }
+         }
+      }
+   }//end applyLoop
+
+   private void applyBatch () throws SQLException {
+      long offset = _applied;
+      long limit = _flushed;
+      StringBuilder values = new StringBuilder();
+      int count = 0;
+      try {
+         while (offset < limit && count < _batch) {
+            long base = offset - offset % _segmentBytes;
+            ByteBuffer b = segment(base);
+            int pos = (int) (offset - base);
+            int size = pos + 8 <= _segmentBytes ? b.getInt(pos) : 0;
+            if (size <= 0) {
+               // unused tail of a rolled segment
+               offset = base + _segmentBytes;
+               continue;
+            }
+            b.position(pos + 8);
+            long time = b.getLong();
+            int chatId = b.getInt();
+            byte[] s = new byte[b.getShort()];
+            b.get(s);
+            byte[] t = new byte[b.getInt()];
+            b.get(t);
+            if (values.length() > 0)
+               values.append(", ");
+            values.append(String.format("(%d, %s, to_timestamp(%d / 1000.0), %s, %d)",
+               count, quote(new String(t, UTF8)), time, quote(new String(s, UTF8)), chatId));
+            offset = base + pos + 8 + size;
+            ++count;
+         }
+      }catch (IOException e) {
+         throw new SQLException("Cannot read journal: " + e.getMessage());
+      }
+
+      _connection.setAutoCommit(false);
+      Statement stmt = _connection.createStatement();
+      try {
+         if (count > 0)
+            stmt.executeUpdate(String.format(QueryCatalog.JOURNAL_APPLY, values));
+         stmt.executeUpdate(String.format(QueryCatalog.JOURNAL_MARK_APPLIED, quote(_node), offset));
+         _connection.commit();
+      }finally {
+         stmt.close();
+      }
+      long before = _applied;
+      _applied = offset;
+      _appliedCount.addAndGet(count);
+      if (before / _segmentBytes != offset / _segmentBytes)
+         deleteAppliedSegments();
+   }//end applyBatch
+
+   private long readAppliedOffset () throws SQLException {
+      Statement stmt = _connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(String.format(QueryCatalog.JOURNAL_APPLIED, quote(_node)));
+         return rs.next() ? rs.getLong(1) : 0;
+      }finally {
+         stmt.close();
+      }
+   }//end readAppliedOffset
+
+   /**
+    * Finds the end of the journal: the last segment is scanned record by
+    * record and everything after the last valid record is zeroed.
+    */
+   private void recover () throws IOException {
+      long[] bases = segmentBases();
+      long base = bases.length == 0 ? _applied - _applied % _segmentBytes : bases[bases.length - 1];
+      open(base);
+      int pos = base < _applied ? (int) (_applied - base) : 0;
+      while (pos + 8 <= _segmentBytes) {
+         int size = _segment.getInt(pos);
+         if (size <= 0 || pos + 8 + size > _segmentBytes)
+            break;
+         ByteBuffer body = _segment.duplicate();
+         body.position(pos + 8);
+         body.limit(pos + 8 + size);
+         CRC32 crc = new CRC32();
+         crc.update(bytes(body));
+         if ((int) crc.getValue() != _segment.getInt(pos + 4))
+            break;
+         pos += 8 + size;
+      }
+      // a torn write can leave valid looking records further on
+      for (int i = pos; i < _segmentBytes; ++i)
+         if (_segment.get(i) != 0)
+            _segment.put(i, (byte) 0);
+      _segment.force();
+      _written = base + pos;
+   }//end recover
+
+   private void roll (long base) throws IOException {
+      _segment.force();
+      _channel.close();
+      open(base);
+   }//end roll
+
+   private void open (long base) throws IOException {
+      _base = base;
+      _channel = new RandomAccessFile(file(base), "rw").getChannel();
+      _segment = _channel.map(FileChannel.MapMode.READ_WRITE, 0, _segmentBytes);
+   }//end open
+
+   /**
+    * Returns a read-only view of a segment for the applier.
+    */
+   private ByteBuffer segment (long base) throws IOException {
+      synchronized (this) {
+         if (base == _base)
+            return _segment.duplicate();
+      }
+      RandomAccessFile file = new RandomAccessFile(file(base), "r");
+      try {
+         return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, _segmentBytes);
+      }finally {
+         file.close();
+      }
+   }//end segment
+
+   private void deleteAppliedSegments () {
+      for (long base : segmentBases())
+         if (base + _segmentBytes <= _applied && base != _base)
+            file(base).delete();
+   }//end deleteAppliedSegments
+
+   private long[] segmentBases () {
+      List<Long> bases = new ArrayList<Long>();
+      String[] names = _dir.list();
+      if (names != null)
+         for (String name : names)
+            if (name.endsWith(SUFFIX))
+               bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+      long[] result = new long[bases.size()];
+      for (int i = 0; i < result.length; ++i)
+         result[i] = bases.get(i);
+      Arrays.sort(result);
+      return result;
+   }//end segmentBases
+
+   private File file (long base) {
+      return new File(_dir, String.format("%020d%s", base, SUFFIX));
+   }//end file
+
+   private static byte[] bytes (ByteBuffer b) {
+      byte[] data = new byte[b.remaining()];
+      b.get(data);
+      return data;
+   }//end bytes
+
+   private static String quote (String value) {
+      return "'" + value.replace("'", "''") + "'";
+   }//end quote
+
+}//end MessageJournal
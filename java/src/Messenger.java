@@ -14,15 +14,25 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import org.postgresql.PGConnection;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -44,6 +54,58 @@ public class Messenger {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // admission control and rate limits shared by every session of the process
+   private static final AdmissionController ADMISSION = AdmissionController.fromSystemProperties();
+   // the user action of this thread: null outside of one, then whether its
+   // first statement was admitted
+   private static final ThreadLocal<Boolean> ACTION_ADMITTED = new ThreadLocal<Boolean>();
+   static final RateLimiter MESSAGE_USER_LIMIT = new RateLimiter("message.user",
+      Double.parseDouble(System.getProperty("messenger.rate.user", "2")), 10, 4096);
+   static final RateLimiter MESSAGE_CHAT_LIMIT = new RateLimiter("message.chat",
+      Double.parseDouble(System.getProperty("messenger.rate.chat", "10")), 30, 4096);
+   static final RateLimiter PAGE_USER_LIMIT = new RateLimiter("page.user",
+      Double.parseDouble(System.getProperty("messenger.rate.page", "5")), 20, 4096);
+
+   // driver options added to every connection URL, see jdbcUrl
+   private static final String JDBC_OPTIONS = System.getProperty("messenger.jdbc.options",
+      "prepareThreshold=3&binaryTransfer=true&reWriteBatchedInserts=true");
+
+   // connection parameters, kept for the helper connections
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // receives change notifications raised by other Messenger processes
+   private ChangeListener _changeListener = null;
+
+   // routes reads to replicas when messenger.replicas is set, null otherwise
+   private ConnectionRouter _router = null;
+
+   // deletes expired messages and chats in the background, null when off
+   private RetentionJob _retention = null;
+
+   // online, last seen and cached contact statuses, null when off
+   private PresenceService _presence = null;
+
+   // reads the next history page in the background, see HistoryView; null until used
+   private Messenger _prefetch = null;
+   private ExecutorService _prefetchExecutor = null;
+
+   // optional in-memory index of the contact and block lists
+   private SocialGraph _socialGraph = null;
+
+   // ids of new lists and chats, reserved in blocks
+   private final IdAllocator _ids = IdAllocator.fromSystemProperties(this);
+
+   // users, lists, chats and messages, Postgres unless replaced by setStore
+   private MessengerStore _store = new SqlStore(this);
+
+   // formats the result pages written to standard out
+   private final ResultRenderer _renderer = ResultRenderer.fromSystemProperties();
+
+   // runs the multi statement flows in one transaction each
+   private final TransactionTemplate _transactions = new TransactionTemplate(3, 50);
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -63,11 +125,15 @@ public class Messenger {
       System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         String url = jdbcUrl("localhost:" + dbport + "/" + dbname);
          System.out.println ("Connection URL: " + url + "\n");
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
+         this._router = ConnectionRouter.fromSystemProperties(this._connection, user, passwd);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -76,6 +142,20 @@ public class Messenger {
       }//end catch
    }//end Messenger
 
+   /**
+    * Creates a Messenger on its own connection with the parameters of esql,
+    * for reads on a background thread.  Reads are not routed to replicas.
+    *
+    * @param esql the Messenger to copy the connection parameters from
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   Messenger (Messenger esql) throws SQLException {
+      this._connection = esql.openHelperConnection();
+      this._url = esql._url;
+      this._user = esql._user;
+      this._passwd = esql._passwd;
+   }//end Messenger
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -84,14 +164,19 @@ public class Messenger {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = admit ();
+      try{
+         // creates a statement object
+         Statement stmt = connectionForWrite ().createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         stmt.executeUpdate (sql);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+      }finally{
+         release (start);
+      }
    }//end executeUpdate
 
    /**
@@ -104,37 +189,26 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = admit ();
+      Connection conn = connectionForRead ();
+      try{
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-         if(outputHeader){
-            for(int i = 1; i <= numCol; i++){
-            System.out.print(rsmd.getColumnName(i) + "\t");
-            }
-            System.out.println();
-            outputHeader = false;
-         }
-         for (int i=1; i<=numCol; ++i)
-	   System.out.print(rs.getString (i).trim() + "\t" );
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         // formats the whole page and writes it to standard out at once.
+         int rowCount = this._renderer.render (rs);
+         stmt.close ();
+         return rowCount;
+      }catch (SQLException e){
+         readFailed (conn);
+         throw e;
+      }finally{
+         readDone (conn);
+         release (start);
+      }
    }//end executeQuery
 
   public static boolean isInteger(String s) {
@@ -163,33 +237,113 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-      // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
+      long start = admit ();
+      Connection conn = connectionForRead ();
+      try{
+         // creates a statement object 
+         Statement stmt = conn.createStatement (); 
  
-      // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
+         // issues the query instruction 
+         ResultSet rs = stmt.executeQuery (query); 
  
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
+         /* 
+          ** obtains the metadata object for the returned result set.  The metadata 
+          ** contains row and column info. 
+          */ 
+         ResultSetMetaData rsmd = rs.getMetaData (); 
+         int numCol = rsmd.getColumnCount (); 
+         int rowCount = 0; 
  
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
-      stmt.close (); 
-      return result; 
+         // iterates through the result set and saves the data returned by the query. 
+         boolean outputHeader = false;
+         List<List<String>> result  = new ArrayList<List<String>>(); 
+         while (rs.next()){
+             List<String> record = new ArrayList<String>(); 
+            for (int i=1; i<=numCol; ++i) 
+               record.add(rs.getString (i)); 
+            result.add(record); 
+         }//end while 
+         stmt.close (); 
+         return result; 
+      }catch (SQLException e){
+         readFailed (conn);
+         throw e;
+      }finally{
+         readDone (conn);
+         release (start);
+      }
    }//end executeQueryAndReturnResult
 
+   /**
+    * Runs a QueryCatalog template that takes its values as ? parameters
+    * and returns its rows like executeQueryAndReturnResult.  The text of
+    * such a statement is the same for every value, so once it ran
+    * prepareThreshold times the driver keeps it prepared on the server and
+    * only binds the values.
+    *
+    * @param query the template
+    * @param params the values, in the order of the ?
+    * @return the rows of the result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executePreparedAndReturnResult (String query, Object... params) throws SQLException {
+      long start = admit ();
+      Connection conn = connectionForRead ();
+      try{
+         PreparedStatement stmt = conn.prepareStatement (query);
+         try{
+            for (int i = 0; i < params.length; ++i)
+               stmt.setObject (i + 1, params[i]);
+            ResultSet rs = stmt.executeQuery ();
+            int numCol = rs.getMetaData ().getColumnCount ();
+            List<List<String>> result = new ArrayList<List<String>>();
+            while (rs.next ()){
+               List<String> record = new ArrayList<String>(numCol);
+               for (int i = 1; i <= numCol; ++i)
+                  record.add (rs.getString (i));
+               result.add (record);
+            }
+            return result;
+         }finally{
+            stmt.close ();
+         }
+      }catch (SQLException e){
+         readFailed (conn);
+         throw e;
+      }finally{
+         readDone (conn);
+         release (start);
+      }
+   }//end executePreparedAndReturnResult
+
+   /**
+    * Streams the result of a query to out with COPY, as ';' delimited CSV
+    * without a header, the layout of data/*.csv.  Rows are never held in
+    * memory.
+    *
+    * @param query the SELECT to export
+    * @param out the stream written to, not closed
+    * @return the number of rows written
+    * @throws java.sql.SQLException when the query or the stream fails
+    */
+   public long copyOut (String query, OutputStream out) throws SQLException {
+      long start = admit ();
+      Connection conn = connectionForRead ();
+      try{
+         return conn.unwrap (PGConnection.class).getCopyAPI ().copyOut (
+            "COPY (" + query + ") TO STDOUT WITH (FORMAT csv, DELIMITER ';')", out);
+      }catch (IOException e){
+         throw new SQLException ("Export failed: " + e.getMessage ());
+      }catch (SQLException e){
+         readFailed (conn);
+         throw e;
+      }finally{
+         readDone (conn);
+         // a whole chat takes long on an idle server too
+         ADMISSION.release ();
+      }
+   }//end copyOut
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -199,20 +353,30 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+       long start = admit ();
+       Connection conn = connectionForRead ();
+       try{
+          // creates a statement object
+          Statement stmt = conn.createStatement ();
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          if(rs.next()){
+             rowCount++;
+          }//end while
+          stmt.close ();
+          return rowCount;
+       }catch (SQLException e){
+          readFailed (conn);
+          throw e;
+       }finally{
+          readDone (conn);
+          release (start);
+       }
    }
 
    /**
@@ -225,18 +389,478 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
+	long start = admit ();
 	Statement stmt = this._connection.createStatement ();
-	
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	try{
+		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+		if (rs.next())
+			return rs.getInt(1);
+		return -1;
+	}finally{
+		stmt.close ();
+		release (start);
+	}
    }
 
+   /**
+    * Takes count values from a sequence in one query, on the primary
+    * connection.  Nothing is inserted, see IdAllocator.
+    *
+    * @param sequence name of the DB sequence
+    * @param count the number of values
+    * @return the values, in the order the sequence handed them out
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int[] reserveSeqVals(String sequence, int count) throws SQLException {
+      long start = admit ();
+      Statement stmt = this._connection.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery (String.format(QueryCatalog.RESERVE_IDS, sequence, count));
+         int[] values = new int[count];
+         int n = 0;
+         while (rs.next () && n < count)
+            values[n++] = rs.getInt (1);
+         return n == count ? values : Arrays.copyOf (values, n);
+      }finally{
+         stmt.close ();
+         release (start);
+      }
+   }//end reserveSeqVals
+
+   /**
+    * @return the allocator of the ids of inserted rows
+    */
+   public IdAllocator getIdAllocator () {
+      return this._ids;
+   }//end getIdAllocator
+
+   /**
+    * @return the storage behind the handlers
+    */
+   public MessengerStore getStore () {
+      return this._store;
+   }//end getStore
+
+   /**
+    * Replaces the storage behind the handlers, e.g. with a ShardedStore.
+    *
+    * @param store the new storage
+    */
+   public void setStore (MessengerStore store) {
+      this._store = store;
+   }//end setStore
+
+   /**
+    * @return true when chats are spread over shards.  The chat tables of
+    *         this database are then not the ones the store reads, so the
+    *         handlers that run chat SQL of their own refuse to run.
+    */
+   public boolean isSharded () {
+      return this._store instanceof ShardedStore;
+   }//end isSharded
+
+   /**
+    * Replaces the replica router, closing the previous one.  null sends
+    * every statement to this Messenger's own connection.
+    *
+    * @param router the new router, or null
+    */
+   public void setRouter (ConnectionRouter router) {
+      if (this._router != null && this._router != router)
+         this._router.close();
+      this._router = router;
+   }//end setRouter
+
+   /**
+    * @return the renderer of the result pages of this session
+    */
+   public ResultRenderer getRenderer () {
+      return this._renderer;
+   }//end getRenderer
+
+   /**
+    * Methods to pick the connection of a statement.  Without replicas both
+    * return the primary connection.  currval and everything inside a
+    * transaction always use the primary.  Every read hands its connection
+    * back with readDone, so the router closes a replaced replica
+    * connection only once no statement runs on it.
+    */
+   private Connection connectionForWrite () {
+      return this._router == null ? this._connection : this._router.forWrite ();
+   }//end connectionForWrite
+
+   private Connection connectionForRead () throws SQLException {
+      return this._router == null ? this._connection : this._router.forRead ();
+   }//end connectionForRead
+
+   private void readFailed (Connection conn) {
+      if (this._router != null && conn != this._connection)
+         this._router.failed (conn);
+   }//end readFailed
+
+   private void readDone (Connection conn) {
+      if (this._router != null && conn != this._connection)
+         this._router.done (conn);
+   }//end readDone
+
+   /**
+    * Starts a user action on this thread.  Its first statement asks the
+    * admission controller, the later ones run without asking, so an action
+    * is either shed before it changes anything or runs to its end.  The
+    * action lasts until the next one begins; readChoice begins one for
+    * every menu choice.
+    */
+   public static void beginAction () {
+      ACTION_ADMITTED.set(Boolean.FALSE);
+   }//end beginAction
+
+   /**
+    * Asks the process wide admission controller to run a statement, unless
+    * the user action it belongs to was already admitted.
+    *
+    * @return the start time to hand to release
+    * @throws java.sql.SQLException when the statement is shed
+    */
+   private static long admit () throws SQLException {
+      Boolean action = ACTION_ADMITTED.get();
+      if (Boolean.TRUE.equals(action))
+         ADMISSION.enter();
+      else if (!ADMISSION.tryAdmit())
+         throw new SQLException("Server is busy, please try again");
+      else if (action != null)
+         ACTION_ADMITTED.set(Boolean.TRUE);
+      return System.nanoTime();
+   }//end admit
+
+   private static void release (long start) {
+      ADMISSION.release(System.nanoTime() - start);
+   }//end release
+
+   /**
+    * Builds the connection URL of a database with the driver options of
+    * messenger.jdbc.options.  Statements run more than prepareThreshold
+    * times are prepared on the server and reused, and binaryTransfer reads
+    * numbers and timestamps without a text round trip.
+    *
+    * @param location host:port/dbname
+    * @return the JDBC URL
+    */
+   public static String jdbcUrl (String location) {
+      String url = "jdbc:postgresql://" + location;
+      if (JDBC_OPTIONS.trim().length() == 0)
+         return url;
+      return url + (url.indexOf('?') < 0 ? "?" : "&") + JDBC_OPTIONS.trim();
+   }//end jdbcUrl
+
+   /**
+    * Opens another physical connection to the same database, for work that
+    * runs beside the user session.  The caller closes it.
+    *
+    * @return a new database connection
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public Connection openHelperConnection() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }//end openHelperConnection
+
+   /**
+    * Returns the physical connection used by this Messenger.
+    *
+    * @return the database connection
+    */
+   public Connection getConnection(){
+      return this._connection;
+   }//end getConnection
+
+   /**
+    * Runs the callback in one transaction at the isolation level of the
+    * connection, READ COMMITTED by default, retrying it on deadlocks.
+    *
+    * @param callback the statements to run
+    * @return the value returned by the callback
+    * @throws java.sql.SQLException when the transaction could not be committed
+    */
+   public <T> T inTransaction(TransactionCallback<T> callback) throws SQLException {
+      return this._transactions.execute(this, callback);
+   }//end inTransaction
+
+   /**
+    * Runs the callback in one transaction at the given isolation level.
+    * Serialization failures only happen above READ COMMITTED, so this is
+    * the way to a transaction that is retried on them.
+    *
+    * @param isolation a Connection.TRANSACTION_ level
+    * @param callback the statements to run
+    * @return the value returned by the callback
+    * @throws java.sql.SQLException when the transaction could not be committed
+    */
+   public <T> T inTransaction(int isolation, TransactionCallback<T> callback) throws SQLException {
+      return this._transactions.execute(this, isolation, callback);
+   }//end inTransaction
+
+   /**
+    * Methods to manage savepoints of the open transaction.  They are plain
+    * SQL addressed by name, so TransactionTemplate can nest them without
+    * holding on to java.sql.Savepoint objects.
+    *
+    * @param name the savepoint name
+    * @throws java.sql.SQLException when no transaction is open
+    */
+   public void setSavepoint(String name) throws SQLException {
+      executeUpdate("SAVEPOINT " + name);
+   }//end setSavepoint
+
+   public void rollbackToSavepoint(String name) throws SQLException {
+      executeUpdate("ROLLBACK TO SAVEPOINT " + name);
+   }//end rollbackToSavepoint
+
+   public void releaseSavepoint(String name) throws SQLException {
+      executeUpdate("RELEASE SAVEPOINT " + name);
+   }//end releaseSavepoint
+
+   /**
+    * Starts the change listener on its own connection.  Calling it again
+    * returns the running listener.
+    *
+    * @return the change listener of this process
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public ChangeListener startChangeListener() throws SQLException {
+      if (this._changeListener == null){
+         this._changeListener = new ChangeListener(this._url, this._user, this._passwd);
+         this._changeListener.start();
+      }//end if
+      return this._changeListener;
+   }//end startChangeListener
+
+   /**
+    * Subscribes to change notifications raised by any Messenger process,
+    * starting the change listener if needed.
+    *
+    * @param channel one of the ChangeListener channels
+    * @param subscriber the callback to invoke
+    * @throws java.sql.SQLException when failed to listen on the channel
+    */
+   public void subscribe(String channel, ChangeSubscriber subscriber) throws SQLException {
+      startChangeListener().subscribe(channel, subscriber);
+   }//end subscribe
+
+   /**
+    * Starts the retention job when messenger.retention is set.
+    *
+    * @return the retention job, or null when it is disabled
+    * @throws java.sql.SQLException when failed to make a connection, or
+    *         retention is enabled on sharded chats
+    */
+   public RetentionJob startRetentionJob() throws SQLException {
+      if (isSharded() && Boolean.getBoolean("messenger.retention"))
+         throw new SQLException("Retention is not available with shards");
+      if (this._retention == null){
+         this._retention = RetentionJob.fromSystemProperties(this);
+         if (this._retention != null)
+            this._retention.start();
+      }//end if
+      return this._retention;
+   }//end startRetentionJob
+
+   /**
+    * Starts the presence service unless messenger.presence is false, and
+    * subscribes it to the status, presence and contact list changes.
+    *
+    * @return the presence service, or null when it is disabled
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public PresenceService startPresence() throws SQLException {
+      if (this._presence == null){
+         PresenceService presence = PresenceService.fromSystemProperties(this);
+         if (presence == null)
+            return null;
+         presence.start();
+         this._presence = presence;
+         subscribe(PresenceService.STATUS_CHANNEL, presence);
+         subscribe(PresenceService.PRESENCE_CHANNEL, presence);
+         subscribe(ChangeListener.CONTACT_CHANNEL, presence);
+      }//end if
+      return this._presence;
+   }//end startPresence
+
+   /**
+    * @return the presence service, or null when it is not running
+    */
+   public PresenceService getPresence(){
+      return this._presence;
+   }//end getPresence
+
+   /**
+    * Opens a view of a chat's history for one reader, with the page size of
+    * messenger.page.size.  The view follows message_event notifications
+    * until closeHistory.
+    *
+    * @param chatId the chat
+    * @param reader the login reading the history
+    * @return the view
+    */
+   public HistoryView openHistory(int chatId, String reader){
+      HistoryView view = new HistoryView(this._store, prefetchStore(), this._prefetchExecutor,
+         chatId, reader, HistoryView.PAGE_SIZE);
+      try{
+         if (this._changeListener != null)
+            this._changeListener.subscribe(ChangeListener.MESSAGE_CHANNEL, view);
+      }catch (SQLException e){
+         // the view still sees its own changes
+         System.err.println("History notifications unavailable: " + e.getMessage());
+      }
+      return view;
+   }//end openHistory
+
+   /**
+    * Closes a view opened with openHistory.
+    *
+    * @param view the view
+    */
+   public void closeHistory(HistoryView view){
+      view.close();
+      if (this._changeListener != null)
+         this._changeListener.unsubscribe(ChangeListener.MESSAGE_CHANNEL, view);
+   }//end closeHistory
+
+   /**
+    * Returns the store the history prefetch reads from, a SqlStore on a
+    * connection of its own so the Messenger connection stays with the UI
+    * thread.  Sharded chats are read on demand only.
+    *
+    * @return the store, or null when there is no prefetch
+    */
+   private MessengerStore prefetchStore(){
+      if (!HistoryView.PREFETCH || !(this._store instanceof SqlStore || this._store instanceof JournaledStore))
+         return null;
+      if (this._prefetch == null){
+         try{
+            this._prefetch = new Messenger(this);
+         }catch (SQLException e){
+            System.err.println("History prefetch unavailable: " + e.getMessage());
+            return null;
+         }
+         this._prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+               Thread thread = new Thread(r, "messenger-prefetch");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }//end if
+      return this._prefetch.getStore();
+   }//end prefetchStore
+
+   /**
+    * Records session activity of a signed in user, when presence is on.
+    *
+    * @param login the user
+    */
+   public void touch(String login){
+      if (this._presence != null)
+         this._presence.touch(login);
+   }//end touch
+
+   /**
+    * Records that a user signed off, when presence is on.
+    *
+    * @param login the user
+    */
+   public void signOff(String login){
+      if (this._presence != null){
+         this._presence.unwatch(login);
+         this._presence.signOff(login);
+      }//end if
+   }//end signOff
+
+   /**
+    * Method to fetch the maintained summary of a chat.  The CHAT_SUMMARY row
+    * is kept current by triggers, so this is a single primary key lookup.
+    *
+    * @param chatId the chat to look up
+    * @return member count, message count and last message time, or null if
+    *         the chat does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String> getChatSummary(int chatId) throws SQLException {
+      List<List<String>> result = executeQueryAndReturnResult(String.format(QueryCatalog.CHAT_SUMMARY, chatId));
+      if (result.isEmpty())
+         return null;
+      return result.get(0);
+   }//end getChatSummary
+
+   /**
+    * Loads the in-memory social graph and keeps it current with the list
+    * changes made by other processes.  The graph listens before it reads
+    * the lists, so the changes made during the load are not lost.
+    *
+    * @return the loaded graph
+    * @throws java.sql.SQLException when failed to read the lists
+    */
+   public SocialGraph loadSocialGraph() throws SQLException {
+      SocialGraph graph = SocialGraph.loading();
+      subscribe(ChangeListener.CONTACT_CHANNEL, graph);
+      try{
+         graph.load(this._connection);
+      }catch (SQLException e){
+         startChangeListener().unsubscribe(ChangeListener.CONTACT_CHANNEL, graph);
+         throw e;
+      }
+      this._socialGraph = graph;
+      return graph;
+   }//end loadSocialGraph
+
+   /**
+    * Installs a social graph loaded elsewhere, e.g. by the warm-up.  It
+    * must have been subscribed to CONTACT_CHANNEL before it was loaded, see
+    * SocialGraph.loading.
+    *
+    * @param graph the loaded graph
+    */
+   public void setSocialGraph(SocialGraph graph) {
+      this._socialGraph = graph;
+   }//end setSocialGraph
+
+   /**
+    * @return the social graph, or null when it is not loaded
+    */
+   public SocialGraph getSocialGraph(){
+      return this._socialGraph;
+   }//end getSocialGraph
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._router != null){
+         this._router.close();
+         this._router = null;
+      }//end if
+      if (this._store != null){
+         this._store.close();
+         this._store = null;
+      }//end if
+      if (this._retention != null){
+         this._retention.stop();
+         this._retention = null;
+      }//end if
+      if (this._presence != null){
+         this._presence.stop();
+         this._presence = null;
+      }//end if
+      if (this._prefetchExecutor != null){
+         this._prefetchExecutor.shutdownNow();
+         this._prefetchExecutor = null;
+      }//end if
+      if (this._prefetch != null){
+         this._prefetch.cleanup();
+         this._prefetch = null;
+      }//end if
+      if (this._changeListener != null){
+         this._changeListener.stop();
+         this._changeListener = null;
+      }//end if
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -265,15 +889,64 @@ public class Messenger {
       Messenger esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         Class.forName ("org.postgresql.Driver");
          // instantiate the Messenger object and creates a physical
          // connection.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
          esql = new Messenger (dbname, dbport, user, "");
-	 String query = String.format("alter table message alter msg_timestamp set default now();");
-	 esql.executeUpdate(query);
+         try{
+            esql.startChangeListener();
+         }catch (SQLException e){
+            System.err.println("Change notifications unavailable: " + e.getMessage());
+         }
+         // -Dmessenger.presence=false turns online and last seen off, see PresenceService
+         try{
+            esql.startPresence();
+         }catch (SQLException e){
+            System.err.println("Presence unavailable: " + e.getMessage());
+         }
+         // -Dmessenger.shards=<port>/<dbname>,... spreads chats over databases, see ShardedStore
+         try{
+            ShardedStore shards = ShardedStore.fromSystemProperties(esql, user, "");
+            if (shards != null)
+               esql.setStore(shards);
+         }catch (SQLException e){
+            System.err.println("Shards unavailable: " + e.getMessage());
+         }
+         // -Dmessenger.retention=true enforces the retention policies, see RetentionJob;
+         // it deletes from this database, so it is not used with shards
+         try{
+            esql.startRetentionJob();
+         }catch (SQLException e){
+            System.err.println("Retention job unavailable: " + e.getMessage());
+         }
+         // -Dmessenger.journal=<dir> sends messages through a local journal, see MessageJournal;
+         // the applier writes to this database, so it is not used with shards
+         try{
+            MessageJournal journal = esql.getStore() instanceof SqlStore ? MessageJournal.fromSystemProperties(esql) : null;
+            if (journal != null)
+               esql.setStore(new JournaledStore(esql.getStore(), journal));
+         }catch (SQLException e){
+            System.err.println("Message journal unavailable: " + e.getMessage());
+         }
+         // warm caches and indexes before the first menu, see Warmup
+         Warmup warmup = Warmup.fromSystemProperties(esql);
+         if (warmup != null)
+            warmup.run();
+         // -Dmessenger.socialGraph=true answers list checks from memory
+         if (Boolean.getBoolean("messenger.socialGraph")){
+            long start = System.currentTimeMillis();
+            SocialGraph graph;
+            if (warmup != null && warmup.getSocialGraph() != null){
+               graph = warmup.getSocialGraph();
+               esql.setSocialGraph(graph);
+            }else
+               graph = esql.loadSocialGraph();
+            System.out.println(String.format("Social graph: %d users, %d list entries, %d KB, loaded in %d ms",
+               graph.userCount(), graph.edgeCount(), graph.footprintBytes() / 1024, System.currentTimeMillis() - start));
+         }
 
          boolean keepon = true;
          while(keepon) {
@@ -294,6 +967,7 @@ public class Messenger {
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
+		esql.touch(authorisedUser);
 		createSpace();
                 System.out.println("MAIN MENU");
                 System.out.println("---------");
@@ -302,6 +976,7 @@ public class Messenger {
                 System.out.println("3. Start, leave, or modify a chat");
                 System.out.println("4. Browse active chats");
                 System.out.println("5. Delete account");
+                System.out.println("6. Update status");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
                 switch (readChoice()){
@@ -314,16 +989,26 @@ public class Messenger {
                        System.out.println("1. Browse Contacts List");
                        System.out.println("2. Add to Contacts List");
                        System.out.println("3. Remove from Contacts List");
+                       System.out.println("4. Suggest Contacts");
+                       System.out.println("5. Add several contacts");
+                       System.out.println("6. Remove several contacts");
+                       System.out.println("7. Find contacts by phone number");
                        System.out.println(".........................");
                        System.out.println("9. Go back to Main Menu");
                        switch(readChoice()){
                            case 1: ListContacts(esql, authorisedUser); break;
                            case 2: AddToContact(esql, authorisedUser); break;
                            case 3: RemoveContact(esql, authorisedUser); break;
+                           case 4: SuggestContacts(esql, authorisedUser); break;
+                           case 5: BatchListChange(esql, authorisedUser, false, true); break;
+                           case 6: BatchListChange(esql, authorisedUser, false, false); break;
+                           case 7: FindByPhone(esql, authorisedUser); break;
                            case 9: contactMenu = false; break;
                            default: System.out.println("Unrecognized choice!"); break;
                        }
                      }
+                     if (esql.getPresence() != null)
+                        esql.getPresence().unwatch(authorisedUser);
                      break;
                    case 2:
                      boolean blockMenu = true;
@@ -334,12 +1019,16 @@ public class Messenger {
                        System.out.println("1. Browse Blocks List");
                        System.out.println("2. Add to Blocks List");
                        System.out.println("3. Remove from Blocks List");
+                       System.out.println("4. Block several users");
+                       System.out.println("5. Unblock several users");
                        System.out.println(".........................");
                        System.out.println("9. Go back to Main Menu");
                        switch(readChoice()){
                            case 1: ListBlocks(esql, authorisedUser); break;
                            case 2: AddToBlock(esql, authorisedUser); break;
                            case 3: RemoveBlock(esql, authorisedUser); break;
+                           case 4: BatchListChange(esql, authorisedUser, true, true); break;
+                           case 5: BatchListChange(esql, authorisedUser, true, false); break;
                            case 9: blockMenu = false; break;
                            default: System.out.println("Unrecognized choice!"); break;
                        }
@@ -348,10 +1037,12 @@ public class Messenger {
 		   case 3: createSpace(); StartOrLeaveChat(esql, authorisedUser); break;
 		   case 4: createSpace(); ListChats(esql, authorisedUser); break;
 		   case 5: if(DeleteUser(esql, authorisedUser) == 1){usermenu = false;} break;
+		   case 6: UpdateStatus(esql, authorisedUser); break;
                    case 9: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
+              esql.signOff(authorisedUser);
             }
          }//end while
       }catch(Exception e) {
@@ -363,6 +1054,9 @@ public class Messenger {
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
                System.out.println("Done\n\nBye !");
+               String metrics = Metrics.format();
+               if (metrics.length() > 0)
+                  System.out.println("Metrics: " + metrics);
             }//end if
          }catch (Exception e) {
             // ignored.
@@ -388,6 +1082,7 @@ public class Messenger {
          System.out.print("Please make your choice: ");
          try { // read the integer, parse it and break.
             input = Integer.parseInt(in.readLine());
+            beginAction();
             break;
          }catch (Exception e) {
             System.out.println("Your input is invalid!");
@@ -407,7 +1102,7 @@ public class Messenger {
          String login = in.readLine();
 	 if(login.equals(""))
 	   return;
-	 String check = String.format("SELECT login FROM USR WHERE login = '%s'", login);
+	 String check = String.format(QueryCatalog.USER_BY_LOGIN, login);
 	 int login_exist = esql.executeQuery(check);
 	 if(login_exist > 0)
 	 {
@@ -421,15 +1116,8 @@ public class Messenger {
          System.out.print("\tEnter user phone(blank to go back): ");
          String phone = in.readLine();
 
-	 //Creating empty contact\block lists for a user
-	 esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-	 int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-	 int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         
-	 String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-
-         esql.executeUpdate(query);
+	 //creates the user with empty contact and block lists
+	 esql.getStore().createUser(login, password, phone);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -448,12 +1136,14 @@ public class Messenger {
 
       if(answer.equals("y"))
       {
-	String query = String.format("SELECT l.member AS user FROM chat_list l WHERE l.member = '%s' UNION SELECT m.sender_login AS user FROM message m WHERE m.sender_login = '%s' UNION SELECT u.list_member AS user FROM user_list_contains u WHERE u.list_member = '%s'", authorisedUser, authorisedUser, authorisedUser);
+	String query = String.format(QueryCatalog.USER_REFERENCES, authorisedUser);
 	int userNum = esql.executeQuery(query);
 	if(userNum < 1)
 	{
-	  query = String.format("DELETE FROM usr WHERE login = '%s'", authorisedUser);
+	  query = String.format(QueryCatalog.DELETE_USER, authorisedUser);
 	  esql.executeUpdate(query);
+	  if(esql.getSocialGraph() != null)
+	    esql.getSocialGraph().removeUser(authorisedUser);
 	  String output = String.format("\t%s succesfully removed user %s!\n", authorisedUser, authorisedUser);
 	  System.out.print(output);
 	  return 1;
@@ -487,10 +1177,10 @@ public class Messenger {
          String password = in.readLine();
 	 if(password.equals(""))
 	   return null;
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (esql.getStore().authenticate(login, password)){
+		esql.touch(login);
 		return login;
+	 }
 	 else
 	   System.out.print("\tUser name or password entered is not valid\n");
          return null;
@@ -513,23 +1203,31 @@ public class Messenger {
           }
           
           //we need to validate if the user exists, return error if not
-          String query = String.format("SELECT * FROM Usr WHERE login = '%s'", targetUser);
+          String query = String.format(QueryCatalog.USER_BY_LOGIN, targetUser);
           int userNum = esql.executeQuery(query);
           if(userNum != 1){
               System.out.print("\tError, can not find user!\n");
               return;
           }
 
-	  query = String.format("SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.block_list = l.list_id AND l.list_member = '%s'", authorisedUser, targetUser);
-	  int blockNum = esql.executeQuery(query);
-	  if(blockNum > 0){
+	  SocialGraph graph = esql.getSocialGraph();
+	  boolean blocked;
+	  if(graph != null && graph.knows(authorisedUser))
+	    blocked = graph.isBlocked(authorisedUser, targetUser);
+	  else{
+	    query = String.format(QueryCatalog.LIST_MEMBER, authorisedUser, QueryCatalog.BLOCK_LIST, targetUser);
+	    blocked = esql.executeQuery(query) > 0;
+	  }
+	  if(blocked){
 	    System.out.println("\tError, user is a member of your block list");
 	   return;
 	  }
           
           //we need to get the contact list of the current user, and add the target to that list
-          query = String.format("INSERT INTO user_list_contains (list_id, list_member) SELECT contact_list, '%s' FROM usr WHERE login = '%s'", targetUser, authorisedUser);
+          query = String.format(QueryCatalog.ADD_LIST_MEMBER, QueryCatalog.CONTACT_LIST, targetUser, authorisedUser);
           esql.executeUpdate(query);
+          if(graph != null)
+            graph.setContact(authorisedUser, targetUser, true);
           String output = String.format("\t%s succesfully added user %s!\n", authorisedUser, targetUser);
           System.out.print(output);
           return;
@@ -551,23 +1249,31 @@ public class Messenger {
       }
       
       //we need to validate if the user exists, return error if not
-      String query = String.format("SELECT * FROM Usr WHERE login = '%s'", targetUser);
+      String query = String.format(QueryCatalog.USER_BY_LOGIN, targetUser);
       int userNum = esql.executeQuery(query);
       if(userNum != 1){
         System.out.print("\tError, can not find user!\n");
         return;
       }
 
-      query = String.format("SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.contact_list = l.list_id AND l.list_member = '%s'", authorisedUser, targetUser);
-      int blockNum = esql.executeQuery(query);
-      if(blockNum > 0){
+      SocialGraph graph = esql.getSocialGraph();
+      boolean contact;
+      if(graph != null && graph.knows(authorisedUser))
+	contact = graph.isContact(authorisedUser, targetUser);
+      else{
+	query = String.format(QueryCatalog.LIST_MEMBER, authorisedUser, QueryCatalog.CONTACT_LIST, targetUser);
+	contact = esql.executeQuery(query) > 0;
+      }
+      if(contact){
 	System.out.println("\tError, user is a member of your contact list");
 	return;
       }
       
       //we need to get the contact list of the current user, and add the target to that list
-      query = String.format("INSERT INTO user_list_contains (list_id, list_member) SELECT block_list, '%s' FROM usr WHERE login = '%s'", targetUser, authorisedUser);
+      query = String.format(QueryCatalog.ADD_LIST_MEMBER, QueryCatalog.BLOCK_LIST, targetUser, authorisedUser);
       esql.executeUpdate(query);
+      if(graph != null)
+	graph.setBlock(authorisedUser, targetUser, true);
       String output = String.format("\t%s succesfully added user %s!\n", authorisedUser, targetUser);
       System.out.print(output);
       return;
@@ -580,14 +1286,28 @@ public class Messenger {
 
    public static void ListContacts(Messenger esql, String authorisedUser){
      try{
-       String query = String.format("SELECT login, status FROM usr WHERE login IN (SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.contact_list = l.list_id)", authorisedUser);
-       esql.executeQueryAndPrintResult(query);
-       int num = esql.executeQuery(query);
+       PresenceService presence = esql.getPresence();
+       if (presence == null){
+         String query = String.format(QueryCatalog.CONTACT_STATUSES, authorisedUser);
+         esql.executeQueryAndPrintResult(query);
+         int num = esql.executeQuery(query);
+         if(num < 1)
+           System.out.print("\tContact List is empty\n");
+         return;
+       }
+       // statuses and presence come from the cache, changes of these contacts are printed while in this menu
+       int num = esql.getRenderer().render(Arrays.asList(PresenceService.CONTACT_COLUMNS), presence.contacts(authorisedUser));
        if(num < 1)
        {
 	 System.out.print("\tContact List is empty\n");
 	 return;
        }
+       presence.watch(authorisedUser, new ChangeSubscriber() {
+         public void onChange(String channel, String login) {
+           System.out.println(String.format("\n\t* %s %s", login,
+              PresenceService.STATUS_CHANNEL.equals(channel) ? "changed status" : "went online or offline"));
+         }
+       });
      }
      catch(Exception e){
        System.err.println(e.getMessage());
@@ -595,9 +1315,30 @@ public class Messenger {
      }
    }//end
 
+   /*
+    * Replaces the status shown to the users who have this user as a contact
+    **/
+   public static void UpdateStatus(Messenger esql, String authorisedUser){
+     try{
+       System.out.print("\tEnter new status, up to 140 characters(blank to go back): ");
+       String status = in.readLine();
+       if(status.equals(""))
+         return;
+       if(status.length() > 140){
+         System.out.print("\tError, status is longer than 140 characters!\n");
+         return;
+       }
+       esql.executeUpdate(String.format(QueryCatalog.SET_STATUS, status.replace("'", "''"), authorisedUser));
+       System.out.print("\tStatus updated\n");
+     }
+     catch(Exception e){
+       System.err.println(e.getMessage());
+     }
+   }//end
+
   public static void ListBlocks(Messenger esql, String authorisedUser){
     try{
-      String query = String.format("SELECT login FROM usr WHERE login IN (SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.block_list = l.list_id)", authorisedUser);
+      String query = String.format(QueryCatalog.BLOCKED_USERS, authorisedUser);
       esql.executeQueryAndPrintResult(query);
       int num = esql.executeQuery(query);
        if(num < 1)
@@ -612,17 +1353,94 @@ public class Messenger {
     }
   }
 
+  /*
+   * Adds or removes many users of the contact or block list at once
+   * Entries are logins or phone numbers separated by commas
+   **/
+  public static void BatchListChange(Messenger esql, String authorisedUser, boolean block, boolean add){
+    try{
+      System.out.println("\tEnter logins or phone numbers separated by commas(blank to go back): ");
+      String input = in.readLine();
+      List<String> targets = ContactBatch.parse(input);
+      if(targets.isEmpty()){
+        return;
+      }
+      if(add)
+        ContactBatch.print(ContactBatch.add(esql, authorisedUser, targets, block));
+      else
+        ContactBatch.print(ContactBatch.remove(esql, authorisedUser, targets, block));
+    }
+    catch(Exception e){
+      System.err.println(e.getMessage());
+      return;
+    }
+  }
+
+  /*
+   * Looks up users by phone number in any formatting, e.g. a pasted address
+   * book, and offers to add the users found as contacts
+   **/
+  public static void FindByPhone(Messenger esql, String authorisedUser){
+    try{
+      System.out.println("\tEnter phone numbers separated by commas(blank to go back): ");
+      List<String> phones = ContactBatch.parse(in.readLine());
+      if(phones.isEmpty()){
+        return;
+      }
+      List<String> logins = PhoneDirectory.discover(esql, phones);
+      List<String> found = new ArrayList<String>();
+      for(int i = 0; i < phones.size(); i++){
+        String login = logins.get(i);
+        System.out.print("\t" + phones.get(i) + "\t" + (login == null ? "not found" : login) + "\n");
+        if(login != null && !login.equals(authorisedUser))
+          found.add(login);
+      }
+      if(found.isEmpty()){
+        return;
+      }
+      System.out.print("\tAdd the users found to your contacts?(y/n): ");
+      if(in.readLine().equals("y"))
+        ContactBatch.print(ContactBatch.add(esql, authorisedUser, found, false));
+    }
+    catch(Exception e){
+      System.err.println(e.getMessage());
+      return;
+    }
+  }
+
+  public static void SuggestContacts(Messenger esql, String authorisedUser){
+    SocialGraph graph = esql.getSocialGraph();
+    if(graph == null)
+    {
+      System.out.print("\tSuggestions need the social graph, start with -Dmessenger.socialGraph=true\n");
+      return;
+    }
+    String[] suggestions = graph.suggestContacts(authorisedUser, 10);
+    if(suggestions.length < 1)
+    {
+      System.out.print("\tNo suggestions yet\n");
+      return;
+    }
+    for(int i = 0; i < suggestions.length; i++){
+      String[] mutual = graph.mutualContacts(authorisedUser, suggestions[i]);
+      System.out.print("\t" + suggestions[i] + "\t(" + mutual.length + " mutual contacts)\n");
+    }
+  }
+
   public static void ListChats(Messenger esql, String authorisedUser){
      try{
-       String query = String.format("SELECT l.chat_id, l.member FROM chat_list l, chat c WHERE c.init_sender = '%s' AND c.chat_id = l.chat_id", authorisedUser);
-       esql.executeQuery(query);
-       int num = esql.executeQuery(query);
-       if(num < 1)
+       //chats the user started, the only ones the user may open here
+       List<List<String>> chats = esql.getStore().chatsOf(authorisedUser);
+       Set<String> owned = new HashSet<String>();
+       for (List<String> chat : chats)
+	 if (chat.get(1).trim().equals(authorisedUser))
+	   owned.add(chat.get(0).trim());
+       if(owned.isEmpty())
        {
 	 System.out.print("\tChat List is empty\n");
 	 return;
        }
-       ShowChat(esql, authorisedUser);
+       esql.getRenderer().render(Arrays.asList(MessengerStore.CHAT_COLUMNS), chats);
        boolean inBrowseChat = true;
        while (inBrowseChat){
 	 System.out.print("\nEnter chat room id to view messages(blank to go back): ");
@@ -634,9 +1452,7 @@ public class Messenger {
 	 }
 	 
 	 //check if the chat room exists
-	 query = String.format("SELECT * FROM chat WHERE chat_id = %s AND init_sender = '%s'", targetChat, authorisedUser);
-	 List<List< String >> result = esql.executeQueryAndReturnResult(query);
-	 if(result.size() == 1){
+	 if(owned.contains(targetChat.trim())){
 	   MessageMenu(esql, authorisedUser, targetChat);
 	   return;
 	 }
@@ -652,6 +1468,8 @@ public class Messenger {
    }//end
 
   public static void MessageMenu(Messenger esql, String authorisedUser, String targetChat){
+    //one view of the history for the whole menu, pages read stay for the edit and delete prompts
+    HistoryView view = esql.openHistory(Integer.parseInt(targetChat), authorisedUser);
     try{
       createSpace();
       boolean messageMenu = true;
@@ -663,13 +1481,17 @@ public class Messenger {
 	System.out.println("2. Add New Message");
 	System.out.println("3. Edit Existing Message");
 	System.out.println("4. Delete an Existing Message");
+	System.out.println("5. View Message History");
+	System.out.println("6. Export Messages");
 	System.out.println(".........................");
 	System.out.println("9. Go back to Browse Chats");
 	switch(readChoice()){
-	case 1: PrintChats(esql, authorisedUser, targetChat); break;
-	case 2: NewMessage(esql, authorisedUser, targetChat); break;
-	case 3: EditMessage(esql, authorisedUser, targetChat); break;
-	case 4: RemoveMessage(esql, authorisedUser, targetChat); break;
+	case 1: PrintChats(esql, authorisedUser, view); break;
+	case 2: NewMessage(esql, authorisedUser, targetChat); view.appended(); break;
+	case 3: EditMessage(esql, authorisedUser, targetChat, view); break;
+	case 4: RemoveMessage(esql, authorisedUser, targetChat, view); break;
+	case 5: MessageHistory(esql, authorisedUser, targetChat); break;
+	case 6: ExportMessages(esql, authorisedUser, targetChat); break;
 	case 9: messageMenu = false; break;
 	default: System.out.println("Unrecognized choice!"); break;
 	}
@@ -679,16 +1501,17 @@ public class Messenger {
       System.err.println(e.getMessage());
       return;
     }
+    finally{
+      esql.closeHistory(view);
+    }
   }
 
-  public static void EditMessage(Messenger esql, String authorisedUser, String targetChat){
+  public static void EditMessage(Messenger esql, String authorisedUser, String targetChat, HistoryView view){
     try{
       createSpace();
-      PrintChats(esql, authorisedUser, targetChat);
+      PrintChats(esql, authorisedUser, view);
       createSpace();
 
-      int off = 0;
-      String query = String.format("SELECT msg_id, msg_text, msg_timestamp, sender_login FROM message WHERE chat_id = %d ORDER BY msg_timestamp LIMIT 10 OFFSET %d", Integer.parseInt(targetChat), off);
 	//esql.executeQueryAndPrintResult(query);
 	//List<List<String>> result = esql.executeQueryAndReturnResult(query);
 	//for(int i = 0; i < result.size(); i++){
@@ -696,7 +1519,7 @@ public class Messenger {
 	//   
 	// }
 	//}
-	int num = esql.executeQuery(query);
+	int num = view.page(0).size();
 	//String output = String.format("num = %d\n", num);
 	//System.out.print(output);
 	if(num < 1)
@@ -718,10 +1541,7 @@ public class Messenger {
 	return;
       }
 
-      query = String.format("SELECT sender_login FROM message WHERE chat_id = %d AND msg_id = %d", Integer.parseInt(targetChat), Integer.parseInt(msg));
-      num = esql.executeQuery(query);
-
-      if(num != 1)
+      if(!esql.getStore().ownsMessage(Integer.parseInt(targetChat), Integer.parseInt(msg), authorisedUser))
       {
 	System.out.println("\tmessage you are trying to alter does not belong to you");
 	return;
@@ -734,8 +1554,9 @@ public class Messenger {
 	return;
       }
 
-      query = String.format("UPDATE message SET msg_text = '%s' WHERE msg_id = %d", text, Integer.parseInt(msg));
-      esql.executeUpdate(query);
+      //the message row stays as written, the new text is appended as a revision
+      esql.getStore().reviseMessage(Integer.parseInt(targetChat), Integer.parseInt(msg), text);
+      view.revised(Integer.parseInt(msg), text);
 
       System.out.println("\tMessage was successfully altered");
     }
@@ -745,15 +1566,13 @@ public class Messenger {
     }
   }
   
-  public static void RemoveMessage(Messenger esql, String authorisedUser, String targetChat){
+  public static void RemoveMessage(Messenger esql, String authorisedUser, String targetChat, HistoryView view){
     try{
       createSpace();
-      PrintChats(esql, authorisedUser, targetChat);
+      PrintChats(esql, authorisedUser, view);
       createSpace();
       
 
-      int off = 0;
-      String query = String.format("SELECT msg_id, msg_text, msg_timestamp, sender_login FROM message WHERE chat_id = %d ORDER BY msg_timestamp LIMIT 10 OFFSET %d", Integer.parseInt(targetChat), off);
 	//esql.executeQueryAndPrintResult(query);
 	//List<List<String>> result = esql.executeQueryAndReturnResult(query);
 	//for(int i = 0; i < result.size(); i++){
@@ -761,7 +1580,7 @@ public class Messenger {
 	//   
 	// }
 	//}
-	int num = esql.executeQuery(query);
+	int num = view.page(0).size();
 	//String output = String.format("num = %d\n", num);
 	//System.out.print(output);
 	if(num < 1)
@@ -783,17 +1602,15 @@ public class Messenger {
 	return;
       }
 
-      query = String.format("SELECT sender_login FROM message WHERE chat_id = %d AND msg_id = %d", Integer.parseInt(targetChat), Integer.parseInt(msg));
-      num = esql.executeQuery(query);
-
-      if(num != 1)
+      if(!esql.getStore().ownsMessage(Integer.parseInt(targetChat), Integer.parseInt(msg), authorisedUser))
       {
 	System.out.println("\tmessage you are trying to remove does not belong to you");
 	return;
       }
 
-      query = String.format("DELETE FROM message WHERE msg_id = %d", Integer.parseInt(msg));
-      esql.executeUpdate(query);
+      //a tombstone revision hides the message, its history is kept
+      esql.getStore().reviseMessage(Integer.parseInt(targetChat), Integer.parseInt(msg), null);
+      view.revised(Integer.parseInt(msg), null);
 
       System.out.println("\tMessage was successfully removed");
     }
@@ -803,7 +1620,69 @@ public class Messenger {
     }
   }
 
-  public static void PrintChats(Messenger esql, String authorisedUser, String chatId){
+  public static void MessageHistory(Messenger esql, String authorisedUser, String targetChat){
+    try{
+      createSpace();
+      if(esql.isSharded()){
+	System.out.println("\tMessage history is not available with shards");
+	return;
+      }
+      System.out.println("\tEnter id of your message(blank to go back): ");
+      String msg = in.readLine();
+
+      if(msg.equals("")){
+	return;
+      }
+
+      if(!isInteger(msg))
+      {
+	System.out.println("\nmessage id must be a digit");
+	return;
+      }
+
+      //only the sender sees the history, deleted messages included
+      String query = String.format(QueryCatalog.MESSAGE_REVISIONS,
+	Integer.parseInt(msg), Integer.parseInt(targetChat), authorisedUser);
+      if(esql.executeQueryAndPrintResult(query) < 1)
+      {
+	System.out.println("\tmessage does not belong to you");
+      }
+    }
+    catch(Exception e){
+      System.err.println(e.getMessage());
+      return;
+    }
+  }
+
+  public static void ExportMessages(Messenger esql, String authorisedUser, String targetChat){
+    try{
+      createSpace();
+      String file = "chat-" + targetChat.trim() + ".csv.gz";
+      System.out.print("\tExport to file(blank for " + file + "): ");
+      String name = in.readLine();
+      if(!name.equals("")){
+	file = name;
+      }
+      //a timestamp exports only what changed since, deleted messages included
+      System.out.print("\tChanges since timestamp(blank for all messages): ");
+      String since = in.readLine();
+
+      HistoryExport export = new HistoryExport(esql);
+      long rows = export.export(Integer.parseInt(targetChat.trim()), authorisedUser, since.equals("") ? null : since, new File(file));
+      System.out.println(String.format("\tExported %d messages to %s, %d bytes (%d uncompressed)",
+	rows, file, export.getCompressedBytes(), export.getRawBytes()));
+    }
+    catch(Exception e){
+      System.err.println(e.getMessage());
+      return;
+    }
+  }
+
+  /*
+   * Pages through the history of the view.  Pages already read are shown
+   * again without a query, the next page is read while the user decides.
+   **/
+  public static void PrintChats(Messenger esql, String authorisedUser, HistoryView view){
     try{
       createSpace();
       //ask user what chat to open
@@ -816,11 +1695,17 @@ public class Messenger {
       //  return;
       //}
       boolean keep = true;
-      int off = 0;
+      int index = 0;
+      int size = view.getPageSize();
       while(keep)
       {
 	//String query = String.format("SELECT msg_id, msg_text, msg_timestamp, sender_login FROM message WHERE chat_id = %d", Integer.parseInt(chatId) );
-	String query = String.format("SELECT msg_id, msg_text, msg_timestamp, sender_login FROM message WHERE chat_id = %d ORDER BY msg_timestamp LIMIT 10 OFFSET %d", Integer.parseInt(chatId), off);
+	if(!view.isCached(index) && !PAGE_USER_LIMIT.tryAcquire(authorisedUser))
+	{
+	  System.out.print("\tToo many requests, please wait a moment\n");
+	  return;
+	}
+	List<List<String>> page = view.page(index);
 	//esql.executeQueryAndPrintResult(query);
 	//List<List<String>> result = esql.executeQueryAndReturnResult(query);
 	//for(int i = 0; i < result.size(); i++){
@@ -828,21 +1713,23 @@ public class Messenger {
 	//   
 	// }
 	//}
-	int num = esql.executeQueryAndPrintResult(query);
+	int num = esql.getRenderer().render(Arrays.asList(MessengerStore.PAGE_COLUMNS), page);
 	//String output = String.format("num = %d\n", num);
 	//System.out.print(output);
 	if(num < 1)
 	{
-	  System.out.print("\tNo messages in this chat\n");
+	  if(index == 0)
+	    System.out.print("\tNo messages in this chat\n");
 	  return;
 	}
 
-	if(num == 10)
+	if(view.hasMore(index))
 	{
+	  view.prefetch(index + 1);
 	  boolean loop = true;
 	  while(loop)
 	  {
-	    System.out.println("Printed are the first 10 messages would you like to view the next 10?(y/n)");
+	    System.out.println(String.format("Printed are messages %d to %d would you like to view the next %d?(y/n)", index * size + 1, index * size + num, size));
 	    String answer = in.readLine();
 	    if(answer.equals("n"))
 	    {
@@ -851,14 +1738,14 @@ public class Messenger {
 	    }
 	    if(answer.equals("y"))
 	    {
-	      off = off + 10;
+	      index = index + 1;
 	      loop = false;
 	    }
 	    if(!answer.equals("n") && !answer.equals("y"))
 	      System.out.println("\tInput not recognized");
 	  }
 	}
-	if(num < 10)
+	else
 	  keep = false;
       }
     }
@@ -882,7 +1769,7 @@ public class Messenger {
       }
       
       //we need to validate if the user exists, return error if not
-      String query = String.format("SELECT * FROM Usr WHERE login = '%s'", targetUser);
+      String query = String.format(QueryCatalog.USER_BY_LOGIN, targetUser);
       int userNum = esql.executeQuery(query);
       if(userNum != 1){
 	System.out.print("\tError, can not find user!\n");
@@ -890,8 +1777,10 @@ public class Messenger {
       }
       
       //we need to get the contact list of the current user, and add the target to that list
-      query = String.format("DELETE FROM user_list_contains WHERE list_id = (SELECT contact_list FROM usr WHERE login = '%s') AND list_member = '%s'", authorisedUser, targetUser);
+      query = String.format(QueryCatalog.REMOVE_LIST_MEMBER, QueryCatalog.CONTACT_LIST, authorisedUser, targetUser);
       esql.executeUpdate(query);
+      if(esql.getSocialGraph() != null)
+	esql.getSocialGraph().setContact(authorisedUser, targetUser, false);
       String output = String.format("\t%s succesfully removed user %s!\n", authorisedUser, targetUser);
       System.out.print(output);
       return;
@@ -916,7 +1805,7 @@ public class Messenger {
       }
       
       //we need to validate if the user exists, return error if not
-      String query = String.format("SELECT * FROM Usr WHERE login = '%s'", targetUser);
+      String query = String.format(QueryCatalog.USER_BY_LOGIN, targetUser);
       int userNum = esql.executeQuery(query);
       if(userNum != 1){
         System.out.print("\tError, can not find user!\n");
@@ -924,8 +1813,10 @@ public class Messenger {
       }
       
       //we need to get the contact list of the current user, and add the target to that list
-      query = String.format("DELETE FROM user_list_contains WHERE list_id = (SELECT block_list FROM usr WHERE login = '%s') AND list_member = '%s'", authorisedUser, targetUser);
+      query = String.format(QueryCatalog.REMOVE_LIST_MEMBER, QueryCatalog.BLOCK_LIST, authorisedUser, targetUser);
       esql.executeUpdate(query);
+      if(esql.getSocialGraph() != null)
+        esql.getSocialGraph().setBlock(authorisedUser, targetUser, false);
       String output = String.format("\t%s succesfully removed user %s!\n", authorisedUser, targetUser);
       System.out.print(output);
       return;
@@ -957,9 +1848,13 @@ public class Messenger {
       if(msg.equals("")){
         return;
       }
+
+      if(!MESSAGE_USER_LIMIT.tryAcquire(authorisedUser) || !MESSAGE_CHAT_LIMIT.tryAcquire(chatId)){
+        System.out.print("\tYou are sending messages too fast, please wait a moment\n");
+        return;
+      }
       
-      String query = String.format("INSERT INTO message (msg_text, sender_login, chat_id) VALUES('%s', '%s', %d)", msg, authorisedUser, Integer.parseInt(chatId));
-      esql.executeUpdate(query);
+      esql.getStore().appendMessage(Integer.parseInt(chatId), authorisedUser, msg);
       String output = String.format("\tThe message '%s' was written successfully\n", msg);
       System.out.print(output);
       return;
@@ -1023,7 +1918,7 @@ public class Messenger {
               return;
           }
 	  
-	  String query = String.format("SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.contact_list = l.list_id AND l.list_member = '%s'", authorisedUser, targetUser);
+	  String query = String.format(QueryCatalog.LIST_MEMBER, authorisedUser, QueryCatalog.CONTACT_LIST, targetUser);
 	  int contNum = esql.executeQuery(query);
 	  if(contNum < 1){
 	    System.out.println("\tError: You must chat with users from your contact list");
@@ -1031,25 +1926,15 @@ public class Messenger {
 	  }
 
 	  //query = String.format("SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.block_list = l.list_id", targetUser);
-	  query = String.format("SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.block_list = l.list_id AND l.list_member = '%s'", authorisedUser, targetUser);
+	  query = String.format(QueryCatalog.LIST_MEMBER, authorisedUser, QueryCatalog.BLOCK_LIST, targetUser);
 	  int userNum = esql.executeQuery(query);
 	  if(userNum > 0){
 	    System.out.println("\tError: You cannot chat with users from your block list");
 	    return;
 	  }
           
-          //create private chat
-          query = String.format("INSERT INTO chat (chat_type, init_sender) VALUES('private', '%s')", authorisedUser);
-          esql.executeUpdate(query);
-          int chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
-          
-          //add auth user to private chat
-          query = String.format("INSERT INTO chat_list (chat_id, member) VALUES(%d, '%s')",chat_id , authorisedUser);
-          esql.executeUpdate(query);
-          
-          //add target user to private chat
-          query = String.format("INSERT INTO chat_list (chat_id, member) VALUES(%d, '%s')",chat_id , targetUser);
-          esql.executeUpdate(query);
+          //create private chat of auth user and target user
+          int chat_id = esql.getStore().createChat(authorisedUser, Arrays.asList(targetUser));
           
           System.out.println("Private chat " + chat_id + " with " + targetUser+ " is created!");
            
@@ -1065,8 +1950,13 @@ public class Messenger {
        try{
 	 createSpace();
 	 //boolean inLeaveChat = true;
+	 if(esql.isSharded())
+	 {
+	   System.out.print("\tLeaving chats is not available with shards\n");
+	   return;
+	 }
 
-	 String query = String.format("SELECT l.chat_id, l.member FROM chat_list l, chat c WHERE c.init_sender = '%s' AND c.chat_id = l.chat_id", authorisedUser);
+	 String query = String.format(QueryCatalog.OWNED_CHAT_MEMBERS, authorisedUser);
 	 esql.executeQuery(query);
 	 int num = esql.executeQuery(query);
 	 if(num < 1)
@@ -1094,10 +1984,10 @@ public class Messenger {
 	       }
 
                //check if the chat room exists
-               query = String.format("SELECT * FROM chat WHERE chat_id = %s", targetChat);
+               query = String.format(QueryCatalog.CHAT_BY_ID, targetChat);
                List<List< String >> result = esql.executeQueryAndReturnResult(query);
                if(result.size() == 1){
-                   query = String.format("SELECT init_sender FROM chat WHERE chat_id = %s", targetChat);
+                   query = String.format(QueryCatalog.CHAT_OWNER, targetChat);
                    result = esql.executeQueryAndReturnResult(query);
 
                    //System.out.print(result.get(0).get(0).replace(" ", ""));
@@ -1108,14 +1998,18 @@ public class Messenger {
                        //query = String.format("DELETE FROM chat WHERE chat_id = %s", targetChat);
                        //esql.executeUpdate(query);
                        //cascade handles members in the chat list
-		     query = String.format("DELETE FROM message WHERE chat_id = %s", targetChat );
-		     esql.executeUpdate(query);
-		     query = String.format("DELETE FROM chat_list WHERE chat_id = %s", targetChat );
-		     esql.executeUpdate(query);
+		     final int chat_id = Integer.parseInt(targetChat);
+		     esql.inTransaction(new TransactionCallback<Void>() {
+		       public Void doInTransaction(Messenger esql) throws SQLException {
+			 esql.executeUpdate(String.format(QueryCatalog.DELETE_CHAT_MESSAGES, chat_id));
+			 esql.executeUpdate(String.format(QueryCatalog.DELETE_CHAT_MEMBERS, chat_id));
+			 return null;
+		       }
+		     });
                    }
                    else {
                        //chat is not started by current user, simply remove him from chat
-                       query = String.format("DELETE FROM chat_list WHERE chat_id = %s AND member = '%s'", targetChat, authorisedUser);
+                       query = String.format(QueryCatalog.LEAVE_CHAT, targetChat, authorisedUser);
                        esql.executeUpdate(query);
                    }
 		   System.out.println("\tchat successfully deleted");
@@ -1135,18 +2029,20 @@ public class Messenger {
    //helper function to modify chat for user
    public static void ModifyChat(Messenger esql, String authorisedUser){
        try{ 
-          //call function to show chats
-	 String query = String.format("SELECT l.chat_id, l.member FROM chat_list l, chat c WHERE c.init_sender = '%s' AND c.chat_id = l.chat_id", authorisedUser);
-       esql.executeQuery(query);
-       int num = esql.executeQuery(query);
-       if(num < 1)
+          //chats the user started, the only ones the user may modify
+       List<List<String>> chats = esql.getStore().chatsOf(authorisedUser);
+       Set<String> owned = new HashSet<String>();
+       for (List<String> chat : chats)
+	 if (chat.get(1).trim().equals(authorisedUser))
+	   owned.add(chat.get(0).trim());
+       if(owned.isEmpty())
        {
 	 System.out.print("\tChat List is empty\n");
 	 return;
        }
 	 createSpace();
 
-           ShowChat(esql, authorisedUser);
+           esql.getRenderer().render(Arrays.asList(MessengerStore.CHAT_COLUMNS), chats);
 	   
 	   createSpace();
 
@@ -1168,10 +2064,8 @@ public class Messenger {
 	       }
 
                //check if the chat room exists
-               query = String.format("SELECT * FROM chat WHERE chat_id = %s AND init_sender = '%s'", targetChat, authorisedUser);
-                   List<List< String >> result = esql.executeQueryAndReturnResult(query);
-                       if(result.size() == 1){
-                           ModifyChatOptions(esql, authorisedUser, targetChat);
+               if(owned.contains(targetChat.trim())){
+                           ModifyChatOptions(esql, authorisedUser, targetChat.trim());
                    return;
                }
                else{
@@ -1193,6 +2087,7 @@ public class Messenger {
         System.out.println("----------------------------------------");
         System.out.println("(1) Add a member to group chat");
         System.out.println("(2) Remove a member from group chat");
+        System.out.println("(3) Set message retention");
         System.out.println("----------------------------------------");
         System.out.println("(9) Go back");
 
@@ -1200,12 +2095,45 @@ public class Messenger {
         switch (readChoice()){
             case 1: ModifyAddMember(esql, authorisedUser, chatId); break;
             case 2: ModifyRemoveMember(esql, authorisedUser, chatId); break;
+            case 3: ModifyRetention(esql, authorisedUser, chatId); break;
             case 9: return;
             default : System.out.println("Unrecognized choice!"); break;
         }
 
     }
 
+    public static void ModifyRetention(Messenger esql, String authorisedUser, String chatId){
+        try{
+	  createSpace();
+	  if(esql.isSharded()){
+	    System.out.println("\tRetention is not available with shards");
+	    return;
+	  }
+	  String query = String.format(QueryCatalog.RETENTION, chatId);
+	  if(esql.executeQueryAndPrintResult(query) < 1){
+	    System.out.println("\tChat uses the default retention");
+	  }
+
+	  System.out.print("Keep messages for how many days(0 for ever, blank for default): ");
+	  String days = in.readLine();
+	  System.out.print("Keep at most how many messages(0 for all, blank for default): ");
+	  String count = in.readLine();
+	  if((!days.equals("") && !isInteger(days)) || (!count.equals("") && !isInteger(count))){
+	    System.out.println("\nretention must be a number");
+	    return;
+	  }
+
+	  //the retention job picks the policy up on its next pass
+	  query = String.format(QueryCatalog.SET_RETENTION, chatId, days.equals("") ? "NULL" : days, count.equals("") ? "NULL" : count);
+	  esql.executeUpdate(query);
+	  System.out.println("Retention of chat " + chatId + " updated");
+        }
+        catch(Exception e) {
+	  System.err.println(e.getMessage());
+            return;
+        }
+    }
+
     public static void ModifyAddMember(Messenger esql, String authorisedUser, String chatId){
         try{
 	  createSpace();
@@ -1224,7 +2152,7 @@ public class Messenger {
             return;
 	  }
 
-	  String query = String.format("SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.contact_list = l.list_id AND l.list_member = '%s'", authorisedUser, targetUser);
+	  String query = String.format(QueryCatalog.LIST_MEMBER, authorisedUser, QueryCatalog.CONTACT_LIST, targetUser);
 	  int contNum = esql.executeQuery(query);
 	  if(contNum < 1){
 	    System.out.println("\tError: You must chat with users from your contact list");
@@ -1232,23 +2160,19 @@ public class Messenger {
 	  }
 
 	  //query = String.format("SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.block_list = l.list_id", targetUser);
-	  query = String.format("SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.block_list = l.list_id AND l.list_member = '%s'", authorisedUser, targetUser);
+	  query = String.format(QueryCatalog.LIST_MEMBER, authorisedUser, QueryCatalog.BLOCK_LIST, targetUser);
 	  int userNum = esql.executeQuery(query);
 	  if(userNum > 0){
 	    System.out.println("\tError: You cannot chat with users from your block list");
 	    return;
 	  }
 	  
-	  query = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s')", Integer.parseInt( chatId ), targetUser);
-	  esql.executeUpdate(query);
-	  System.out.println("Added " + targetUser + " to chat " + chatId);
-	  
-	  query = String.format("SELECT * FROM chat_list WHERE chat_id = %d", Integer.parseInt(chatId));
-	  int res = esql.executeQuery(query);
-	  if(res > 1){
-	    query = String.format("UPDATE chat SET chat_type = 'group' WHERE chat_id = %d", Integer.parseInt(chatId) );
-	    esql.executeUpdate(query);
+	  //more than the two private chat members makes it a group
+	  if(!esql.getStore().setChatMember(Integer.parseInt(chatId), targetUser, true)){
+	    System.out.println("\t" + targetUser + " is already in chat " + chatId);
+	    return;
 	  }
+	  System.out.println("Added " + targetUser + " to chat " + chatId);
         }
         catch(Exception e) {
 	  System.err.println(e.getMessage());
@@ -1260,9 +2184,13 @@ public class Messenger {
         try{
 	  createSpace();
 
-	  String query = String.format("SELECT member FROM chat_list WHERE chat_id = %s", chatId);
-	  esql.executeQuery(query);
-	  int num = esql.executeQueryAndPrintResult(query);
+	  //the members come with the user's chat list, the chat's members are not read again
+	  List<List<String>> members = new ArrayList<List<String>>();
+	  for (List<String> chat : esql.getStore().chatsOf(authorisedUser))
+	    if (chat.get(0).trim().equals(chatId.trim()))
+	      for (String member : chat.get(2).trim().split(" "))
+		members.add(Arrays.asList(member));
+	  int num = esql.getRenderer().render(Arrays.asList("member"), members);
 	  if(num < 1)
 	  {
 	    System.out.print("\tChat List is empty\n");
@@ -1286,17 +2214,12 @@ public class Messenger {
 	  if(!UserExists(esql, targetUser)){
             return;
 	  }
-	  query = String.format("DELETE FROM chat_list WHERE chat_id = %s AND member = '%s'", chatId, targetUser);
-            esql.executeUpdate(query);
+	  //two members left makes it private again
+	  if(!esql.getStore().setChatMember(Integer.parseInt(chatId), targetUser, false)){
+	    System.out.println("\t" + targetUser + " is not in chat " + chatId);
+	    return;
+	  }
             System.out.println("Removed " + targetUser + " from chat " + chatId);
-            
-            
-            query = String.format("SELECT * FROM chat_list WHERE chat_id = %d", Integer.parseInt(chatId));
-            int res = esql.executeQuery(query);
-            if(res < 2){
-                query = String.format("UPDATE chat SET chat_type = 'private' WHERE chat_id = %d" ,Integer.parseInt(chatId) );
-                esql.executeUpdate(query);
-            }
         }
         catch(Exception e) {
             System.err.println(e.getMessage());
@@ -1306,32 +2229,8 @@ public class Messenger {
 
     public static void ShowChat(Messenger esql, String authorisedUser){
       try{
-	//first we output all the chats with the chat memebrs so user can see
-	String query = String.format("SELECT chat_id FROM chat_list WHERE member = '%s'", authorisedUser);
-	List<List<String>> result = esql.executeQueryAndReturnResult(query);
-	
-	//for loop to iterate through results; results contains the id of every chat the user initiated
-	for(int i = 0; i < result.size(); i++){
-	  
-	  //query to get all the members of a chat
-	  query = String.format("SELECT member FROM chat_list WHERE chat_id = %s", result.get(i).get(0));
-	  List<List<String>> chatMembers = esql.executeQueryAndReturnResult(query);
-	  
-	  for (int j = 0; j < result.get(i).size(); j++){
-	    
-	    //print out room number
-	    System.out.print(result.get(i).get(j) + "\t");
-	    
-	    //iterate through members
-	    for (int l = 0; l < chatMembers.size(); l++){
-	      
-	      for(int m = 0; m < chatMembers.get(l).size(); m++){
-		System.out.print(chatMembers.get(l).get(m).replace(" ", "") + " ");
-	      }
-	    }
-	    System.out.print("\n");
-	  }
-	}
+	//all the chats of the user with their members, so user can see
+	esql.getRenderer().render(Arrays.asList(MessengerStore.CHAT_COLUMNS), esql.getStore().chatsOf(authorisedUser));
       }
       catch(Exception e) {
 	System.err.println(e.getMessage());
@@ -1348,9 +2247,56 @@ public class Messenger {
 
 
     //subroutines (helper functions)
+
+    /*
+     * Builds the query for one page of a chat's history as seen by reader.
+     * Messages from users on the reader's block list are dropped by an
+     * anti-join probing the user_list_contains primary key, so the cost of a
+     * page does not depend on how long the block list is.  The current text
+     * is the newest message_revision row, found by one backward probe of its
+     * primary key; messages whose newest revision is a tombstone are hidden.
+     **/
+    public static String MessagePageQuery(String reader, int chatId, int offset, int limit){
+        return MessagePageQuery(chatId, offset, limit, BlockFilter(reader));
+    }
+
+    /*
+     * Builds the condition that m.sender_login is not on the block list of
+     * reader.
+     **/
+    public static String BlockFilter(String reader){
+        return String.format(QueryCatalog.BLOCK_FILTER, reader);
+    }
+
+    /*
+     * Builds the page query with senderFilter, a condition on m, in place
+     * of the block list lookup, for databases that do not hold the users.
+     **/
+    public static String MessagePageQuery(int chatId, int offset, int limit, String senderFilter){
+        return String.format(QueryCatalog.MESSAGE_PAGE, chatId, senderFilter, limit, offset);
+    }
+
+    /*
+     * Builds the query that finds a message of sender in a chat, unless it
+     * was deleted.
+     **/
+    public static String OwnMessageQuery(String sender, int chatId, int msgId){
+        return String.format(QueryCatalog.OWN_MESSAGE, chatId, msgId, sender);
+    }
+
+    /*
+     * Builds the insert of the next revision of a message.  text is an SQL
+     * literal, NULL for the tombstone of a delete.  The message row itself is
+     * never rewritten, and two concurrent edits collide on the primary key
+     * instead of overwriting each other.
+     **/
+    public static String ReviseMessageQuery(int msgId, String text){
+        return String.format(QueryCatalog.REVISE_MESSAGE, text, msgId);
+    }
+
     public static boolean UserExists(Messenger esql, String userId){
         try{
-            String query = String.format("SELECT * FROM Usr WHERE login = '%s'", userId);
+            String query = String.format(QueryCatalog.USER_BY_LOGIN, userId);
             int userNum = esql.executeQuery(query);
             if(userNum != 1){
                 System.out.print("\tError, can not find user!\n");
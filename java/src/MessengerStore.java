@@ -0,0 +1,142 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Storage behind the Messenger users, contact and block lists, chats and
+ * messages.  SqlStore keeps everything in Postgres, EmbeddedStore keeps it
+ * in local files in-process.  Every method reports a storage failure as an
+ * SQLException, whatever the backend, so the handlers treat both alike.
+ *
+ */
+public interface MessengerStore {
+
+   // columns of a message page, in row order
+   String[] PAGE_COLUMNS = { "msg_id", "msg_text", "msg_timestamp", "sender_login" };
+
+   // messages per page unless messenger.page.size says otherwise
+   int PAGE_SIZE = 10;
+
+   // columns of a chat list, in row order
+   String[] CHAT_COLUMNS = { "chat_id", "init_sender", "members", "messages", "last_message" };
+
+   /**
+    * Creates a user with empty contact and block lists.
+    *
+    * @param login the new login
+    * @param password the password
+    * @param phone the phone number
+    * @throws java.sql.SQLException when the login or number is taken
+    */
+   void createUser (String login, String password, String phone) throws SQLException;
+
+   /**
+    * @return true if login exists and has this password
+    */
+   boolean authenticate (String login, String password) throws SQLException;
+
+   /**
+    * Adds a user to, or removes a user from, the contact or block list of
+    * owner.
+    *
+    * @param owner the login whose list is changed
+    * @param member the login added or removed
+    * @param block true for the block list, false for the contact list
+    * @param present true to add, false to remove
+    * @return true if the list changed
+    * @throws java.sql.SQLException when a login does not exist
+    */
+   boolean setListMember (String owner, String member, boolean block, boolean present) throws SQLException;
+
+   /**
+    * @return true if member is on the contact or block list of owner
+    */
+   boolean isListMember (String owner, String member, boolean block) throws SQLException;
+
+   /**
+    * Creates a chat of initSender and members, private for two users and a
+    * group for more.
+    *
+    * @return the new chat id
+    */
+   int createChat (String initSender, List<String> members) throws SQLException;
+
+   /**
+    * @return true if login is a member of the chat
+    */
+   boolean isChatMember (int chatId, String login) throws SQLException;
+
+   /**
+    * Adds a member to, or removes a member from, a chat.  The chat becomes
+    * private when two members are left and a group when there are more.
+    * Concurrent changes of one chat are applied one at a time.
+    *
+    * @param chatId the chat
+    * @param member the login added or removed
+    * @param present true to add, false to remove
+    * @return true if the members changed
+    * @throws java.sql.SQLException when the chat or the login does not exist
+    */
+   boolean setChatMember (int chatId, String member, boolean present) throws SQLException;
+
+   /**
+    * Lists the chats login is a member of, by chat id, with their members,
+    * the number of messages that are not deleted and the time of the last
+    * message.
+    *
+    * @param login the member
+    * @return rows of CHAT_COLUMNS
+    */
+   List<List<String>> chatsOf (String login) throws SQLException;
+
+   /**
+    * Appends a message to a chat, stamped with the current time.
+    */
+   void appendMessage (int chatId, String sender, String text) throws SQLException;
+
+   /**
+    * Reads one page of a chat's history as seen by reader: oldest first,
+    * current text of edited messages, without deleted messages and without
+    * messages from users on the reader's block list.
+    *
+    * @param chatId the chat
+    * @param reader the login reading the page
+    * @param offset the number of visible messages to skip
+    * @param limit the most rows to return
+    * @return up to limit rows of PAGE_COLUMNS
+    */
+   List<List<String>> messagePage (int chatId, String reader, int offset, int limit) throws SQLException;
+
+   /**
+    * @return true if sender wrote the message in the chat and it is not
+    *         deleted
+    */
+   boolean ownsMessage (int chatId, int msgId, String sender) throws SQLException;
+
+   /**
+    * Records a new revision of a message, keeping the earlier ones.
+    *
+    * @param chatId the chat of the message
+    * @param msgId the message
+    * @param text the new text, null to delete the message
+    */
+   void reviseMessage (int chatId, int msgId, String text) throws SQLException;
+
+   /**
+    * Releases the resources of the store.
+    */
+   void close ();
+
+}//end MessengerStore
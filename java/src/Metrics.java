@@ -0,0 +1,76 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide registry of named counters.  Counters are created on first
+ * use and are safe to increment from any thread.
+ *
+ */
+public class Metrics {
+
+   private static final Map<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+
+   private Metrics () {
+   }
+
+   /**
+    * Returns the counter with the given name, creating it if needed.
+    *
+    * @param name the counter name, e.g. rate.user.rejected
+    * @return the counter
+    */
+   public static AtomicLong counter (String name) {
+      AtomicLong counter = COUNTERS.get(name);
+      if (counter == null) {
+         synchronized (COUNTERS) {
+            counter = COUNTERS.get(name);
+            if (counter == null) {
+               counter = new AtomicLong();
+               COUNTERS.put(name, counter);
+            }
+         }
+      }
+      return counter;
+   }//end counter
+
+   /**
+    * @return the current value of every counter, sorted by name
+    */
+   public static Map<String, Long> snapshot () {
+      Map<String, Long> values = new TreeMap<String, Long>();
+      for (Map.Entry<String, AtomicLong> e : COUNTERS.entrySet())
+         values.put(e.getKey(), e.getValue().get());
+      return values;
+   }//end snapshot
+
+   /**
+    * @return the non zero counters as "name=value" pairs, or an empty string
+    */
+   public static String format () {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+         if (e.getValue() == 0)
+            continue;
+         if (sb.length() > 0)
+            sb.append(' ');
+         sb.append(e.getKey()).append('=').append(e.getValue());
+      }
+      return sb.toString();
+   }//end format
+
+}//end Metrics
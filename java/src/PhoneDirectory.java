@@ -0,0 +1,99 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Contact discovery by phone number.  Numbers are matched on the indexed
+ * usr.phone_norm column, which holds the canonical '+digits' form kept by
+ * the usr_phone_norm trigger, so any formatting of a number finds the user.
+ *
+ */
+public class PhoneDirectory {
+
+   private PhoneDirectory () {
+   }
+
+   /**
+    * Returns the canonical form of a phone number: '+' followed by the
+    * digits.  Ten digit numbers without a leading '+' get the North American
+    * country code.  Must match normalize_phone in create_triggers.sql.
+    *
+    * @param phone the number in any formatting
+    * @return the canonical number, or null if it has no digits
+    */
+   public static String normalize (String phone) {
+      if (phone == null)
+         return null;
+      StringBuilder digits = new StringBuilder(16);
+      for (int i = 0; i < phone.length(); ++i) {
+         char c = phone.charAt(i);
+         if (c >= '0' && c <= '9')
+            digits.append(c);
+      }
+      if (digits.length() == 0)
+         return null;
+      if (digits.length() == 10 && !phone.trim().startsWith("+"))
+         digits.insert(0, '1');
+      return digits.insert(0, '+').toString();
+   }//end normalize
+
+   /**
+    * Finds the user owning a phone number.
+    *
+    * @param esql the Messenger to run on
+    * @param phone the number in any formatting
+    * @return the login, or null if no user has that number
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static String lookup (Messenger esql, String phone) throws SQLException {
+      String norm = normalize(phone);
+      if (norm == null)
+         return null;
+      List<List<String>> result = esql.executeQueryAndReturnResult(String.format(QueryCatalog.PHONE_LOOKUP, norm));
+      return result.isEmpty() ? null : result.get(0).get(0).trim();
+   }//end lookup
+
+   /**
+    * Matches a whole address book against usr in one query.  The numbers are
+    * normalized here and joined on phone_norm, which the planner runs as a
+    * hash join for large books and as index probes for small ones.
+    *
+    * @param esql the Messenger to run on
+    * @param phones the numbers in any formatting
+    * @return the login for each number, null where nobody matched
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<String> discover (Messenger esql, List<String> phones) throws SQLException {
+      List<String> logins = new ArrayList<String>();
+      StringBuilder values = new StringBuilder();
+      for (int i = 0; i < phones.size(); ++i) {
+         logins.add(null);
+         String norm = normalize(phones.get(i));
+         if (norm == null)
+            continue;
+         if (values.length() > 0)
+            values.append(", ");
+         values.append('(').append(i).append(", '").append(norm).append("')");
+      }
+      if (values.length() == 0)
+         return logins;
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(QueryCatalog.PHONE_DISCOVER, values));
+      for (List<String> row : rows)
+         logins.set(Integer.parseInt(row.get(0)), row.get(1).trim());
+      return logins;
+   }//end discover
+
+}//end PhoneDirectory
@@ -0,0 +1,422 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Online and last seen presence, and a cache of the status and presence of
+ * the contacts shown on the contact list screens.
+ *
+ * Session activity only touches an in-memory map.  A daemon thread writes
+ * the touched users to USER_PRESENCE every messenger.presence.flushMs in one
+ * upsert on its own connection, so a user who is busy in the menus costs one
+ * row write per interval instead of one per action.  A user is online while
+ * signed in and seen within messenger.presence.onlineMs, which also ends the
+ * presence of a process that died without signing its users off.
+ *
+ * contacts() answers a contact list from the cache, or with one query that
+ * joins the list, the statuses and the presence rows when the viewer's list
+ * or one of its contacts is not cached.  The triggers in create_triggers.sql
+ * raise status_event when a status changes and presence_event when a user
+ * goes online or offline; both evict the user and are handed on only to the
+ * sessions that have that user on the contact list they last looked at.
+ * user_list_event evicts the viewer whose contact list changed.  Heartbeats
+ * that do not change online raise nothing, other processes pick them up
+ * when their entries expire after messenger.presence.cacheMs.
+ *
+ * Configured with system properties:
+ *   messenger.presence           false turns presence off (default true)
+ *   messenger.presence.flushMs   pause between writes (default 5000)
+ *   messenger.presence.onlineMs  activity window of online (default 300000)
+ *   messenger.presence.cacheMs   lifetime of a cache entry (default 60000)
+ *
+ */
+public class PresenceService implements ChangeSubscriber, Runnable {
+
+   // columns of the rows returned by contacts
+   public static final String[] CONTACT_COLUMNS = { "login", "status", "presence" };
+
+   // channels raised by the USR and USER_PRESENCE triggers
+   public static final String STATUS_CHANNEL = "status_event";
+   public static final String PRESENCE_CHANNEL = "presence_event";
+
+   private final Messenger _esql;
+
+   // dedicated connection, the Messenger connection belongs to the UI thread
+   private final Connection _connection;
+   private final long _flushMs;
+   private final long _onlineMs;
+   private final long _cacheMs;
+
+   /**
+    * Status and presence of one user as last read or written.
+    */
+   static class Presence {
+      final String status;
+      final long lastSeen;     // 0 when never seen
+      final boolean online;
+      final long loadedAt;
+
+      Presence (String status, long lastSeen, boolean online, long loadedAt) {
+         this.status = status;
+         this.lastSeen = lastSeen;
+         this.online = online;
+         this.loadedAt = loadedAt;
+      }
+   }//end Presence
+
+   /**
+    * Contact list of one viewer, in login order.
+    */
+   static class Contacts {
+      final int listId;
+      final List<String> logins;
+      final long loadedAt;
+
+      Contacts (int listId, List<String> logins, long loadedAt) {
+         this.listId = listId;
+         this.logins = logins;
+         this.loadedAt = loadedAt;
+      }
+   }//end Contacts
+
+   private final Map<String, Presence> _cache = new ConcurrentHashMap<String, Presence>();
+   private final Map<String, Contacts> _contacts = new ConcurrentHashMap<String, Contacts>();
+
+   // activity of this process not written yet, guarded by itself
+   private final Map<String, Presence> _pending = new HashMap<String, Presence>();
+
+   // sessions watching their contacts, and the viewers of each contact
+   private final Map<String, ChangeSubscriber> _watchers = new ConcurrentHashMap<String, ChangeSubscriber>();
+   private final Map<String, Set<String>> _watchedBy = new ConcurrentHashMap<String, Set<String>>();
+
+   private volatile boolean _running = false;
+   private Thread _thread = null;
+
+   private final AtomicLong _hits = Metrics.counter("presence.hits");
+   private final AtomicLong _loads = Metrics.counter("presence.loads");
+   private final AtomicLong _writes = Metrics.counter("presence.writes");
+
+   public PresenceService (Messenger esql, Connection connection, long flushMs, long onlineMs, long cacheMs) {
+      this._esql = esql;
+      this._connection = connection;
+      this._flushMs = flushMs;
+      this._onlineMs = onlineMs;
+      this._cacheMs = cacheMs;
+   }//end PresenceService
+
+   /**
+    * Builds the service from the messenger.presence system properties.
+    *
+    * @param esql the Messenger whose connection answers the cache misses
+    * @return the service, or null when it is disabled
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public static PresenceService fromSystemProperties (Messenger esql) throws SQLException {
+      if (!Boolean.parseBoolean(System.getProperty("messenger.presence", "true")))
+         return null;
+      return new PresenceService(esql, esql.openHelperConnection(),
+         Long.getLong("messenger.presence.flushMs", 5000L),
+         Long.getLong("messenger.presence.onlineMs", 300000L),
+         Long.getLong("messenger.presence.cacheMs", 60000L));
+   }//end fromSystemProperties
+
+   /**
+    * Starts the writer thread.  The thread is a daemon so it never keeps the
+    * process alive on its own.
+    */
+   public synchronized void start () {
+      if (_running)
+         return;
+      _running = true;
+      _thread = new Thread(this, "messenger-presence");
+      _thread.setDaemon(true);
+      _thread.start();
+   }//end start
+
+   /**
+    * Stops the writer thread, writes what is still pending and closes the
+    * connection.
+    */
+   public void stop () {
+      _running = false;
+      Thread thread;
+      synchronized (this) {
+         thread = _thread;
+         _thread = null;
+      }
+      if (thread != null) {
+         thread.interrupt();
+         try {
+            thread.join(_flushMs + 1000);
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      try {
+         flush();
+      }catch (SQLException e) {
+         System.err.println("Presence: " + e.getMessage());
+      }
+      try {
+         _connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }//end stop
+
+   public void run () {
+      while (_running) {
+         try {
+            Thread.sleep(_flushMs);
+            flush();
+         }catch (InterruptedException e) {
+            return;
+         }catch (SQLException e) {
+            if (!_running)
+               return;
+            System.err.println("Presence: " + e.getMessage());
+         }
+      }
+   }//end run
+
+   /**
+    * Records activity of a signed in user.
+    *
+    * @param login the user
+    */
+   public void touch (String login) {
+      record(login, true);
+   }//end touch
+
+   /**
+    * Records that a user signed off, the last seen time is now.
+    *
+    * @param login the user
+    */
+   public void signOff (String login) {
+      record(login, false);
+   }//end signOff
+
+   private void record (String login, boolean online) {
+      synchronized (_pending) {
+         _pending.put(login.trim(), new Presence(null, System.currentTimeMillis(), online, 0));
+      }
+   }//end record
+
+   /**
+    * Writes the pending activity in one upsert.  The trigger on
+    * USER_PRESENCE notifies the users whose online flag changed.
+    *
+    * @return the number of users written
+    * @throws java.sql.SQLException when the write failed, the activity is
+    *         then kept for the next attempt
+    */
+   public int flush () throws SQLException {
+      Map<String, Presence> batch;
+      synchronized (_pending) {
+         if (_pending.isEmpty())
+            return 0;
+         batch = new HashMap<String, Presence>(_pending);
+         _pending.clear();
+      }
+      StringBuilder values = new StringBuilder();
+      for (Map.Entry<String, Presence> entry : batch.entrySet())
+         values.append(values.length() == 0 ? "" : ", ").append(String.format("('%s', to_timestamp(%d / 1000.0), %b)",
+            entry.getKey().replace("'", "''"), entry.getValue().lastSeen, entry.getValue().online));
+      Statement stmt = _connection.createStatement();
+      try {
+         stmt.executeUpdate(String.format(QueryCatalog.PRESENCE_UPSERT, values));
+      }catch (SQLException e) {
+         synchronized (_pending) {
+            for (Map.Entry<String, Presence> entry : batch.entrySet())
+               if (!_pending.containsKey(entry.getKey()))
+                  _pending.put(entry.getKey(), entry.getValue());
+         }
+         throw e;
+      }finally {
+         stmt.close();
+      }
+      _writes.addAndGet(batch.size());
+      return batch.size();
+   }//end flush
+
+   /**
+    * Returns the contacts of a viewer with their status and presence, one
+    * row of CONTACT_COLUMNS per contact.  Served from the cache when the
+    * list and all its contacts are cached, with one query otherwise.  Each
+    * contact is read from the cache once, so an invalidation arriving
+    * meanwhile does not leave a contact without its presence.
+    *
+    * @param viewer the owner of the contact list
+    * @return the rows in login order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> contacts (String viewer) throws SQLException {
+      viewer = viewer.trim();
+      long now = System.currentTimeMillis();
+      Contacts list = _contacts.get(viewer);
+      Map<String, Presence> presences = new HashMap<String, Presence>();
+      if (list == null || now - list.loadedAt > _cacheMs || !cached(list.logins, now, presences)) {
+         presences.clear();
+         list = load(viewer, now, presences);
+      }else
+         _hits.incrementAndGet();
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (String login : list.logins) {
+         Presence presence = current(login, presences.get(login));
+         rows.add(Arrays.asList(login, presence.status, describe(presence, now)));
+      }
+      return rows;
+   }//end contacts
+
+   private boolean cached (List<String> logins, long now, Map<String, Presence> presences) {
+      for (String login : logins) {
+         Presence presence = _cache.get(login);
+         if (presence == null || now - presence.loadedAt > _cacheMs)
+            return false;
+         presences.put(login, presence);
+      }
+      return true;
+   }//end cached
+
+   private Contacts load (String viewer, long now, Map<String, Presence> presences) throws SQLException {
+      _loads.incrementAndGet();
+      List<List<String>> rows = _esql.executeQueryAndReturnResult(String.format(QueryCatalog.PRESENCE_CONTACTS, viewer.replace("'", "''")));
+      List<String> logins = new ArrayList<String>();
+      int listId = 0;
+      for (List<String> row : rows) {
+         if (row.get(0) != null)
+            listId = Integer.parseInt(row.get(0).trim());
+         if (row.get(1) == null)
+            continue;
+         String login = row.get(1);
+         logins.add(login);
+         Presence presence = new Presence(row.get(2) == null ? "" : row.get(2),
+            row.get(3) == null ? 0 : Long.parseLong(row.get(3).trim()),
+            row.get(4) != null && row.get(4).trim().startsWith("t"), now);
+         presences.put(login, presence);
+         _cache.put(login, presence);
+      }
+      Contacts list = new Contacts(listId, Collections.unmodifiableList(logins), now);
+      Contacts previous = _contacts.put(viewer, list);
+      if (_watchers.containsKey(viewer))
+         index(viewer, previous, list);
+      return list;
+   }//end load
+
+   /**
+    * Merges the activity of this process that is not written yet.
+    */
+   private Presence current (String login, Presence cached) {
+      Presence pending;
+      synchronized (_pending) {
+         pending = _pending.get(login);
+      }
+      if (pending == null || pending.lastSeen < cached.lastSeen)
+         return cached;
+      return new Presence(cached.status, pending.lastSeen, pending.online, cached.loadedAt);
+   }//end current
+
+   private String describe (Presence presence, long now) {
+      if (presence.online && now - presence.lastSeen <= _onlineMs)
+         return "online";
+      if (presence.lastSeen == 0)
+         return "never seen";
+      return "last seen " + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(presence.lastSeen));
+   }//end describe
+
+   /**
+    * Hands the status and presence changes of the viewer's contacts to a
+    * subscriber, as (STATUS_CHANNEL or PRESENCE_CHANNEL, login), until
+    * unwatch.  The contacts are those of the last contacts() call.
+    *
+    * @param viewer the session's user
+    * @param subscriber the callback, run on the change listener thread
+    */
+   public void watch (String viewer, ChangeSubscriber subscriber) {
+      viewer = viewer.trim();
+      _watchers.put(viewer, subscriber);
+      index(viewer, null, _contacts.get(viewer));
+   }//end watch
+
+   /**
+    * Stops handing changes to the viewer's session.
+    *
+    * @param viewer the session's user
+    */
+   public void unwatch (String viewer) {
+      viewer = viewer.trim();
+      if (_watchers.remove(viewer) != null)
+         index(viewer, _contacts.get(viewer), null);
+   }//end unwatch
+
+   private void index (String viewer, Contacts before, Contacts after) {
+      if (before != null)
+         for (String login : before.logins) {
+            Set<String> viewers = _watchedBy.get(login);
+            if (viewers != null)
+               viewers.remove(viewer);
+         }
+      if (after != null)
+         for (String login : after.logins) {
+            Set<String> viewers = _watchedBy.get(login);
+            if (viewers == null) {
+               _watchedBy.putIfAbsent(login, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+               viewers = _watchedBy.get(login);
+            }
+            viewers.add(viewer);
+         }
+   }//end index
+
+   /**
+    * Evicts the entries named by a notification and hands status and
+    * presence changes on to the sessions watching that user.
+    */
+   public void onChange (String channel, String payload) {
+      if (ChangeListener.CONTACT_CHANNEL.equals(channel)) {
+         // <op>;<list_id>;<list_member>, the owner's list is stale
+         String[] fields = payload.split(";");
+         if (fields.length < 2)
+            return;
+         for (Map.Entry<String, Contacts> entry : _contacts.entrySet())
+            if (fields[1].equals(String.valueOf(entry.getValue().listId)))
+               _contacts.remove(entry.getKey());
+         return;
+      }
+      String login = payload.trim();
+      _cache.remove(login);
+      Set<String> viewers = _watchedBy.get(login);
+      if (viewers == null)
+         return;
+      for (String viewer : viewers) {
+         ChangeSubscriber subscriber = _watchers.get(viewer);
+         if (subscriber != null)
+            subscriber.onChange(channel, login);
+      }
+   }//end onChange
+
+}//end PresenceService
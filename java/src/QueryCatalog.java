@@ -0,0 +1,363 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Every statement the client sends on behalf of a user, in one place.  The
+ * menu handlers of Messenger, SqlStore, PresenceService, PhoneDirectory,
+ * ContactBatch and HistoryExport fill these String.format templates in and
+ * send them; none of them spells SQL of its own.  The hottest reads (AUTHENTICATE, CHAT_MEMBER, CHAT_LIST and
+ * READER_PAGE) take their values as ? parameters instead, see
+ * Messenger.executePreparedAndReturnResult.  Their text never changes, so
+ * the driver keeps them prepared on the server, and Warmup prepares them
+ * before the first menu.
+ *
+ * plans() fills each template with sample values and records the plan it
+ * should get on a loaded database: the indexes it must use, the big tables
+ * it must not read in full and a bound on the estimated cost.  PlanCheck
+ * runs EXPLAIN on every one of them, so a schema or index change that
+ * turns a hot path into a scan fails there, and a template added here
+ * without a plan fails as well.  The parameter templates are checked with
+ * the generic plan the server settles on for any value.
+ *
+ * MessageJournal inserts the messages users send, so its statements are
+ * here as well.  The other background jobs (RetentionJob, ShardRebalancer)
+ * keep their statements next to their code.
+ *
+ */
+public final class QueryCatalog {
+
+   // list columns of USR, the %s of the list templates
+   public static final String CONTACT_LIST = "contact_list";
+   public static final String BLOCK_LIST = "block_list";
+
+   // users and their lists
+
+   public static final String USER_BY_LOGIN =
+      "SELECT * FROM Usr WHERE login = '%s'";
+   // login, password
+   public static final String AUTHENTICATE =
+      "SELECT * FROM Usr WHERE login = ?::bpchar AND password = ?::bpchar";
+   public static final String CREATE_LISTS =
+      "INSERT INTO USER_LIST(list_id, list_type) VALUES (%d, 'block'), (%d, 'contact')";
+   public static final String CREATE_USER =
+      "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)";
+   // one row when the user is referenced at all, each part stops at the
+   // first entry of an index on the login column, see create_indexes.sql
+   public static final String USER_REFERENCES =
+      "(SELECT l.member AS user FROM chat_list l WHERE l.member = '%1$s' LIMIT 1) UNION (SELECT m.sender_login AS user FROM message m WHERE m.sender_login = '%1$s' LIMIT 1) " +
+      "UNION (SELECT u.list_member AS user FROM user_list_contains u WHERE u.list_member = '%1$s' LIMIT 1)";
+   public static final String DELETE_USER =
+      "DELETE FROM usr WHERE login = '%s'";
+   public static final String SET_STATUS =
+      "UPDATE usr SET status = '%s' WHERE login = '%s'";
+   // owner, list column, member
+   public static final String LIST_MEMBER =
+      "SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.%s = l.list_id AND l.list_member = '%s'";
+   // list column, member, owner
+   public static final String ADD_LIST_MEMBER =
+      "INSERT INTO user_list_contains (list_id, list_member) SELECT %s, '%s' FROM usr WHERE login = '%s'";
+   // list column, owner, member
+   public static final String REMOVE_LIST_MEMBER =
+      "DELETE FROM user_list_contains WHERE list_id = (SELECT %s FROM usr WHERE login = '%s') AND list_member = '%s'";
+   public static final String CONTACT_STATUSES =
+      "SELECT login, status FROM usr WHERE login IN (SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.contact_list = l.list_id)";
+   public static final String BLOCKED_USERS =
+      "SELECT login FROM usr WHERE login IN (SELECT l.list_member FROM usr u, user_list_contains l WHERE u.login = '%s' AND u.block_list = l.list_id)";
+
+   // phone numbers and batches, see PhoneDirectory and ContactBatch
+
+   // a canonical number, see PhoneDirectory.normalize
+   public static final String PHONE_LOOKUP =
+      "SELECT login FROM usr WHERE phone_norm = '%s'";
+   // rows of (index, canonical number)
+   public static final String PHONE_DISCOVER =
+      "SELECT v.idx, u.login FROM (VALUES %s) AS v(idx, phone) JOIN usr u ON u.phone_norm = v.phone";
+   // list column, opposite list column, rows of (index, login, canonical
+   // number or NULL), owner as an SQL literal: the login of each target,
+   // found by login or by number, and whether it is on either list
+   public static final String LIST_TARGETS =
+      "SELECT v.idx, coalesce(ul.login, up.login), " +
+      "CASE WHEN EXISTS (SELECT 1 FROM user_list_contains c WHERE c.list_id = o.%1$s AND c.list_member = coalesce(ul.login, up.login)) THEN 1 ELSE 0 END, " +
+      "CASE WHEN EXISTS (SELECT 1 FROM user_list_contains c WHERE c.list_id = o.%2$s AND c.list_member = coalesce(ul.login, up.login)) THEN 1 ELSE 0 END " +
+      "FROM (VALUES %3$s) AS v(idx, target, phone) CROSS JOIN usr o " +
+      "LEFT JOIN usr ul ON ul.login = CAST(v.target AS char(50)) " +
+      "LEFT JOIN usr up ON up.phone_norm = v.phone " +
+      "WHERE o.login = %4$s ORDER BY v.idx";
+   // list column, owner and members as SQL literals
+   public static final String ADD_LIST_MEMBERS =
+      "INSERT INTO user_list_contains (list_id, list_member) " +
+      "SELECT o.%s, u.login FROM usr o, usr u WHERE o.login = %s AND u.login IN (%s) ON CONFLICT DO NOTHING";
+   public static final String REMOVE_LIST_MEMBERS =
+      "DELETE FROM user_list_contains WHERE list_id = (SELECT %s FROM usr WHERE login = %s) AND list_member IN (%s)";
+
+   // presence, see PresenceService
+
+   public static final String PRESENCE_CONTACTS =
+      "SELECT o.contact_list, rtrim(u.login), rtrim(u.status), (extract(epoch FROM p.last_seen) * 1000)::bigint, p.online " +
+      "FROM usr o LEFT JOIN user_list_contains l ON l.list_id = o.contact_list LEFT JOIN usr u ON u.login = l.list_member " +
+      "LEFT JOIN user_presence p ON p.login = u.login WHERE o.login = '%s' ORDER BY u.login";
+   // rows of (login, last_seen, online); the VALUES are text, compared as
+   // bpchar so usr_pkey is probed instead of hashing every login
+   public static final String PRESENCE_UPSERT =
+      "INSERT INTO user_presence (login, last_seen, online) " +
+      "SELECT v.login, v.last_seen, v.online FROM (VALUES %s) v(login, last_seen, online) " +
+      "WHERE EXISTS (SELECT 1 FROM usr u WHERE u.login = v.login::bpchar) " +
+      "ON CONFLICT (login) DO UPDATE SET last_seen = greatest(user_presence.last_seen, EXCLUDED.last_seen), online = EXCLUDED.online";
+
+   // chats
+
+   public static final String RESERVE_IDS =
+      "SELECT nextval('%s') FROM generate_series(1, %d)";
+   public static final String CREATE_CHAT =
+      "INSERT INTO chat (chat_id, chat_type, init_sender) VALUES(%d, '%s', '%s')";
+   // rows of (chat_id, member)
+   public static final String ADD_CHAT_MEMBERS =
+      "INSERT INTO chat_list (chat_id, member) VALUES %s";
+   public static final String CHAT_BY_ID =
+      "SELECT * FROM chat WHERE chat_id = %s";
+   public static final String CHAT_OWNER =
+      "SELECT init_sender FROM chat WHERE chat_id = %s";
+   public static final String LOCK_CHAT =
+      "SELECT chat_id FROM chat WHERE chat_id = %d FOR UPDATE";
+   // chat, login
+   public static final String CHAT_MEMBER =
+      "SELECT member FROM chat_list WHERE chat_id = ? AND member = ?::bpchar";
+   public static final String ADD_CHAT_MEMBER =
+      "INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s') ON CONFLICT DO NOTHING RETURNING member";
+   public static final String REMOVE_CHAT_MEMBER =
+      "DELETE FROM chat_list WHERE chat_id = %d AND member = '%s' RETURNING member";
+   public static final String LEAVE_CHAT =
+      "DELETE FROM chat_list WHERE chat_id = %s AND member = '%s'";
+   public static final String UPDATE_CHAT_TYPE =
+      "UPDATE chat c SET chat_type = t.chat_type FROM (SELECT CASE WHEN member_count > 2 THEN 'group' ELSE 'private' END AS chat_type " +
+      "FROM chat_summary WHERE chat_id = %1$d) t WHERE c.chat_id = %1$d AND c.chat_type <> t.chat_type";
+   // login
+   public static final String CHAT_LIST =
+      "SELECT s.chat_id, c.init_sender, string_agg(rtrim(m.member), ' ' ORDER BY m.member) AS members, s.message_count AS messages, s.last_msg_timestamp AS last_message " +
+      "FROM chat_list l, chat c, chat_summary s, chat_list m WHERE l.member = ?::bpchar AND c.chat_id = l.chat_id AND s.chat_id = l.chat_id AND m.chat_id = l.chat_id " +
+      "GROUP BY s.chat_id, c.init_sender, s.message_count, s.last_msg_timestamp ORDER BY s.chat_id";
+   public static final String OWNED_CHAT_MEMBERS =
+      "SELECT l.chat_id, l.member FROM chat_list l, chat c WHERE c.init_sender = '%s' AND c.chat_id = l.chat_id";
+   public static final String CHAT_SUMMARY =
+      "SELECT member_count, message_count, last_msg_timestamp FROM chat_summary WHERE chat_id = %d";
+   public static final String DELETE_CHAT_MESSAGES =
+      "DELETE FROM message WHERE chat_id = %d";
+   public static final String DELETE_CHAT_MEMBERS =
+      "DELETE FROM chat_list WHERE chat_id = %d";
+   public static final String RETENTION =
+      "SELECT ttl_days, max_messages FROM chat_retention WHERE chat_id = %s";
+   public static final String SET_RETENTION =
+      "INSERT INTO chat_retention (chat_id, ttl_days, max_messages) VALUES (%s, %s, %s) " +
+      "ON CONFLICT (chat_id) DO UPDATE SET ttl_days = EXCLUDED.ttl_days, max_messages = EXCLUDED.max_messages";
+
+   // messages
+
+   public static final String APPEND_MESSAGE =
+      "INSERT INTO message (msg_text, sender_login, chat_id) VALUES('%s', '%s', %d)";
+   // a condition on m, the reader as an SQL value.  OFFSET 0 keeps it a
+   // probe of user_list_contains_pkey per row: pulled up into an anti-join,
+   // the generic plan of READER_PAGE compared every row with the whole list
+   private static final String NOT_BLOCKED =
+      "NOT EXISTS (SELECT 1 FROM usr u, user_list_contains b WHERE u.login = %s AND b.list_id = u.block_list AND b.list_member = m.sender_login OFFSET 0)";
+   // a condition on m, the reader
+   public static final String BLOCK_FILTER = String.format(NOT_BLOCKED, "'%s'");
+   // chat, sender filter, limit, offset
+   public static final String MESSAGE_PAGE =
+      "SELECT m.msg_id, coalesce(r.msg_text, m.msg_text) AS msg_text, m.msg_timestamp, m.sender_login FROM message m " +
+      "LEFT JOIN LATERAL (SELECT msg_text, msg_text IS NULL AS deleted FROM message_revision WHERE msg_id = m.msg_id ORDER BY rev DESC LIMIT 1) r ON true " +
+      "WHERE m.chat_id = %s AND r.deleted IS NOT TRUE AND %s ORDER BY m.msg_timestamp, m.msg_id LIMIT %s OFFSET %s";
+   // MESSAGE_PAGE filtered by the block list of the reader: chat, reader, limit, offset
+   public static final String READER_PAGE = String.format(MESSAGE_PAGE, "?", String.format(NOT_BLOCKED, "?::bpchar"), "?", "?");
+   public static final String OWN_MESSAGE =
+      "SELECT m.sender_login FROM message m WHERE m.chat_id = %d AND m.msg_id = %d AND m.sender_login = '%s' " +
+      "AND NOT EXISTS (SELECT 1 FROM message_revision r WHERE r.msg_id = m.msg_id AND r.msg_text IS NULL)";
+   // new text as an SQL literal, message
+   public static final String REVISE_MESSAGE =
+      "INSERT INTO message_revision (msg_id, rev, chat_id, msg_text) " +
+      "SELECT m.msg_id, coalesce((SELECT max(r.rev) FROM message_revision r WHERE r.msg_id = m.msg_id), 0) + 1, m.chat_id, %s " +
+      "FROM message m WHERE m.msg_id = %d";
+   // message, chat, sender, twice
+   public static final String MESSAGE_REVISIONS =
+      "SELECT 0 AS rev, msg_text, msg_timestamp AS changed FROM message WHERE msg_id = %1$d AND chat_id = %2$d AND sender_login = '%3$s' " +
+      "UNION ALL SELECT r.rev, coalesce(r.msg_text, '(deleted)'), r.rev_timestamp FROM message_revision r, message m " +
+      "WHERE r.msg_id = %1$d AND m.msg_id = r.msg_id AND m.chat_id = %2$d AND m.sender_login = '%3$s' ORDER BY 1";
+
+   // chat, condition on m and r, block filter: the current text of every
+   // message, NULL for deleted ones, see HistoryExport
+   public static final String HISTORY_EXPORT =
+      "SELECT m.msg_id, CASE WHEN r.deleted THEN NULL ELSE coalesce(r.msg_text, m.msg_text) END, m.msg_timestamp, rtrim(m.sender_login), m.chat_id FROM message m " +
+      "LEFT JOIN LATERAL (SELECT msg_text, msg_text IS NULL AS deleted, rev_timestamp FROM message_revision WHERE msg_id = m.msg_id ORDER BY rev DESC LIMIT 1) r ON true " +
+      "WHERE m.chat_id = %d AND %s AND %s ORDER BY m.msg_timestamp, m.msg_id";
+
+   // the journal, see MessageJournal
+
+   // rows of (ordinal, text, timestamp, sender, chat) in journal order.
+   // Rows to a chat or from a user deleted in the meantime are dropped; the
+   // ORDER BY hands out msg_id in journal order, and the sender is compared
+   // as bpchar so usr_pkey is probed instead of hashing every login
+   public static final String JOURNAL_APPLY =
+      "INSERT INTO message (msg_text, msg_timestamp, sender_login, chat_id) " +
+      "SELECT v.t, v.ts, v.s, v.c FROM (VALUES %s) AS v(n, t, ts, s, c) " +
+      "WHERE EXISTS (SELECT 1 FROM chat WHERE chat_id = v.c) AND EXISTS (SELECT 1 FROM usr WHERE login = v.s::bpchar) ORDER BY v.n";
+   // node, offset
+   public static final String JOURNAL_MARK_APPLIED =
+      "INSERT INTO journal_applied (node, applied_offset) VALUES (%s, %d) " +
+      "ON CONFLICT (node) DO UPDATE SET applied_offset = EXCLUDED.applied_offset";
+   public static final String JOURNAL_APPLIED =
+      "SELECT applied_offset FROM journal_applied WHERE node = %s";
+
+   // tables large enough that reading one in full is a regression
+   public static final List<String> GUARDED = Collections.unmodifiableList(Arrays.asList(
+      "message", "message_revision", "chat_list", "user_list_contains", "usr"));
+
+   // estimated cost bounds: a few key lookups, one user's lists or chats,
+   // a page of the busiest chat and all of it, a block filter probe per
+   // message
+   public static final double POINT_COST = 100;
+   public static final double LIST_COST = 1000;
+   public static final double PAGE_COST = 5000;
+   public static final double EXPORT_COST = 400000;
+
+   private QueryCatalog () {
+   }//end QueryCatalog
+
+   /**
+    * One template filled with sample values, and the plan it should get.
+    */
+   public static final class Plan {
+      // the name of the template in this class
+      public final String name;
+      public final String sql;
+      public final double maxCost;
+      // indexes the plan must use
+      public final List<String> indexes;
+      // guarded tables the plan may read in full, and why
+      public final List<String> scans;
+      public final String reason;
+      // SQL values bound to the ? of a parameter template, empty for the others
+      public final List<String> params;
+
+      Plan (String name, String sql, double maxCost, String... indexes) {
+         this(name, sql, maxCost, indexes, new String[0], null);
+      }//end Plan
+
+      Plan (String name, String sql, String[] params, double maxCost, String... indexes) {
+         this(name, sql, params, maxCost, indexes, new String[0], null);
+      }//end Plan
+
+      Plan (String name, String sql, double maxCost, String[] indexes, String[] scans, String reason) {
+         this(name, sql, new String[0], maxCost, indexes, scans, reason);
+      }//end Plan
+
+      Plan (String name, String sql, String[] params, double maxCost, String[] indexes, String[] scans, String reason) {
+         this.name = name;
+         this.sql = sql;
+         this.params = Collections.unmodifiableList(Arrays.asList(params));
+         this.maxCost = maxCost;
+         this.indexes = Collections.unmodifiableList(Arrays.asList(indexes));
+         this.scans = Collections.unmodifiableList(Arrays.asList(scans));
+         this.reason = reason;
+      }//end Plan
+   }//end Plan
+
+   /**
+    * Fills every template in with sample values.  Nothing is run, the
+    * statements are only explained.
+    *
+    * @param login a user who is a member of chatId
+    * @param other another user
+    * @param chatId a chat, the busiest one makes the page bounds meaningful
+    * @param msgId a message of the chat
+    * @return one plan per template
+    */
+   public static List<Plan> plans (String login, String other, int chatId, int msgId) {
+      String chat = String.valueOf(chatId);
+      String fresh = "plancheck";
+      String value = "'" + login + "'";
+      List<Plan> plans = new ArrayList<Plan>();
+      plans.add(new Plan("USER_BY_LOGIN", String.format(USER_BY_LOGIN, login), POINT_COST, "usr_pkey"));
+      plans.add(new Plan("AUTHENTICATE", AUTHENTICATE, new String[] { value, "'pw'" }, POINT_COST, "usr_pkey"));
+      plans.add(new Plan("CREATE_LISTS", String.format(CREATE_LISTS, 0, 1), POINT_COST));
+      plans.add(new Plan("CREATE_USER", String.format(CREATE_USER, "+0", fresh, "pw", 0, 1), POINT_COST));
+      plans.add(new Plan("USER_REFERENCES", String.format(USER_REFERENCES, login), POINT_COST,
+         "chat_list_member_idx", "message_sender_idx", "user_list_contains_member_idx"));
+      plans.add(new Plan("DELETE_USER", String.format(DELETE_USER, login), POINT_COST, "usr_pkey"));
+      plans.add(new Plan("SET_STATUS", String.format(SET_STATUS, "away", login), POINT_COST, "usr_pkey"));
+      plans.add(new Plan("LIST_MEMBER", String.format(LIST_MEMBER, login, CONTACT_LIST, other), POINT_COST,
+         "usr_pkey", "user_list_contains_pkey"));
+      plans.add(new Plan("ADD_LIST_MEMBER", String.format(ADD_LIST_MEMBER, BLOCK_LIST, other, login), POINT_COST, "usr_pkey"));
+      plans.add(new Plan("REMOVE_LIST_MEMBER", String.format(REMOVE_LIST_MEMBER, BLOCK_LIST, login, other), POINT_COST,
+         "usr_pkey", "user_list_contains_pkey"));
+      plans.add(new Plan("CONTACT_STATUSES", String.format(CONTACT_STATUSES, login), LIST_COST, "user_list_contains_pkey"));
+      plans.add(new Plan("BLOCKED_USERS", String.format(BLOCKED_USERS, login), LIST_COST, "user_list_contains_pkey"));
+      String targets = String.format("(0, '%s', NULL), (1, '%s', '+11803931512')", other, "nobody");
+      plans.add(new Plan("PHONE_LOOKUP", String.format(PHONE_LOOKUP, "+11803931512"), POINT_COST, "usr_phone_norm_idx"));
+      plans.add(new Plan("PHONE_DISCOVER", String.format(PHONE_DISCOVER, "(0, '+11803931512'), (1, '+15550100')"), POINT_COST,
+         "usr_phone_norm_idx"));
+      plans.add(new Plan("LIST_TARGETS", String.format(LIST_TARGETS, CONTACT_LIST, BLOCK_LIST, targets, value), POINT_COST,
+         "usr_pkey", "usr_phone_norm_idx", "user_list_contains_pkey"));
+      plans.add(new Plan("ADD_LIST_MEMBERS", String.format(ADD_LIST_MEMBERS, CONTACT_LIST, value, "'" + other + "'"), POINT_COST,
+         "usr_pkey"));
+      plans.add(new Plan("REMOVE_LIST_MEMBERS", String.format(REMOVE_LIST_MEMBERS, CONTACT_LIST, value, "'" + other + "'"), POINT_COST,
+         "usr_pkey", "user_list_contains_pkey"));
+      plans.add(new Plan("PRESENCE_CONTACTS", String.format(PRESENCE_CONTACTS, login), LIST_COST, "user_list_contains_pkey"));
+      plans.add(new Plan("PRESENCE_UPSERT", String.format(PRESENCE_UPSERT,
+         String.format("('%s', now(), true), ('%s', now(), false)", login, other)), POINT_COST, "usr_pkey"));
+      plans.add(new Plan("RESERVE_IDS", String.format(RESERVE_IDS, "chat_chat_id_seq", 100), POINT_COST));
+      plans.add(new Plan("CREATE_CHAT", String.format(CREATE_CHAT, 0, "private", login), POINT_COST));
+      plans.add(new Plan("ADD_CHAT_MEMBERS", String.format(ADD_CHAT_MEMBERS,
+         String.format("(%d, '%s'), (%d, '%s')", chatId, login, chatId, other)), POINT_COST));
+      plans.add(new Plan("CHAT_BY_ID", String.format(CHAT_BY_ID, chat), POINT_COST, "chat_pkey"));
+      plans.add(new Plan("CHAT_OWNER", String.format(CHAT_OWNER, chat), POINT_COST, "chat_pkey"));
+      plans.add(new Plan("LOCK_CHAT", String.format(LOCK_CHAT, chatId), POINT_COST, "chat_pkey"));
+      plans.add(new Plan("CHAT_MEMBER", CHAT_MEMBER, new String[] { chat, value }, POINT_COST, "chat_list_pkey"));
+      plans.add(new Plan("ADD_CHAT_MEMBER", String.format(ADD_CHAT_MEMBER, chatId, other), POINT_COST));
+      plans.add(new Plan("REMOVE_CHAT_MEMBER", String.format(REMOVE_CHAT_MEMBER, chatId, other), POINT_COST, "chat_list_pkey"));
+      plans.add(new Plan("LEAVE_CHAT", String.format(LEAVE_CHAT, chat, login), POINT_COST, "chat_list_pkey"));
+      plans.add(new Plan("UPDATE_CHAT_TYPE", String.format(UPDATE_CHAT_TYPE, chatId), POINT_COST,
+         "chat_pkey", "chat_summary_pkey"));
+      plans.add(new Plan("CHAT_LIST", CHAT_LIST, new String[] { value }, LIST_COST, "chat_list_member_idx"));
+      plans.add(new Plan("OWNED_CHAT_MEMBERS", String.format(OWNED_CHAT_MEMBERS, login), LIST_COST, "chat_list_pkey"));
+      plans.add(new Plan("CHAT_SUMMARY", String.format(CHAT_SUMMARY, chatId), POINT_COST, "chat_summary_pkey"));
+      plans.add(new Plan("DELETE_CHAT_MESSAGES", String.format(DELETE_CHAT_MESSAGES, chatId), PAGE_COST, "message_chat_time_idx"));
+      plans.add(new Plan("DELETE_CHAT_MEMBERS", String.format(DELETE_CHAT_MEMBERS, chatId), LIST_COST, "chat_list_pkey"));
+      plans.add(new Plan("RETENTION", String.format(RETENTION, chat), POINT_COST));
+      plans.add(new Plan("SET_RETENTION", String.format(SET_RETENTION, chat, 30, "NULL"), POINT_COST));
+      plans.add(new Plan("APPEND_MESSAGE", String.format(APPEND_MESSAGE, "hello", login, chatId), POINT_COST));
+      plans.add(new Plan("BLOCK_FILTER", String.format("SELECT m.msg_id FROM message m WHERE m.msg_id = %d AND %s",
+         msgId, String.format(BLOCK_FILTER, login)), POINT_COST, "message_pkey", "user_list_contains_pkey"));
+      plans.add(new Plan("MESSAGE_PAGE", String.format(MESSAGE_PAGE, chatId, String.format(BLOCK_FILTER, login),
+         HistoryView.PAGE_SIZE + 1, 0), PAGE_COST, "message_chat_time_idx", "message_revision_pkey"));
+      plans.add(new Plan("READER_PAGE", READER_PAGE, new String[] { chat, value, String.valueOf(HistoryView.PAGE_SIZE + 1), "0" },
+         PAGE_COST, "message_chat_time_idx", "message_revision_pkey"));
+      plans.add(new Plan("OWN_MESSAGE", String.format(OWN_MESSAGE, chatId, msgId, login), POINT_COST, "message_pkey"));
+      plans.add(new Plan("REVISE_MESSAGE", String.format(REVISE_MESSAGE, "'edited'", msgId), POINT_COST,
+         "message_pkey", "message_revision_pkey"));
+      plans.add(new Plan("MESSAGE_REVISIONS", String.format(MESSAGE_REVISIONS, msgId, chatId, login), POINT_COST,
+         "message_pkey", "message_revision_pkey"));
+      plans.add(new Plan("HISTORY_EXPORT", String.format(HISTORY_EXPORT, chatId, "r.deleted IS NOT TRUE",
+         String.format(BLOCK_FILTER, login)), EXPORT_COST, "message_chat_time_idx", "message_revision_pkey"));
+      plans.add(new Plan("JOURNAL_APPLY", String.format(JOURNAL_APPLY, String.format(
+         "(0, 'hello', now(), '%s', %d), (1, 'again', now(), '%s', %d)", login, chatId, other, chatId)), POINT_COST,
+         "chat_pkey", "usr_pkey"));
+      plans.add(new Plan("JOURNAL_MARK_APPLIED", String.format(JOURNAL_MARK_APPLIED, "'" + fresh + "'", 0), POINT_COST));
+      plans.add(new Plan("JOURNAL_APPLIED", String.format(JOURNAL_APPLIED, "'" + fresh + "'"), POINT_COST));
+      return plans;
+   }//end plans
+
+}//end QueryCatalog
@@ -0,0 +1,106 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free token bucket limiter keyed by user or chat.  Keys are hashed to
+ * a fixed number of stripes and each stripe is one bucket packed into a
+ * single long (tokens in thousandths in the high bits, last refill time in
+ * the low bits) and updated with compare-and-set.  Keys sharing a stripe
+ * share a bucket, so the stripe count should be well above the number of
+ * keys active at once.
+ *
+ */
+public class RateLimiter {
+
+   private static final int TIME_BITS = 42;
+   private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+   private static final long ONE_TOKEN = 1000;
+
+   private final String _name;
+   private final AtomicLongArray _buckets;
+   private final int _mask;
+   private final long _capacity;     // thousandths of a token
+   private final double _refillPerMs; // thousandths of a token per ms
+   private final long _epoch = System.currentTimeMillis();
+   private final AtomicLong _rejected;
+
+   /**
+    * Creates a new limiter.
+    *
+    * @param name the name used for the rejection counter, rate.NAME.rejected
+    * @param perSecond the sustained rate allowed per key
+    * @param burst the number of requests a key may make at once
+    * @param stripes the number of buckets, rounded up to a power of two
+    */
+   public RateLimiter (String name, double perSecond, int burst, int stripes) {
+      if (burst < 1 || burst > 4000)
+         throw new IllegalArgumentException("burst must be between 1 and 4000");
+      int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+      this._name = name;
+      this._buckets = new AtomicLongArray(size);
+      this._mask = size - 1;
+      this._capacity = burst * ONE_TOKEN;
+      this._refillPerMs = perSecond * ONE_TOKEN / 1000.0;
+      this._rejected = Metrics.counter("rate." + name + ".rejected");
+      // buckets start full
+      for (int i = 0; i < size; ++i)
+         _buckets.set(i, pack(_capacity, 0));
+   }//end RateLimiter
+
+   /**
+    * Takes one token from the bucket of the key.
+    *
+    * @param key the user login or chat id
+    * @return true if the request may proceed, false if it is rate limited
+    */
+   public boolean tryAcquire (String key) {
+      int stripe = spread(key.hashCode()) & _mask;
+      long now = System.currentTimeMillis() - _epoch;
+      while (true) {
+         long state = _buckets.get(stripe);
+         long elapsed = Math.max(0, now - (state & TIME_MASK));
+         long tokens = Math.min(_capacity, (state >>> TIME_BITS) + (long) (elapsed * _refillPerMs));
+         if (tokens < ONE_TOKEN) {
+            _rejected.incrementAndGet();
+            return false;
+         }
+         if (_buckets.compareAndSet(stripe, state, pack(tokens - ONE_TOKEN, now)))
+            return true;
+      }//end while
+   }//end tryAcquire
+
+   /**
+    * @return the number of requests rejected so far
+    */
+   public long rejected () {
+      return _rejected.get();
+   }//end rejected
+
+   public String getName () {
+      return _name;
+   }//end getName
+
+   private static long pack (long tokens, long time) {
+      return (tokens << TIME_BITS) | (time & TIME_MASK);
+   }//end pack
+
+   private static int spread (int h) {
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      return h ^ (h >>> 13);
+   }//end spread
+
+}//end RateLimiter
@@ -0,0 +1,241 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Formats result pages into one reusable buffer and writes each page to
+ * standard out with a single call, instead of one synchronized print per
+ * cell.  The trailing blanks of char(n) values are cut while copying, so no
+ * trimmed copy of a value is made.
+ *
+ * The format is chosen with the messenger.output system property:
+ *   table   aligned columns for the terminal (default)
+ *   tsv     a header line, then one tab separated line per row
+ *   json    one JSON object per row, keyed by column label
+ *
+ * A renderer is owned by one Messenger and is not thread safe.
+ *
+ */
+public class ResultRenderer {
+
+   public enum Format { TABLE, TSV, JSON }
+
+   // a wider value is not padded, it pushes the rest of its row right
+   private static final int MAX_WIDTH = 60;
+
+   private final Format _format;
+   private final PrintStream _out;
+
+   // reused from page to page
+   private final StringBuilder _buffer = new StringBuilder(8192);
+   private final List<String> _header = new ArrayList<String>();
+   private final List<String> _cells = new ArrayList<String>();
+   private int[] _widths = new int[8];
+
+   public ResultRenderer (Format format, PrintStream out) {
+      this._format = format;
+      this._out = out;
+   }//end ResultRenderer
+
+   /**
+    * Builds a renderer for standard out from the messenger.output system
+    * property.
+    *
+    * @return the renderer
+    */
+   public static ResultRenderer fromSystemProperties () {
+      return new ResultRenderer(
+         Format.valueOf(System.getProperty("messenger.output", "table").trim().toUpperCase()), System.out);
+   }//end fromSystemProperties
+
+   /**
+    * Renders every row of a result set.  Nothing is written when it is
+    * empty.
+    *
+    * @param rs the result set, positioned before the first row
+    * @return the number of rows rendered
+    * @throws java.sql.SQLException when reading the result set failed
+    */
+   public int render (ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      _header.clear();
+      _cells.clear();
+      for (int i = 1; i <= numCol; ++i)
+         _header.add(rsmd.getColumnLabel(i));
+      int rowCount = 0;
+      while (rs.next()) {
+         for (int i = 1; i <= numCol; ++i)
+            _cells.add(rs.getString(i));
+         ++rowCount;
+      }
+      flush(numCol, rowCount);
+      return rowCount;
+   }//end render
+
+   /**
+    * Renders rows that were already read.
+    *
+    * @param header the column labels
+    * @param rows the rows, each with one value per label
+    * @return the number of rows rendered
+    */
+   public int render (List<String> header, List<List<String>> rows) {
+      _header.clear();
+      _cells.clear();
+      _header.addAll(header);
+      for (List<String> row : rows)
+         _cells.addAll(row);
+      flush(header.size(), rows.size());
+      return rows.size();
+   }//end render
+
+   private void flush (int numCol, int rowCount) {
+      if (rowCount == 0)
+         return;
+      _buffer.setLength(0);
+      switch (_format) {
+      case TABLE: table(numCol, rowCount); break;
+      case TSV: tsv(numCol, rowCount); break;
+      case JSON: json(numCol, rowCount); break;
+      }
+      _out.print(_buffer);
+      _out.flush();
+      if (_buffer.capacity() > 1 << 20) {
+         _buffer.setLength(0);
+         _buffer.trimToSize();
+      }
+   }//end flush
+
+   private void table (int numCol, int rowCount) {
+      if (_widths.length < numCol)
+         _widths = new int[numCol];
+      for (int c = 0; c < numCol; ++c)
+         _widths[c] = Math.min(MAX_WIDTH, _header.get(c).length());
+      for (int r = 0; r < rowCount; ++r)
+         for (int c = 0; c < numCol; ++c)
+            _widths[c] = Math.max(_widths[c], Math.min(MAX_WIDTH, trimmedLength(_cells.get(r * numCol + c))));
+      for (int c = 0; c < numCol; ++c)
+         cell(_header.get(c), c, numCol);
+      _buffer.append('\n');
+      for (int c = 0; c < numCol; ++c) {
+         for (int i = 0; i < _widths[c]; ++i)
+            _buffer.append('-');
+         _buffer.append(c + 1 < numCol ? "  " : "\n");
+      }
+      for (int r = 0; r < rowCount; ++r) {
+         for (int c = 0; c < numCol; ++c)
+            cell(_cells.get(r * numCol + c), c, numCol);
+         _buffer.append('\n');
+      }
+   }//end table
+
+   private void cell (String value, int c, int numCol) {
+      int len = trimmedLength(value);
+      if (value != null)
+         _buffer.append(value, 0, len);
+      if (c + 1 < numCol) {
+         for (int i = len; i < _widths[c] + 2; ++i)
+            _buffer.append(' ');
+      }
+   }//end cell
+
+   private void tsv (int numCol, int rowCount) {
+      for (int c = 0; c < numCol; ++c) {
+         escapeTsv(_header.get(c));
+         _buffer.append(c + 1 < numCol ? '\t' : '\n');
+      }
+      for (int r = 0; r < rowCount; ++r) {
+         for (int c = 0; c < numCol; ++c) {
+            String value = _cells.get(r * numCol + c);
+            if (value == null)
+               _buffer.append("\\N");
+            else
+               escapeTsv(value);
+            _buffer.append(c + 1 < numCol ? '\t' : '\n');
+         }
+      }
+   }//end tsv
+
+   private void escapeTsv (String value) {
+      int len = trimmedLength(value);
+      for (int i = 0; i < len; ++i) {
+         char ch = value.charAt(i);
+         switch (ch) {
+         case '\t': _buffer.append("\\t"); break;
+         case '\n': _buffer.append("\\n"); break;
+         case '\r': _buffer.append("\\r"); break;
+         case '\\': _buffer.append("\\\\"); break;
+         default: _buffer.append(ch);
+         }
+      }
+   }//end escapeTsv
+
+   private void json (int numCol, int rowCount) {
+      for (int r = 0; r < rowCount; ++r) {
+         _buffer.append('{');
+         for (int c = 0; c < numCol; ++c) {
+            if (c > 0)
+               _buffer.append(',');
+            escapeJson(_header.get(c));
+            _buffer.append(':');
+            String value = _cells.get(r * numCol + c);
+            if (value == null)
+               _buffer.append("null");
+            else
+               escapeJson(value);
+         }
+         _buffer.append("}\n");
+      }
+   }//end json
+
+   private void escapeJson (String value) {
+      int len = trimmedLength(value);
+      _buffer.append('"');
+      for (int i = 0; i < len; ++i) {
+         char ch = value.charAt(i);
+         switch (ch) {
+         case '"': _buffer.append("\\\""); break;
+         case '\\': _buffer.append("\\\\"); break;
+         case '\n': _buffer.append("\\n"); break;
+         case '\r': _buffer.append("\\r"); break;
+         case '\t': _buffer.append("\\t"); break;
+         default:
+            if (ch < 0x20)
+               _buffer.append(String.format("\\u%04x", (int) ch));
+            else
+               _buffer.append(ch);
+         }
+      }
+      _buffer.append('"');
+   }//end escapeJson
+
+   /**
+    * @return the length of value without its trailing blanks, 0 for null
+    */
+   private static int trimmedLength (String value) {
+      if (value == null)
+         return 0;
+      int len = value.length();
+      while (len > 0 && value.charAt(len - 1) == ' ')
+         --len;
+      return len;
+   }//end trimmedLength
+
+}//end ResultRenderer
@@ -0,0 +1,319 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enforces the message retention policies in the background.  A chat's
+ * policy is its CHAT_RETENTION row, falling back to the process defaults:
+ *
+ *   ttl_days       messages older than this many days are deleted
+ *   max_messages   only the newest this many messages are kept, not
+ *                  counting deleted ones
+ *
+ * and chats without a message for messenger.retention.inactiveDays are
+ * deleted with their members.  Inactivity is CHAT_SUMMARY.last_activity,
+ * the creation of the chat or its newest message, which deleting messages
+ * does not move back, so a chat never written to expires as well and a
+ * chat emptied by the job is still inactive when its row is deleted.  NULL in CHAT_RETENTION takes the default, 0
+ * means no limit.
+ *
+ * Each pass walks the chats in primary key order and deletes in batches of
+ * at most messenger.retention.batch rows, each found through
+ * message_chat_time_idx and committed on its own, with a pause between
+ * batches, so no lock is held for long and the job never competes hard with
+ * the users.  Only one process at a time runs the passes, the others wait
+ * on an advisory lock.
+ *
+ * Configured with system properties:
+ *   messenger.retention               true starts the job (default false)
+ *   messenger.retention.ttlDays       default message TTL (default 0)
+ *   messenger.retention.maxMessages   default history length (default 0)
+ *   messenger.retention.inactiveDays  chat expiry, 0 never (default 0)
+ *   messenger.retention.batch         rows per statement (default 500)
+ *   messenger.retention.pauseMs       pause between batches (default 50)
+ *   messenger.retention.intervalMs    pause between passes (default 60000)
+ *
+ */
+public class RetentionJob implements Runnable {
+
+   // advisory lock key held by the process running the passes
+   private static final long LOCK_KEY = 0x6d7367726574L;
+
+   // chats read per keyset step of a pass
+   private static final int CHATS_PER_STEP = 200;
+
+   // dedicated connection, the Messenger connection belongs to the UI thread
+   private final Connection _connection;
+   private final int _ttlDays;
+   private final int _maxMessages;
+   private final int _inactiveDays;
+   private final int _batch;
+   private final long _pauseMs;
+   private final long _intervalMs;
+
+   private volatile boolean _running = false;
+   private Thread _thread = null;
+   private boolean _locked = false;
+
+   private final AtomicLong _messages = Metrics.counter("retention.messages");
+   private final AtomicLong _chats = Metrics.counter("retention.chats");
+
+   public RetentionJob (Connection connection, int ttlDays, int maxMessages, int inactiveDays,
+                        int batch, long pauseMs, long intervalMs) {
+      this._connection = connection;
+      this._ttlDays = ttlDays;
+      this._maxMessages = maxMessages;
+      this._inactiveDays = inactiveDays;
+      this._batch = Math.max(1, batch);
+      this._pauseMs = pauseMs;
+      this._intervalMs = intervalMs;
+   }//end RetentionJob
+
+   /**
+    * Builds a job from the messenger.retention system properties.
+    *
+    * @param esql the Messenger to open the job connection from
+    * @return the job, or null when it is disabled
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public static RetentionJob fromSystemProperties (Messenger esql) throws SQLException {
+      if (!Boolean.getBoolean("messenger.retention"))
+         return null;
+      return new RetentionJob(esql.openHelperConnection(),
+         Integer.getInteger("messenger.retention.ttlDays", 0),
+         Integer.getInteger("messenger.retention.maxMessages", 0),
+         Integer.getInteger("messenger.retention.inactiveDays", 0),
+         Integer.getInteger("messenger.retention.batch", 500),
+         Long.getLong("messenger.retention.pauseMs", 50L),
+         Long.getLong("messenger.retention.intervalMs", 60000L));
+   }//end fromSystemProperties
+
+   /**
+    * Starts the job thread.  The thread is a daemon so it never keeps the
+    * process alive on its own.
+    */
+   public synchronized void start () {
+      if (_running)
+         return;
+      _running = true;
+      _thread = new Thread(this, "messenger-retention");
+      _thread.setDaemon(true);
+      _thread.start();
+   }//end start
+
+   /**
+    * Stops the job thread and closes its connection, which also releases
+    * the advisory lock.
+    */
+   public void stop () {
+      _running = false;
+      Thread thread;
+      synchronized (this) {
+         thread = _thread;
+         _thread = null;
+      }
+      if (thread != null) {
+         thread.interrupt();
+         try {
+            thread.join(_pauseMs * 4 + 1000);
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      try {
+         _connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }//end stop
+
+   public void run () {
+      while (_running) {
+         try {
+            if (lock())
+               pass();
+            Thread.sleep(_intervalMs);
+         }catch (InterruptedException e) {
+            return;
+         }catch (SQLException e) {
+            if (!_running)
+               return;
+            System.err.println("Retention: " + e.getMessage());
+            try {
+               Thread.sleep(_intervalMs);
+            }catch (InterruptedException ie) {
+               return;
+            }
+         }
+      }
+   }//end run
+
+   /**
+    * Runs one pass over every chat.
+    *
+    * @return the number of messages deleted
+    * @throws java.sql.SQLException when a statement failed
+    * @throws InterruptedException when the job is stopped
+    */
+   public long pass () throws SQLException, InterruptedException {
+      long deleted = 0;
+      // chat ids start at 0 in the loaded data
+      int cursor = -1;
+      while (_running) {
+         List<int[]> chats = new ArrayList<int[]>();
+         Statement stmt = _connection.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(String.format(
+               "SELECT s.chat_id, s.message_count, coalesce(r.ttl_days, %d), coalesce(r.max_messages, %d), " +
+               "CASE WHEN %d > 0 AND s.last_activity < now() - interval '1 day' * %d THEN 1 ELSE 0 END " +
+               "FROM chat_summary s LEFT JOIN chat_retention r ON r.chat_id = s.chat_id " +
+               "WHERE s.chat_id > %d ORDER BY s.chat_id LIMIT %d",
+               _ttlDays, _maxMessages, _inactiveDays, _inactiveDays, cursor, CHATS_PER_STEP));
+            while (rs.next())
+               chats.add(new int[] { rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5) });
+         }finally {
+            stmt.close();
+         }
+         if (chats.isEmpty())
+            break;
+         for (int[] chat : chats) {
+            int chatId = chat[0];
+            if (chat[4] == 1) {
+               deleted += expireChat(chatId);
+               continue;
+            }
+            if (chat[2] > 0)
+               deleted += deleteInBatches(String.format(
+                  "DELETE FROM message WHERE msg_id IN (SELECT msg_id FROM message WHERE chat_id = %d " +
+                  "AND msg_timestamp < now() - interval '1 day' * %d ORDER BY msg_timestamp LIMIT %d)",
+                  chatId, chat[2], _batch));
+            if (chat[3] > 0 && chat[1] > chat[3])
+               deleted += trimHistory(chatId, chat[3]);
+         }
+         cursor = chats.get(chats.size() - 1)[0];
+      }
+      return deleted;
+   }//end pass
+
+   /**
+    * Deletes the messages older than the newest max of a chat.  The cutoff
+    * is the timestamp of the max-th newest message, tombstones left out as
+    * message_count leaves them out, found once; the batches then delete
+    * from the oldest end of the index up to it, and messages sent since
+    * are newer than the cutoff.
+    */
+   private long trimHistory (int chatId, int max) throws SQLException, InterruptedException {
+      String cutoff;
+      Statement stmt = _connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(String.format(
+            "SELECT m.msg_timestamp FROM message m WHERE m.chat_id = %d " +
+            "AND NOT EXISTS (SELECT 1 FROM message_revision r WHERE r.msg_id = m.msg_id AND r.msg_text IS NULL) " +
+            "ORDER BY m.msg_timestamp DESC OFFSET %d LIMIT 1", chatId, max - 1));
+         cutoff = rs.next() ? rs.getString(1) : null;
+      }finally {
+         stmt.close();
+      }
+      if (cutoff == null)
+         return 0;
+      return deleteInBatches(String.format(
+         "DELETE FROM message WHERE msg_id IN (SELECT msg_id FROM message WHERE chat_id = %d " +
+         "AND msg_timestamp < '%s' ORDER BY msg_timestamp LIMIT %d)",
+         chatId, cutoff, _batch));
+   }//end trimHistory
+
+   /**
+    * Deletes the messages of an inactive chat, then the chat and its
+    * members.  Every batch checks the chat is still inactive, so a chat
+    * that gets a new message in the meantime is left alone.
+    */
+   private long expireChat (int chatId) throws SQLException, InterruptedException {
+      String inactive = String.format(
+         "(SELECT last_activity FROM chat_summary WHERE chat_id = %d) < now() - interval '1 day' * %d",
+         chatId, _inactiveDays);
+      long deleted = deleteInBatches(String.format(
+         "DELETE FROM message WHERE msg_id IN (SELECT msg_id FROM message WHERE chat_id = %d " +
+         "ORDER BY msg_timestamp LIMIT %d) AND %s", chatId, _batch, inactive));
+      _connection.setAutoCommit(false);
+      try {
+         Statement stmt = _connection.createStatement();
+         try {
+            String empty = String.format("NOT EXISTS (SELECT 1 FROM message WHERE chat_id = %d)", chatId);
+            stmt.executeUpdate(String.format(
+               "DELETE FROM chat_list WHERE chat_id = %d AND %s AND %s", chatId, empty, inactive));
+            if (stmt.executeUpdate(String.format(
+                  "DELETE FROM chat WHERE chat_id = %d AND %s AND %s", chatId, empty, inactive)) == 1) {
+               _connection.commit();
+               _chats.incrementAndGet();
+            }else
+               _connection.rollback();
+         }finally {
+            stmt.close();
+         }
+      }catch (SQLException e) {
+         _connection.rollback();
+         throw e;
+      }finally {
+         _connection.setAutoCommit(true);
+      }
+      return deleted;
+   }//end expireChat
+
+   /**
+    * Runs a batch delete until it deletes less than a full batch, pausing
+    * between batches.
+    */
+   private long deleteInBatches (String delete) throws SQLException, InterruptedException {
+      long total = 0;
+      while (_running) {
+         Statement stmt = _connection.createStatement();
+         int n;
+         try {
+            n = stmt.executeUpdate(delete);
+         }finally {
+            stmt.close();
+         }
+         total += n;
+         _messages.addAndGet(n);
+         if (n < _batch)
+            break;
+         Thread.sleep(_pauseMs);
+      }
+      return total;
+   }//end deleteInBatches
+
+   /**
+    * Takes the advisory lock so only one process runs the passes.  The lock
+    * is held until the connection closes.
+    */
+   private boolean lock () throws SQLException {
+      if (_locked)
+         return true;
+      Statement stmt = _connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(String.format("SELECT pg_try_advisory_lock(%d)", LOCK_KEY));
+         _locked = rs.next() && rs.getString(1).startsWith("t");
+      }finally {
+         stmt.close();
+      }
+      return _locked;
+   }//end lock
+
+}//end RetentionJob
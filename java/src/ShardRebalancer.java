@@ -0,0 +1,239 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves chat buckets between the shards of a ShardedStore, with the same
+ * messenger.shards setting as the Messenger:
+ *
+ *   java ShardRebalancer <dbname> <port> <user> -status
+ *   java ShardRebalancer <dbname> <port> <user> -move <bucket> <shard>
+ *   java ShardRebalancer <dbname> <port> <user> -even
+ *
+ * A move marks the bucket MOVING in CHAT_BUCKET, so Messenger processes
+ * refuse writes to its chats, and waits until they all reloaded the map.
+ * It then copies the chats, members, retention settings, messages and
+ * revisions to the target shard in one transaction, where the triggers
+ * rebuild the chat summaries, hands the bucket to the target and deletes
+ * the rows from the source.  Messages get new ids on the target, from its
+ * own sequence.  A failed copy gives the bucket back to the source.
+ *
+ */
+public class ShardRebalancer {
+
+   // rows per copied batch
+   private static final int BATCH = 500;
+
+   private final Messenger _global;
+   private final List<Messenger> _shards;
+
+   public ShardRebalancer (Messenger global, List<Messenger> shards) {
+      this._global = global;
+      this._shards = shards;
+   }//end ShardRebalancer
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: java -Dmessenger.shards=<port>/<dbname>,... " + ShardRebalancer.class.getName () +
+            " <dbname> <port> <user> -status | -move <bucket> <shard> | -even");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      Messenger global = new Messenger(args[0], args[1], args[2], "");
+      List<Messenger> shards = null;
+      try {
+         shards = ShardedStore.connectShards(args[2], "");
+         if (shards == null)
+            throw new SQLException("Set messenger.shards to the shards of the Messenger");
+         ShardedStore.createBucketMap(global);
+         ShardRebalancer rebalancer = new ShardRebalancer(global, shards);
+         if (args[3].equals("-move") && args.length >= 6)
+            rebalancer.move(Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+         else if (args[3].equals("-even"))
+            rebalancer.even();
+         rebalancer.status();
+      }finally {
+         if (shards != null)
+            for (Messenger shard : shards)
+               shard.cleanup();
+         global.cleanup();
+      }
+   }//end main
+
+   /**
+    * Prints the buckets and chats of each shard.
+    */
+   public void status () throws SQLException {
+      int[] owners = owners();
+      System.out.println(String.format("%-6s %8s %8s", "shard", "buckets", "chats"));
+      for (int s = 0; s < _shards.size(); ++s) {
+         int buckets = 0;
+         for (int owner : owners)
+            if (owner == s)
+               ++buckets;
+         String chats = _shards.get(s).executeQueryAndReturnResult("SELECT count(*) FROM chat").get(0).get(0);
+         System.out.println(String.format("%-6d %8d %8s", s, buckets, chats));
+      }
+      for (int b = 0; b < owners.length; ++b)
+         if (owners[b] == ShardedStore.MOVING || owners[b] >= _shards.size())
+            System.out.println("bucket " + b + " is on shard " + owners[b]);
+   }//end status
+
+   /**
+    * Moves buckets from the shard with the most to the shard with the
+    * fewest until they differ by at most one.
+    */
+   public void even () throws SQLException {
+      while (true) {
+         int[] owners = owners();
+         Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+         for (int s = 0; s < _shards.size(); ++s)
+            counts.put(s, 0);
+         for (int owner : owners)
+            if (counts.containsKey(owner))
+               counts.put(owner, counts.get(owner) + 1);
+         int most = 0, fewest = 0;
+         for (int s = 0; s < _shards.size(); ++s) {
+            if (counts.get(s) > counts.get(most)) most = s;
+            if (counts.get(s) < counts.get(fewest)) fewest = s;
+         }
+         if (counts.get(most) - counts.get(fewest) <= 1)
+            return;
+         for (int b = owners.length - 1; b >= 0; --b) {
+            if (owners[b] == most) {
+               move(b, fewest);
+               break;
+            }
+         }
+      }
+   }//end even
+
+   /**
+    * Moves one bucket to a shard.
+    *
+    * @param bucket the bucket
+    * @param target the shard receiving it
+    * @throws java.sql.SQLException when the copy fails, the bucket then
+    *         stays on its shard
+    */
+   public void move (final int bucket, int target) throws SQLException {
+      if (target < 0 || target >= _shards.size())
+         throw new SQLException("No shard " + target);
+      final int source = owners()[bucket];
+      if (source == target)
+         return;
+      if (source < 0 || source >= _shards.size())
+         throw new SQLException("Bucket " + bucket + " is on shard " + source + ", resolve that first");
+      _global.executeUpdate(String.format(
+         "UPDATE chat_bucket SET shard = %d WHERE bucket = %d", ShardedStore.MOVING, bucket));
+      System.out.println(String.format("bucket %d: shard %d -> %d", bucket, source, target));
+      try {
+         // every Messenger reloads the map within REFRESH_MS, then no write is in flight
+         Thread.sleep(2 * ShardedStore.REFRESH_MS + 1000);
+         final Messenger from = _shards.get(source);
+         _shards.get(target).inTransaction(new TransactionCallback<Void>() {
+            public Void doInTransaction (Messenger to) throws SQLException {
+               copy(from, to, bucket);
+               return null;
+            }
+         });
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         restore(bucket, source);
+         throw new SQLException("Interrupted while moving bucket " + bucket);
+      }catch (SQLException e) {
+         restore(bucket, source);
+         throw e;
+      }
+      _global.executeUpdate(String.format(
+         "UPDATE chat_bucket SET shard = %d WHERE bucket = %d", target, bucket));
+      _shards.get(source).inTransaction(new TransactionCallback<Void>() {
+         public Void doInTransaction (Messenger esql) throws SQLException {
+            // revisions, summaries and retention settings cascade
+            esql.executeUpdate(String.format("DELETE FROM message WHERE chat_id %% %d = %d", ShardedStore.BUCKETS, bucket));
+            esql.executeUpdate(String.format("DELETE FROM chat_list WHERE chat_id %% %d = %d", ShardedStore.BUCKETS, bucket));
+            esql.executeUpdate(String.format("DELETE FROM chat WHERE chat_id %% %d = %d", ShardedStore.BUCKETS, bucket));
+            return null;
+         }
+      });
+   }//end move
+
+   private void copy (Messenger from, Messenger to, int bucket) throws SQLException {
+      String where = String.format("WHERE chat_id %% %d = %d", ShardedStore.BUCKETS, bucket);
+      insert(to, "chat (chat_id, chat_type, init_sender)",
+         from.executeQueryAndReturnResult("SELECT chat_id, chat_type, init_sender FROM chat " + where));
+      insert(to, "chat_list (chat_id, member)",
+         from.executeQueryAndReturnResult("SELECT chat_id, member FROM chat_list " + where));
+      insert(to, "chat_retention (chat_id, ttl_days, max_messages)",
+         from.executeQueryAndReturnResult("SELECT chat_id, ttl_days, max_messages FROM chat_retention " + where));
+
+      // messages get ids of the target, revisions follow their message
+      List<List<String>> messages = from.executeQueryAndReturnResult(
+         "SELECT msg_id, msg_text, msg_timestamp, sender_login, chat_id FROM message " + where + " ORDER BY msg_id");
+      Map<String, String> ids = new HashMap<String, String>();
+      for (int start = 0; start < messages.size(); start += BATCH) {
+         List<List<String>> batch = messages.subList(start, Math.min(messages.size(), start + BATCH));
+         List<List<String>> fresh = to.executeQueryAndReturnResult(String.format(
+            "SELECT nextval('message_msg_id_seq') FROM generate_series(1, %d)", batch.size()));
+         for (int i = 0; i < batch.size(); ++i) {
+            ids.put(batch.get(i).get(0).trim(), fresh.get(i).get(0).trim());
+            batch.get(i).set(0, fresh.get(i).get(0).trim());
+         }
+         insert(to, "message (msg_id, msg_text, msg_timestamp, sender_login, chat_id)", batch);
+      }
+      List<List<String>> revisions = from.executeQueryAndReturnResult(
+         "SELECT msg_id, rev, chat_id, msg_text, rev_timestamp FROM message_revision " + where);
+      for (List<String> revision : revisions)
+         revision.set(0, ids.get(revision.get(0).trim()));
+      insert(to, "message_revision (msg_id, rev, chat_id, msg_text, rev_timestamp)", revisions);
+
+      // ids the target hands out for this bucket stay above the source's
+      String last = from.executeQueryAndReturnResult("SELECT last_value FROM chat_chat_id_seq").get(0).get(0).trim();
+      to.executeQuery(String.format(
+         "SELECT setval('chat_chat_id_seq', greatest(%s, (SELECT last_value FROM chat_chat_id_seq)))", last));
+      System.out.println(String.format("  %d messages, %d revisions", messages.size(), revisions.size()));
+   }//end copy
+
+   /**
+    * Inserts rows read with executeQueryAndReturnResult, BATCH at a time.
+    */
+   private static void insert (Messenger esql, String table, List<List<String>> rows) throws SQLException {
+      for (int start = 0; start < rows.size(); start += BATCH) {
+         StringBuilder values = new StringBuilder();
+         for (List<String> row : rows.subList(start, Math.min(rows.size(), start + BATCH))) {
+            values.append(values.length() == 0 ? "(" : ", (");
+            for (int i = 0; i < row.size(); ++i)
+               values.append(i == 0 ? "" : ", ").append(row.get(i) == null ? "NULL" : ShardedStore.quote(row.get(i)));
+            values.append(")");
+         }
+         esql.executeUpdate("INSERT INTO " + table + " VALUES " + values);
+      }
+   }//end insert
+
+   private void restore (int bucket, int source) throws SQLException {
+      _global.executeUpdate(String.format("UPDATE chat_bucket SET shard = %d WHERE bucket = %d", source, bucket));
+   }//end restore
+
+   private int[] owners () throws SQLException {
+      int[] owners = new int[ShardedStore.BUCKETS];
+      for (List<String> row : _global.executeQueryAndReturnResult("SELECT bucket, shard FROM chat_bucket"))
+         owners[Integer.parseInt(row.get(0).trim())] = Integer.parseInt(row.get(1).trim());
+      return owners;
+   }//end owners
+
+}//end ShardRebalancer
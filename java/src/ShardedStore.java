@@ -0,0 +1,340 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * MessengerStore that spreads chats over several Postgres databases, the
+ * shards.  Users and their lists stay in the global database, the one the
+ * Messenger is connected to.  CHAT, CHAT_LIST, MESSAGE, MESSAGE_REVISION
+ * and the chat summary and retention rows of a chat live on one shard:
+ *
+ *   bucket = chat_id % BUCKETS, shard = CHAT_BUCKET.shard of the bucket
+ *
+ * A new chat picks a bucket and takes its id from the sequence of the
+ * shard owning it, nextval * BUCKETS + bucket, so no sequence is shared
+ * between shards.  A user's chat list asks every shard in parallel and
+ * merges the answers.  ShardRebalancer moves buckets between shards.
+ *
+ * Shards are created with sql/scripts/create_shard.sh.  The global
+ * database can be shard 0 as well, which is how an existing database
+ * becomes sharded: all buckets start on shard 0.
+ *
+ * Leaving a chat, the message history, the export and retention still
+ * run their SQL against the global database, so they refuse to run while
+ * the store is sharded, see Messenger.isSharded.
+ *
+ * Configured with system properties:
+ *   messenger.shards            comma separated <port>/<dbname> on localhost
+ *   messenger.shards.refreshMs  how long a bucket map is used (default 5000)
+ *
+ */
+public class ShardedStore implements MessengerStore {
+
+   // number of buckets chat ids are hashed to, fixed for the life of the data
+   public static final int BUCKETS = 64;
+
+   // CHAT_BUCKET.shard of a bucket ShardRebalancer is moving
+   public static final int MOVING = -1;
+
+   // how long a loaded bucket map is trusted
+   public static final long REFRESH_MS = Long.getLong("messenger.shards.refreshMs", 5000L);
+
+   private final Messenger _global;
+   private final SqlStore _users;
+   private final Messenger[] _shards;
+   private final SqlStore[] _stores;
+   private final ExecutorService _fanOut;
+   private final Random _random = new Random();
+
+   private int[] _owners;
+   private long _loadedAt;
+
+   /**
+    * @param global the Messenger of the global database
+    * @param shards the Messengers of the shards, by shard number
+    * @throws java.sql.SQLException when the bucket map cannot be read
+    */
+   public ShardedStore (Messenger global, List<Messenger> shards) throws SQLException {
+      this._global = global;
+      this._users = new SqlStore(global);
+      this._shards = shards.toArray(new Messenger[shards.size()]);
+      this._stores = new SqlStore[_shards.length];
+      for (int i = 0; i < _shards.length; ++i)
+         _stores[i] = new SqlStore(_shards[i]);
+      this._fanOut = Executors.newFixedThreadPool(_shards.length, new ThreadFactory() {
+         public Thread newThread (Runnable r) {
+            Thread thread = new Thread(r, "messenger-shard-fanout");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      createBucketMap(global);
+      owners();
+   }//end ShardedStore
+
+   /**
+    * Fills CHAT_BUCKET the first time, with every bucket on shard 0.
+    *
+    * @param global the Messenger of the global database
+    */
+   static void createBucketMap (Messenger global) throws SQLException {
+      global.executeUpdate(String.format(
+         "INSERT INTO chat_bucket (bucket, shard) SELECT b, 0 FROM generate_series(0, %d) b ON CONFLICT (bucket) DO NOTHING",
+         BUCKETS - 1));
+   }//end createBucketMap
+
+   /**
+    * Connects the shards of the messenger.shards system property.
+    *
+    * @param global the Messenger of the global database
+    * @param user the database user of the shards
+    * @param passwd the password of the shards
+    * @return the store, or null when no shards are configured
+    * @throws java.sql.SQLException when the bucket map cannot be read
+    */
+   public static ShardedStore fromSystemProperties (Messenger global, String user, String passwd) throws SQLException {
+      List<Messenger> shards = connectShards(user, passwd);
+      return shards == null ? null : new ShardedStore(global, shards);
+   }//end fromSystemProperties
+
+   /**
+    * Opens one Messenger per shard of the messenger.shards system property.
+    * Shards are never routed to the replicas of messenger.replicas.
+    *
+    * @return the shards, or null when none are configured
+    */
+   static List<Messenger> connectShards (String user, String passwd) throws SQLException {
+      String spec = System.getProperty("messenger.shards", "").trim();
+      if (spec.length() == 0)
+         return null;
+      List<Messenger> shards = new ArrayList<Messenger>();
+      for (String shard : spec.split(",")) {
+         String[] parts = shard.trim().split("/", 2);
+         if (parts.length != 2)
+            throw new SQLException("Shard " + shard + " is not <port>/<dbname>");
+         Messenger esql = new Messenger(parts[1], parts[0], user, passwd);
+         esql.setRouter(null);
+         shards.add(esql);
+      }
+      return shards;
+   }//end connectShards
+
+   public void createUser (String login, String password, String phone) throws SQLException {
+      _users.createUser(login, password, phone);
+   }//end createUser
+
+   public boolean authenticate (String login, String password) throws SQLException {
+      return _users.authenticate(login, password);
+   }//end authenticate
+
+   public boolean setListMember (String owner, String member, boolean block, boolean present) throws SQLException {
+      return _users.setListMember(owner, member, block, present);
+   }//end setListMember
+
+   public boolean isListMember (String owner, String member, boolean block) throws SQLException {
+      return _users.isListMember(owner, member, block);
+   }//end isListMember
+
+   public int createChat (final String initSender, final List<String> members) throws SQLException {
+      // the shards do not hold users, so the global database checks them
+      Set<String> logins = new HashSet<String>(members);
+      logins.add(initSender);
+      StringBuilder in = new StringBuilder();
+      for (String login : logins)
+         in.append(in.length() == 0 ? "" : ", ").append(quote(login));
+      // executeQuery stops counting at the first row, the rows are counted here
+      if (_global.executeQueryAndReturnResult(String.format("SELECT login FROM usr WHERE login IN (%s)", in)).size() != logins.size())
+         throw new SQLException("Cannot create the chat, a member does not exist");
+
+      final int bucket = pickBucket();
+      return _shards[owner(bucket)].inTransaction(new TransactionCallback<Integer>() {
+         public Integer doInTransaction (Messenger esql) throws SQLException {
+            int chatId = Integer.parseInt(esql.executeQueryAndReturnResult(String.format(
+               "INSERT INTO chat (chat_id, chat_type, init_sender) VALUES (nextval('chat_chat_id_seq') * %d + %d, '%s', %s) RETURNING chat_id",
+               BUCKETS, bucket, members.size() > 1 ? "group" : "private", quote(initSender))).get(0).get(0).trim());
+            esql.executeUpdate(String.format("INSERT INTO chat_list (chat_id, member) VALUES(%d, %s)", chatId, quote(initSender)));
+            for (String member : members)
+               esql.executeUpdate(String.format("INSERT INTO chat_list (chat_id, member) VALUES(%d, %s)", chatId, quote(member)));
+            return chatId;
+         }
+      });
+   }//end createChat
+
+   public boolean isChatMember (int chatId, String login) throws SQLException {
+      return shard(chatId).isChatMember(chatId, login);
+   }//end isChatMember
+
+   public boolean setChatMember (int chatId, String member, boolean present) throws SQLException {
+      // the shards do not hold users, so the global database checks them
+      if (present && _global.executeQuery(String.format("SELECT login FROM usr WHERE login = %s", quote(member))) < 1)
+         throw new SQLException("Cannot add " + member + ", the user does not exist");
+      return shard(chatId).setChatMember(chatId, member, present);
+   }//end setChatMember
+
+   /**
+    * Asks every shard for the chats of login at once.  A bucket is only
+    * taken from the shard the map names, so a chat that ShardRebalancer
+    * copied but did not delete yet is not listed twice.
+    */
+   public List<List<String>> chatsOf (final String login) throws SQLException {
+      int[] owners = owners();
+      List<Future<List<List<String>>>> answers = new ArrayList<Future<List<List<String>>>>();
+      for (final SqlStore store : _stores) {
+         answers.add(_fanOut.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call () throws SQLException {
+               return store.chatsOf(login);
+            }
+         }));
+      }
+      List<List<String>> rows = new ArrayList<List<String>>();
+      Set<Integer> moving = new HashSet<Integer>();
+      for (int i = 0; i < answers.size(); ++i) {
+         for (List<String> row : await(answers.get(i))) {
+            int chatId = Integer.parseInt(row.get(0).trim());
+            int owner = owners[bucket(chatId)];
+            if (owner == i || owner == MOVING && moving.add(chatId))
+               rows.add(row);
+         }
+      }
+      Collections.sort(rows, new Comparator<List<String>>() {
+         public int compare (List<String> a, List<String> b) {
+            return Integer.compare(Integer.parseInt(a.get(0).trim()), Integer.parseInt(b.get(0).trim()));
+         }
+      });
+      return rows;
+   }//end chatsOf
+
+   public void appendMessage (int chatId, String sender, String text) throws SQLException {
+      shard(chatId).appendMessage(chatId, sender, text);
+   }//end appendMessage
+
+   /**
+    * Reads the page on the chat's shard, filtering the senders the global
+    * database has on the reader's block list.
+    */
+   public List<List<String>> messagePage (int chatId, String reader, int offset, int limit) throws SQLException {
+      Messenger esql = _shards[owner(bucket(chatId))];
+      List<List<String>> blocked = _global.executeQueryAndReturnResult(String.format(
+         "SELECT b.list_member FROM usr u, user_list_contains b WHERE u.login = %s AND b.list_id = u.block_list", quote(reader)));
+      String filter = "true";
+      if (!blocked.isEmpty()) {
+         StringBuilder in = new StringBuilder();
+         for (List<String> row : blocked)
+            in.append(in.length() == 0 ? "" : ", ").append(quote(row.get(0).trim()));
+         filter = "m.sender_login NOT IN (" + in + ")";
+      }
+      return esql.executeQueryAndReturnResult(Messenger.MessagePageQuery(chatId, offset, limit, filter));
+   }//end messagePage
+
+   public boolean ownsMessage (int chatId, int msgId, String sender) throws SQLException {
+      return shard(chatId).ownsMessage(chatId, msgId, sender);
+   }//end ownsMessage
+
+   public void reviseMessage (int chatId, int msgId, String text) throws SQLException {
+      shard(chatId).reviseMessage(chatId, msgId, text);
+   }//end reviseMessage
+
+   public void close () {
+      _fanOut.shutdownNow();
+      for (Messenger shard : _shards)
+         shard.cleanup();
+   }//end close
+
+   /**
+    * @return the bucket of a chat
+    */
+   public static int bucket (int chatId) {
+      return chatId % BUCKETS;
+   }//end bucket
+
+   private SqlStore shard (int chatId) throws SQLException {
+      return _stores[owner(bucket(chatId))];
+   }//end shard
+
+   /**
+    * Returns the shard of a bucket, or fails while the bucket is moved.
+    */
+   private int owner (int bucket) throws SQLException {
+      int shard = owners()[bucket];
+      if (shard == MOVING)
+         throw new SQLException("This chat is being moved to another shard, please try again shortly");
+      if (shard >= _shards.length)
+         throw new SQLException("Bucket " + bucket + " is on shard " + shard + ", which is not configured");
+      return shard;
+   }//end owner
+
+   /**
+    * Picks the bucket of a new chat, at random among the buckets that can
+    * take one, so chats spread like the buckets do.
+    */
+   private int pickBucket () throws SQLException {
+      int[] owners = owners();
+      List<Integer> open = new ArrayList<Integer>();
+      for (int b = 0; b < BUCKETS; ++b)
+         if (owners[b] != MOVING && owners[b] < _shards.length)
+            open.add(b);
+      if (open.isEmpty())
+         throw new SQLException("No shard can take a new chat");
+      synchronized (_random) {
+         return open.get(_random.nextInt(open.size()));
+      }
+   }//end pickBucket
+
+   /**
+    * Returns the bucket map, reloaded from CHAT_BUCKET every REFRESH_MS.
+    */
+   private synchronized int[] owners () throws SQLException {
+      long now = System.currentTimeMillis();
+      if (_owners == null || now - _loadedAt >= REFRESH_MS) {
+         int[] owners = new int[BUCKETS];
+         for (List<String> row : _global.executeQueryAndReturnResult("SELECT bucket, shard FROM chat_bucket"))
+            owners[Integer.parseInt(row.get(0).trim())] = Integer.parseInt(row.get(1).trim());
+         _owners = owners;
+         _loadedAt = now;
+      }
+      return _owners;
+   }//end owners
+
+   private static List<List<String>> await (Future<List<List<String>>> answer) throws SQLException {
+      try {
+         return answer.get();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while reading the shards");
+      }catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException("Shard read failed: " + cause);
+      }
+   }//end await
+
+   static String quote (String value) {
+      return "'" + value.replace("'", "''") + "'";
+   }//end quote
+
+}//end ShardedStore
@@ -0,0 +1,496 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory index of the contact and block lists.  Logins are interned to
+ * int ids and every user keeps a sorted int array of contacts and one of
+ * blocks, so membership is a binary search and mutual contacts a merge of two
+ * arrays.  No boxed collections are used, which keeps the index small enough
+ * to hold every user.
+ *
+ * The index is optional.  It is loaded once from usr and user_list_contains
+ * and then kept current by the list handlers and by user_list_event
+ * notifications from other processes.  All methods are synchronized as the
+ * notifications arrive on the change listener thread.  A graph made by
+ * loading() is subscribed before load reads the lists: the notifications
+ * that arrive meanwhile are kept and replayed once the lists are read, so
+ * no change is lost between the snapshot and the subscription.  Replaying
+ * a change the snapshot already has does nothing.
+ *
+ * Users created by another process after the load are not known, their
+ * list ids are not, so the notifications of their lists are dropped.  The
+ * answers for such an owner are wrong; callers ask knows() first and use
+ * the database when it is false.  Deleted users are removed and are not
+ * known either.
+ *
+ */
+public class SocialGraph implements ChangeSubscriber {
+
+   private static final int[] EMPTY = new int[0];
+
+   // rows per round trip while loading
+   private static final int FETCH_SIZE = 10000;
+
+   // login <-> id, open addressing table of ids keyed by login hash
+   private String[] _logins = new String[1024];
+   private int _userCount = 0;
+   private int[] _slots = newSlots(2048);
+
+   // list id -> owner id, negative for block lists, -1 when unknown
+   private int[] _listOwner = newSlots(1024);
+
+   // adjacency, sorted ascending, _xSize[u] entries in use
+   private int[][] _contacts = new int[1024][];
+   private int[] _contactSize = new int[1024];
+   private int[][] _blocks = new int[1024][];
+   private int[] _blockSize = new int[1024];
+
+   // true for users whose lists are known, not only interned as a member
+   private boolean[] _known = new boolean[1024];
+
+   private long _edgeCount = 0;
+
+   // per user counters reused by suggestContacts, all zero between calls
+   private int[] _scratch = EMPTY;
+
+   // notifications received while loading, null once they are applied as
+   // they arrive; guarded by _pendingLock, not by the graph, so the
+   // listener thread is not held up by the load
+   private final Object _pendingLock = new Object();
+   private List<String> _pending = null;
+
+   /**
+    * Creates an empty graph that keeps the notifications it receives until
+    * load has read the lists.  Subscribe it to user_list_event, then call
+    * load.
+    *
+    * @return the graph
+    */
+   public static SocialGraph loading () {
+      SocialGraph graph = new SocialGraph();
+      graph._pending = new ArrayList<String>();
+      return graph;
+   }//end loading
+
+   /**
+    * Reads the users and lists from the database and applies the
+    * notifications kept meanwhile.  Both queries run in one REPEATABLE READ
+    * transaction, so they see the same snapshot.  Rows are streamed with a
+    * fetch size, which pgjdbc only honours inside a transaction, so nothing
+    * but the graph itself is kept in memory.
+    *
+    * @param conn the connection to read from, in autocommit mode
+    * @throws java.sql.SQLException when failed to execute the queries
+    */
+   public void load (Connection conn) throws SQLException {
+      if (!conn.getAutoCommit())
+         throw new SQLException("The social graph is loaded in a transaction of its own");
+      int isolation = conn.getTransactionIsolation();
+      conn.setAutoCommit(false);
+      conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+      Statement stmt = conn.createStatement();
+      stmt.setFetchSize(FETCH_SIZE);
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT login, block_list, contact_list FROM usr");
+         while (rs.next())
+            addUser(rs.getString(1).trim(), rs.getInt(2), rs.getInt(3));
+         rs.close();
+         rs = stmt.executeQuery("SELECT list_id, list_member FROM user_list_contains");
+         while (rs.next())
+            apply(rs.getInt(1), rs.getString(2).trim(), true);
+         rs.close();
+      }finally {
+         stmt.close();
+         conn.rollback();
+         conn.setTransactionIsolation(isolation);
+         conn.setAutoCommit(true);
+      }
+      // replay in arrival order; the listener keeps appending until the
+      // list is found empty
+      while (true) {
+         List<String> pending;
+         synchronized (_pendingLock) {
+            pending = _pending;
+            if (pending == null || pending.isEmpty()) {
+               _pending = null;
+               return;
+            }
+            _pending = new ArrayList<String>();
+         }
+         for (String payload : pending)
+            applyEvent(payload);
+      }
+   }//end load
+
+   /**
+    * Registers a user and its two lists.
+    *
+    * @param login the user login
+    * @param blockList the id of the user's block list
+    * @param contactList the id of the user's contact list
+    */
+   public synchronized void addUser (String login, int blockList, int contactList) {
+      int id = intern(login);
+      _known[id] = true;
+      setListOwner(blockList, -id - 2);
+      setListOwner(contactList, id);
+   }//end addUser
+
+   /**
+    * Adds or removes a member of a contact or block list.
+    *
+    * @param listId the list changed
+    * @param member the login added or removed
+    * @param added true for an insert, false for a delete
+    */
+   public synchronized void apply (int listId, String member, boolean added) {
+      if (listId < 0 || listId >= _listOwner.length || _listOwner[listId] == -1)
+         return;
+      int owner = _listOwner[listId];
+      int target = intern(member);
+      if (owner >= 0) {
+         if (added) _contactSize[owner] = insert(_contacts, _contactSize, owner, target);
+         else _contactSize[owner] = remove(_contacts, _contactSize, owner, target);
+      }
+      else {
+         owner = -owner - 2;
+         if (added) _blockSize[owner] = insert(_blocks, _blockSize, owner, target);
+         else _blockSize[owner] = remove(_blocks, _blockSize, owner, target);
+      }
+   }//end apply
+
+   /**
+    * Adds or removes target in the contact list of login.
+    *
+    * @param login the owner of the list
+    * @param target the member added or removed
+    * @param present true to add, false to remove
+    */
+   public synchronized void setContact (String login, String target, boolean present) {
+      int owner = lookup(login);
+      if (owner < 0)
+         return;
+      int t = intern(target);
+      if (present) _contactSize[owner] = insert(_contacts, _contactSize, owner, t);
+      else _contactSize[owner] = remove(_contacts, _contactSize, owner, t);
+   }//end setContact
+
+   /**
+    * Adds or removes target in the block list of login.
+    *
+    * @param login the owner of the list
+    * @param target the member added or removed
+    * @param present true to add, false to remove
+    */
+   public synchronized void setBlock (String login, String target, boolean present) {
+      int owner = lookup(login);
+      if (owner < 0)
+         return;
+      int t = intern(target);
+      if (present) _blockSize[owner] = insert(_blocks, _blockSize, owner, t);
+      else _blockSize[owner] = remove(_blocks, _blockSize, owner, t);
+   }//end setBlock
+
+   /**
+    * Removes a deleted user: its lists, and its entries in the lists of
+    * the others.  It is not known afterwards.
+    *
+    * @param login the deleted user
+    */
+   public synchronized void removeUser (String login) {
+      int u = lookup(login);
+      if (u < 0)
+         return;
+      _known[u] = false;
+      _edgeCount -= _contactSize[u] + _blockSize[u];
+      _contactSize[u] = 0;
+      _blockSize[u] = 0;
+      for (int listId = 0; listId < _listOwner.length; ++listId)
+         if (_listOwner[listId] == u || _listOwner[listId] == -u - 2)
+            _listOwner[listId] = -1;
+      for (int i = 0; i < _userCount; ++i) {
+         _contactSize[i] = remove(_contacts, _contactSize, i, u);
+         _blockSize[i] = remove(_blocks, _blockSize, i, u);
+      }
+   }//end removeUser
+
+   /**
+    * Applies a user_list_event notification, "I;list_id;member" or
+    * "D;list_id;member", or keeps it while the graph is loading.
+    */
+   public void onChange (String channel, String payload) {
+      if (payload == null)
+         return;
+      synchronized (_pendingLock) {
+         if (_pending != null) {
+            _pending.add(payload);
+            return;
+         }
+      }
+      applyEvent(payload);
+   }//end onChange
+
+   private void applyEvent (String payload) {
+      String[] parts = payload.split(";", 3);
+      if (parts.length == 3)
+         apply(Integer.parseInt(parts[1]), parts[2], parts[0].equals("I"));
+   }//end applyEvent
+
+   /**
+    * @return true if the lists of login are in the graph, false for users
+    *         created elsewhere after the load
+    */
+   public synchronized boolean knows (String login) {
+      int u = lookup(login);
+      return u >= 0 && _known[u];
+   }//end knows
+
+   /**
+    * @return true if target is in the contact list of login
+    */
+   public synchronized boolean isContact (String login, String target) {
+      int u = lookup(login), t = lookup(target);
+      return u >= 0 && t >= 0 && _contacts[u] != null && Arrays.binarySearch(_contacts[u], 0, _contactSize[u], t) >= 0;
+   }//end isContact
+
+   /**
+    * @return true if target is in the block list of login
+    */
+   public synchronized boolean isBlocked (String login, String target) {
+      int u = lookup(login), t = lookup(target);
+      return u >= 0 && t >= 0 && _blocks[u] != null && Arrays.binarySearch(_blocks[u], 0, _blockSize[u], t) >= 0;
+   }//end isBlocked
+
+   /**
+    * Returns the users that are in the contact lists of both a and b.
+    *
+    * @return the mutual contacts, sorted by id
+    */
+   public synchronized String[] mutualContacts (String a, String b) {
+      int u = lookup(a), v = lookup(b);
+      if (u < 0 || v < 0)
+         return new String[0];
+      int[] x = orEmpty(_contacts[u]), y = orEmpty(_contacts[v]);
+      int nx = _contactSize[u], ny = _contactSize[v];
+      String[] out = new String[Math.min(nx, ny)];
+      int n = 0;
+      for (int i = 0, j = 0; i < nx && j < ny; ) {
+         if (x[i] < y[j]) ++i;
+         else if (x[i] > y[j]) ++j;
+         else { out[n++] = _logins[x[i]]; ++i; ++j; }
+      }
+      return Arrays.copyOf(out, n);
+   }//end mutualContacts
+
+   /**
+    * Suggests contacts for a user: the contacts of its contacts, ranked by
+    * how many of its contacts know them.  Users already in the contact or
+    * block list are skipped.
+    *
+    * @param login the user to suggest contacts for
+    * @param limit the maximum number of suggestions
+    * @return the suggested logins, best first
+    */
+   public synchronized String[] suggestContacts (String login, int limit) {
+      int u = lookup(login);
+      if (u < 0 || limit <= 0)
+         return new String[0];
+      // counts of the second degree contacts, touched keeps the ids seen
+      if (_scratch.length < _userCount)
+         _scratch = new int[_logins.length];
+      int[] counts = _scratch;
+      int[] touched = new int[64];
+      int nTouched = 0;
+      int[] mine = orEmpty(_contacts[u]);
+      for (int i = 0; i < _contactSize[u]; ++i) {
+         int c = mine[i];
+         int[] theirs = orEmpty(_contacts[c]);
+         for (int j = 0; j < _contactSize[c]; ++j) {
+            int s = theirs[j];
+            if (s == u)
+               continue;
+            if (counts[s]++ == 0) {
+               if (nTouched == touched.length)
+                  touched = Arrays.copyOf(touched, nTouched * 2);
+               touched[nTouched++] = s;
+            }
+         }
+      }
+      // simple selection of the top entries, limit is small
+      String[] out = new String[Math.min(limit, nTouched)];
+      int n = 0;
+      while (n < out.length) {
+         int best = -1;
+         for (int i = 0; i < nTouched; ++i) {
+            int s = touched[i];
+            if (counts[s] > 0 && (best < 0 || counts[s] > counts[best]))
+               best = s;
+         }
+         if (best < 0)
+            break;
+         counts[best] = 0;
+         if (Arrays.binarySearch(mine, 0, _contactSize[u], best) >= 0
+               || (_blocks[u] != null && Arrays.binarySearch(_blocks[u], 0, _blockSize[u], best) >= 0))
+            continue;
+         out[n++] = _logins[best];
+      }
+      for (int i = 0; i < nTouched; ++i)
+         counts[touched[i]] = 0;
+      return Arrays.copyOf(out, n);
+   }//end suggestContacts
+
+   /**
+    * @return the number of interned users
+    */
+   public synchronized int userCount () {
+      return _userCount;
+   }//end userCount
+
+   /**
+    * @return the number of contact and block entries
+    */
+   public synchronized long edgeCount () {
+      return _edgeCount;
+   }//end edgeCount
+
+   /**
+    * Estimates the heap used by the graph, assuming compressed oops: 16 byte
+    * array headers and 4 byte references.
+    *
+    * @return the estimated footprint in bytes
+    */
+   public synchronized long footprintBytes () {
+      long bytes = arrayBytes(_logins.length, 4) + arrayBytes(_slots.length, 4) + arrayBytes(_listOwner.length, 4)
+         + arrayBytes(_scratch.length, 4) + arrayBytes(_known.length, 1)
+         + 2 * arrayBytes(_contacts.length, 4) + 2 * arrayBytes(_contactSize.length, 4);
+      for (int i = 0; i < _userCount; ++i) {
+         // String object, its byte array and the adjacency arrays
+         bytes += 24 + arrayBytes(_logins[i].length(), 1);
+         if (_contacts[i] != null) bytes += arrayBytes(_contacts[i].length, 4);
+         if (_blocks[i] != null) bytes += arrayBytes(_blocks[i].length, 4);
+      }
+      return bytes;
+   }//end footprintBytes
+
+   private static long arrayBytes (int length, int width) {
+      return (16 + (long) length * width + 7) & ~7L;
+   }//end arrayBytes
+
+   private int insert (int[][] lists, int[] sizes, int u, int v) {
+      int[] list = lists[u];
+      int size = sizes[u];
+      if (list == null)
+         list = lists[u] = new int[4];
+      int pos = Arrays.binarySearch(list, 0, size, v);
+      if (pos >= 0)
+         return size;
+      pos = -pos - 1;
+      if (size == list.length)
+         list = lists[u] = Arrays.copyOf(list, size + (size >> 1) + 1);
+      System.arraycopy(list, pos, list, pos + 1, size - pos);
+      list[pos] = v;
+      ++_edgeCount;
+      return size + 1;
+   }//end insert
+
+   private int remove (int[][] lists, int[] sizes, int u, int v) {
+      int[] list = lists[u];
+      int size = sizes[u];
+      int pos = list == null ? -1 : Arrays.binarySearch(list, 0, size, v);
+      if (pos < 0)
+         return size;
+      System.arraycopy(list, pos + 1, list, pos, size - pos - 1);
+      --_edgeCount;
+      return size - 1;
+   }//end remove
+
+   private int lookup (String login) {
+      if (login == null)
+         return -1;
+      int mask = _slots.length - 1;
+      for (int i = hash(login) & mask; ; i = (i + 1) & mask) {
+         int id = _slots[i];
+         if (id == -1 || _logins[id].equals(login))
+            return id;
+      }
+   }//end lookup
+
+   private int intern (String login) {
+      int id = lookup(login);
+      if (id >= 0)
+         return id;
+      if (_userCount == _logins.length) {
+         int capacity = _logins.length * 2;
+         _logins = Arrays.copyOf(_logins, capacity);
+         _contacts = Arrays.copyOf(_contacts, capacity);
+         _contactSize = Arrays.copyOf(_contactSize, capacity);
+         _blocks = Arrays.copyOf(_blocks, capacity);
+         _blockSize = Arrays.copyOf(_blockSize, capacity);
+         _known = Arrays.copyOf(_known, capacity);
+      }
+      id = _userCount++;
+      _logins[id] = login;
+      if (_userCount * 2 > _slots.length) {
+         _slots = newSlots(_slots.length * 2);
+         for (int i = 0; i < _userCount; ++i)
+            place(i);
+      }
+      else {
+         place(id);
+      }
+      return id;
+   }//end intern
+
+   private void place (int id) {
+      int mask = _slots.length - 1;
+      int i = hash(_logins[id]) & mask;
+      while (_slots[i] != -1)
+         i = (i + 1) & mask;
+      _slots[i] = id;
+   }//end place
+
+   private void setListOwner (int listId, int owner) {
+      if (listId < 0)
+         return;
+      if (listId >= _listOwner.length) {
+         int old = _listOwner.length;
+         _listOwner = Arrays.copyOf(_listOwner, Math.max(old * 2, listId + 1));
+         Arrays.fill(_listOwner, old, _listOwner.length, -1);
+      }
+      _listOwner[listId] = owner;
+   }//end setListOwner
+
+   private static int hash (String s) {
+      int h = s.hashCode();
+      return h ^ (h >>> 16);
+   }//end hash
+
+   private static int[] newSlots (int size) {
+      int[] slots = new int[size];
+      Arrays.fill(slots, -1);
+      return slots;
+   }//end newSlots
+
+   private static int[] orEmpty (int[] list) {
+      return list == null ? EMPTY : list;
+   }//end orEmpty
+
+}//end SocialGraph
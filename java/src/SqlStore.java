@@ -0,0 +1,141 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * MessengerStore on Postgres, through the helpers of a Messenger, so the
+ * statements get its admission control, replica routing and transactions.
+ *
+ */
+public class SqlStore implements MessengerStore {
+
+   private final Messenger _esql;
+
+   public SqlStore (Messenger esql) {
+      this._esql = esql;
+   }//end SqlStore
+
+   public void createUser (final String login, final String password, final String phone) throws SQLException {
+      // the list ids are known up front, so nothing is read back
+      final int blockId = _esql.getIdAllocator().next("user_list_list_id_seq");
+      final int contactId = _esql.getIdAllocator().next("user_list_list_id_seq");
+      _esql.inTransaction(new TransactionCallback<Void>() {
+         public Void doInTransaction (Messenger esql) throws SQLException {
+            //Creating empty contact\block lists for a user
+            esql.executeUpdate(String.format(QueryCatalog.CREATE_LISTS, blockId, contactId));
+            esql.executeUpdate(String.format(QueryCatalog.CREATE_USER, phone, login, password, blockId, contactId));
+            return null;
+         }
+      });
+      SocialGraph graph = _esql.getSocialGraph();
+      if (graph != null)
+         graph.addUser(login, blockId, contactId);
+   }//end createUser
+
+   public boolean authenticate (String login, String password) throws SQLException {
+      return !_esql.executePreparedAndReturnResult(QueryCatalog.AUTHENTICATE, login, password).isEmpty();
+   }//end authenticate
+
+   public boolean setListMember (String owner, String member, boolean block, boolean present) throws SQLException {
+      if (isListMember(owner, member, block) == present)
+         return false;
+      String list = block ? QueryCatalog.BLOCK_LIST : QueryCatalog.CONTACT_LIST;
+      if (present)
+         _esql.executeUpdate(String.format(QueryCatalog.ADD_LIST_MEMBER, list, member, owner));
+      else
+         _esql.executeUpdate(String.format(QueryCatalog.REMOVE_LIST_MEMBER, list, owner, member));
+      SocialGraph graph = _esql.getSocialGraph();
+      if (graph != null) {
+         if (block) graph.setBlock(owner, member, present);
+         else graph.setContact(owner, member, present);
+      }
+      return true;
+   }//end setListMember
+
+   public boolean isListMember (String owner, String member, boolean block) throws SQLException {
+      SocialGraph graph = _esql.getSocialGraph();
+      if (graph != null && graph.knows(owner))
+         return block ? graph.isBlocked(owner, member) : graph.isContact(owner, member);
+      return _esql.executeQuery(String.format(QueryCatalog.LIST_MEMBER,
+         owner, block ? QueryCatalog.BLOCK_LIST : QueryCatalog.CONTACT_LIST, member)) > 0;
+   }//end isListMember
+
+   public int createChat (final String initSender, final List<String> members) throws SQLException {
+      final int chatId = _esql.getIdAllocator().next("chat_chat_id_seq");
+      return _esql.inTransaction(new TransactionCallback<Integer>() {
+         public Integer doInTransaction (Messenger esql) throws SQLException {
+            esql.executeUpdate(String.format(QueryCatalog.CREATE_CHAT,
+               chatId, members.size() > 1 ? "group" : "private", initSender));
+            StringBuilder rows = new StringBuilder(String.format("(%d, '%s')", chatId, initSender));
+            for (String member : members)
+               rows.append(String.format(", (%d, '%s')", chatId, member));
+            esql.executeUpdate(String.format(QueryCatalog.ADD_CHAT_MEMBERS, rows));
+            return chatId;
+         }
+      });
+   }//end createChat
+
+   public boolean isChatMember (int chatId, String login) throws SQLException {
+      return !_esql.executePreparedAndReturnResult(QueryCatalog.CHAT_MEMBER, chatId, login).isEmpty();
+   }//end isChatMember
+
+   /**
+    * Locks the chat row first, so concurrent changes of one chat wait a
+    * moment for each other instead of racing on the chat type, and takes
+    * the member count from the CHAT_SUMMARY counter instead of counting
+    * CHAT_LIST.
+    */
+   public boolean setChatMember (final int chatId, final String member, final boolean present) throws SQLException {
+      return _esql.inTransaction(new TransactionCallback<Boolean>() {
+         public Boolean doInTransaction (Messenger esql) throws SQLException {
+            if (esql.executeQuery(String.format(QueryCatalog.LOCK_CHAT, chatId)) < 1)
+               throw new SQLException("Chat " + chatId + " does not exist");
+            int changed = esql.executeQuery(present
+               ? String.format(QueryCatalog.ADD_CHAT_MEMBER, chatId, member)
+               : String.format(QueryCatalog.REMOVE_CHAT_MEMBER, chatId, member));
+            if (changed == 0)
+               return false;
+            // the summary trigger already counted the change
+            esql.executeUpdate(String.format(QueryCatalog.UPDATE_CHAT_TYPE, chatId));
+            return true;
+         }
+      });
+   }//end setChatMember
+
+   public List<List<String>> chatsOf (String login) throws SQLException {
+      return _esql.executePreparedAndReturnResult(QueryCatalog.CHAT_LIST, login);
+   }//end chatsOf
+
+   public void appendMessage (int chatId, String sender, String text) throws SQLException {
+      _esql.executeUpdate(String.format(QueryCatalog.APPEND_MESSAGE, text, sender, chatId));
+   }//end appendMessage
+
+   public List<List<String>> messagePage (int chatId, String reader, int offset, int limit) throws SQLException {
+      return _esql.executePreparedAndReturnResult(QueryCatalog.READER_PAGE, chatId, reader, limit, offset);
+   }//end messagePage
+
+   public boolean ownsMessage (int chatId, int msgId, String sender) throws SQLException {
+      return _esql.executeQuery(Messenger.OwnMessageQuery(sender, chatId, msgId)) == 1;
+   }//end ownsMessage
+
+   public void reviseMessage (int chatId, int msgId, String text) throws SQLException {
+      _esql.executeUpdate(Messenger.ReviseMessageQuery(msgId, text == null ? "NULL" : "'" + text + "'"));
+   }//end reviseMessage
+
+   public void close () {
+      // the connection belongs to the Messenger
+   }//end close
+
+}//end SqlStore
@@ -0,0 +1,33 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * Unit of work run by a TransactionTemplate.  The callback may be invoked
+ * more than once when the transaction is retried, so it must not read
+ * keyboard input or print anything it cannot print twice.
+ *
+ */
+public interface TransactionCallback<T> {
+
+   /**
+    * Issues the statements of the transaction through the given Messenger.
+    *
+    * @param esql the Messenger whose connection holds the transaction
+    * @return the result handed back to the caller of the template
+    * @throws java.sql.SQLException to roll the transaction back
+    */
+   public T doInTransaction(Messenger esql) throws SQLException;
+
+}//end TransactionCallback
@@ -0,0 +1,178 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Runs multi statement flows in a single explicit transaction on the
+ * Messenger connection.  Serialization failures and deadlocks roll the whole
+ * transaction back and run it again, a bounded number of times.  A template
+ * started while another one is running uses a savepoint instead, so a failed
+ * inner unit only undoes its own work.
+ *
+ * Transactions run at the isolation level of the connection, READ COMMITTED
+ * unless the caller asks for another one.  At that level Postgres reports no
+ * serialization failures, so only deadlocks are retried; a flow that needs
+ * its reads to stay valid until commit asks for REPEATABLE READ or
+ * SERIALIZABLE and is then retried on 40001 as well.
+ *
+ * A template belongs to one Messenger and its connection, which only one
+ * thread uses at a time, so the nesting depth is a plain field.
+ *
+ */
+public class TransactionTemplate {
+
+   // SQLSTATE codes that are safe to retry
+   private static final String SERIALIZATION_FAILURE = "40001";
+   private static final String DEADLOCK_DETECTED = "40P01";
+
+   private final int _maxAttempts;
+   private final long _backoffMs;
+
+   // number of nested executions currently open, see the class comment
+   private int _depth = 0;
+
+   /**
+    * Creates a new template.
+    *
+    * @param maxAttempts how many times a transaction is tried before giving up
+    * @param backoffMs the base wait between attempts, doubled each retry
+    */
+   public TransactionTemplate (int maxAttempts, long backoffMs) {
+      this._maxAttempts = Math.max(1, maxAttempts);
+      this._backoffMs = backoffMs;
+   }//end TransactionTemplate
+
+   /**
+    * Runs the callback in a transaction at the isolation level of the
+    * connection, or in a savepoint if a transaction is already open.
+    *
+    * @param esql the Messenger whose connection is used
+    * @param callback the statements to run
+    * @return the value returned by the callback
+    * @throws java.sql.SQLException when the transaction could not be committed
+    */
+   public <T> T execute (Messenger esql, TransactionCallback<T> callback) throws SQLException {
+      return execute(esql, esql.getConnection().getTransactionIsolation(), callback);
+   }//end execute
+
+   /**
+    * Runs the callback in a transaction at the given isolation level, or in
+    * a savepoint if a transaction is already open.  A nested call runs at
+    * the level of the open transaction and may not ask for a stricter one.
+    *
+    * @param esql the Messenger whose connection is used
+    * @param isolation a Connection.TRANSACTION_ level
+    * @param callback the statements to run
+    * @return the value returned by the callback
+    * @throws java.sql.SQLException when the transaction could not be committed
+    */
+   public <T> T execute (Messenger esql, int isolation, TransactionCallback<T> callback) throws SQLException {
+      Connection conn = esql.getConnection();
+      if (_depth > 0) {
+         if (isolation > conn.getTransactionIsolation())
+            throw new SQLException("Cannot raise the isolation level of an open transaction");
+         return executeInSavepoint(esql, callback);
+      }
+
+      boolean autoCommit = conn.getAutoCommit();
+      int previous = conn.getTransactionIsolation();
+      int attempt = 0;
+      ++_depth;
+      try {
+         if (isolation != previous)
+            conn.setTransactionIsolation(isolation);
+         while (true) {
+            ++attempt;
+            conn.setAutoCommit(false);
+            try {
+               T result = callback.doInTransaction(esql);
+               conn.commit();
+               return result;
+            }catch (SQLException e) {
+               rollbackQuietly(conn);
+               if (attempt >= _maxAttempts || !isRetryable(e))
+                  throw e;
+            }catch (RuntimeException e) {
+               rollbackQuietly(conn);
+               throw e;
+            }
+            backoff(attempt);
+         }//end while
+      }finally {
+         --_depth;
+         conn.setAutoCommit(autoCommit);
+         if (isolation != previous)
+            conn.setTransactionIsolation(previous);
+      }
+   }//end execute
+
+   /**
+    * Runs the callback inside a savepoint of the already open transaction.
+    * Errors roll back to the savepoint and are rethrown to the outer
+    * callback, which decides whether the whole transaction fails.
+    */
+   private <T> T executeInSavepoint (Messenger esql, TransactionCallback<T> callback) throws SQLException {
+      String savepoint = "tx_sp_" + _depth;
+      esql.setSavepoint(savepoint);
+      ++_depth;
+      try {
+         T result = callback.doInTransaction(esql);
+         esql.releaseSavepoint(savepoint);
+         return result;
+      }catch (SQLException e) {
+         try {
+            esql.rollbackToSavepoint(savepoint);
+         }catch (SQLException rollback) {
+            e.addSuppressed(rollback);
+         }
+         throw e;
+      }finally {
+         --_depth;
+      }
+   }//end executeInSavepoint
+
+   /**
+    * Returns true when the error is a serialization failure or a deadlock.
+    *
+    * @param e the error raised by the transaction
+    * @return whether running the transaction again may succeed
+    */
+   public static boolean isRetryable (SQLException e) {
+      for (SQLException cur = e; cur != null; cur = cur.getNextException()) {
+         String state = cur.getSQLState();
+         if (SERIALIZATION_FAILURE.equals(state) || DEADLOCK_DETECTED.equals(state))
+            return true;
+      }
+      return false;
+   }//end isRetryable
+
+   private void backoff (int attempt) throws SQLException {
+      try {
+         Thread.sleep(_backoffMs << Math.min(attempt - 1, 6));
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while retrying transaction");
+      }
+   }//end backoff
+
+   private static void rollbackQuietly (Connection conn) {
+      try {
+         conn.rollback();
+      }catch (SQLException e) {
+         // ignored, the original error is more useful.
+      }
+   }//end rollbackQuietly
+
+}//end TransactionTemplate
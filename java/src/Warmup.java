@@ -0,0 +1,310 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.postgresql.PGConnection;
+
+/**
+ * Startup warm-up.  Runs a set of independent tasks on a fork-join pool so a
+ * freshly started process answers its first user actions at steady state
+ * latency: the hot statements are prepared on the Messenger connection, the
+ * indexes and the first pages of the most active chats are read into the
+ * buffer cache, and the social graph is loaded if enabled.  Everything but
+ * the statement warm-up uses helper connections, the Messenger connection is
+ * only ever used by one thread.
+ *
+ * Configured with system properties:
+ *   messenger.warmup              false skips the warm-up (default true)
+ *   messenger.warmup.parallelism  pool size and helper connections (default 4)
+ *   messenger.warmup.chats        number of active chats prefetched (default 200)
+ *
+ */
+public class Warmup {
+
+   // indexes read into the buffer cache, hottest first
+   private static final String[] INDEXES = {
+      "message_chat_time_idx", "usr_pkey", "user_list_contains_pkey",
+      "chat_list_pkey", "chat_list_member_idx", "chat_pkey", "chat_summary_pkey", "message_revision_pkey"
+   };
+
+   // entries read from each of the hottest indexes when pg_prewarm is missing
+   private static final int PROBE_ROWS = 10000;
+
+   private final Messenger _esql;
+   private final int _parallelism;
+   private final int _hotChats;
+   private final boolean _socialGraph;
+
+   // results of the tasks, written by the pool threads
+   private volatile SocialGraph _graph = null;
+   private final List<String> _report = new ArrayList<String>();
+
+   public Warmup (Messenger esql, int parallelism, int hotChats, boolean socialGraph) {
+      this._esql = esql;
+      this._parallelism = Math.max(1, parallelism);
+      this._hotChats = hotChats;
+      this._socialGraph = socialGraph;
+   }//end Warmup
+
+   /**
+    * Builds a warm-up from the messenger.warmup system properties.
+    *
+    * @param esql the Messenger to warm up
+    * @return the warm-up, or null when it is disabled
+    */
+   public static Warmup fromSystemProperties (Messenger esql) {
+      if (!Boolean.parseBoolean(System.getProperty("messenger.warmup", "true")))
+         return null;
+      return new Warmup(esql,
+         Integer.getInteger("messenger.warmup.parallelism", 4),
+         Integer.getInteger("messenger.warmup.chats", 200),
+         Boolean.getBoolean("messenger.socialGraph"));
+   }//end fromSystemProperties
+
+   /**
+    * Runs every warm-up task and waits for all of them.  A failing task is
+    * reported and does not stop the others.
+    *
+    * @return the time to ready in milliseconds
+    */
+   public long run () {
+      long start = System.currentTimeMillis();
+      final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+      tasks.add(new Task("statements") {
+         void warm () throws SQLException { warmStatements(); }
+      });
+      tasks.add(new Task("indexes") {
+         void warm () throws SQLException { helper(new Work() {
+            public void run (Connection conn) throws SQLException { warmIndexes(conn); }
+         }); }
+      });
+      tasks.add(new Task("chats") {
+         void warm () throws SQLException { warmChats(); }
+      });
+      if (_socialGraph) {
+         tasks.add(new Task("social graph") {
+            void warm () throws SQLException { helper(new Work() {
+               public void run (Connection conn) throws SQLException {
+                  // listening first, the changes made during the load are kept
+                  SocialGraph graph = SocialGraph.loading();
+                  _esql.subscribe(ChangeListener.CONTACT_CHANNEL, graph);
+                  graph.load(conn);
+                  _graph = graph;
+               }
+            }); }
+         });
+      }
+      ForkJoinPool pool = new ForkJoinPool(_parallelism);
+      try {
+         pool.invoke(new RecursiveAction() {
+            protected void compute () { invokeAll(tasks); }
+         });
+      }finally {
+         pool.shutdown();
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      synchronized (_report) {
+         System.out.println("Warm-up ready in " + elapsed + " ms (" + join(_report) + ")");
+      }
+      return elapsed;
+   }//end run
+
+   /**
+    * @return the social graph loaded by the warm-up, already subscribed to
+    *         the list changes, or null
+    */
+   public SocialGraph getSocialGraph () {
+      return _graph;
+   }//end getSocialGraph
+
+   /**
+    * Prepares the parameter templates of QueryCatalog on the Messenger
+    * connection.  Each runs prepareThreshold times, after which the driver
+    * has prepared it on the server, and five times more: the server plans
+    * the first five executions of a prepared statement for their values
+    * and then compares their cost with the generic plan to choose between
+    * the two.  The values are the largest chat and one of its members, so
+    * that choice is made on a full page and real lists and not on empty
+    * results.  The literal templates of the other frequent actions run
+    * once, which loads the catalog caches of their tables.  The password
+    * matches nobody, nothing is written.
+    */
+   private void warmStatements () throws SQLException {
+      List<List<String>> largest = _esql.executeQueryAndReturnResult(
+         "SELECT s.chat_id, (SELECT rtrim(l.member) FROM chat_list l WHERE l.chat_id = s.chat_id LIMIT 1) " +
+         "FROM chat_summary s ORDER BY s.message_count DESC LIMIT 1");
+      int chatId = largest.isEmpty() ? -1 : Integer.parseInt(largest.get(0).get(0).trim());
+      String login = largest.isEmpty() || largest.get(0).get(1) == null ? "" : largest.get(0).get(1);
+      String wrong = "";
+      int runs = Math.max(0, _esql.getConnection().unwrap(PGConnection.class).getPrepareThreshold()) + 5;
+      for (int i = 0; i < runs; ++i) {
+         _esql.executePreparedAndReturnResult(QueryCatalog.AUTHENTICATE, login, wrong);
+         _esql.executePreparedAndReturnResult(QueryCatalog.CHAT_MEMBER, chatId, login);
+         _esql.executePreparedAndReturnResult(QueryCatalog.CHAT_LIST, login);
+         _esql.executePreparedAndReturnResult(QueryCatalog.READER_PAGE, chatId, login, HistoryView.PAGE_SIZE + 1, 0);
+      }
+      String quoted = login.replace("'", "''");
+      _esql.executeQuery(String.format(QueryCatalog.LIST_MEMBER, quoted, QueryCatalog.CONTACT_LIST, quoted));
+      _esql.executeQuery(String.format(QueryCatalog.CONTACT_STATUSES, quoted));
+      _esql.getChatSummary(chatId);
+   }//end warmStatements
+
+   /**
+    * Reads the indexes into the buffer cache with pg_prewarm when it is
+    * installed.  Otherwise the three hottest are probed with a scan in
+    * index order bounded to PROBE_ROWS entries, which reads their upper
+    * levels; the chat prefetch reads the leaves of the active chats.
+    */
+   private void warmIndexes (Connection conn) throws SQLException {
+      boolean prewarm = exists(conn, "SELECT 1 FROM pg_extension WHERE extname = 'pg_prewarm'");
+      int warmed = 0;
+      for (String index : INDEXES) {
+         if (!exists(conn, String.format("SELECT 1 FROM pg_class WHERE relname = '%s'", index)))
+            continue;
+         if (prewarm)
+            exists(conn, String.format("SELECT pg_prewarm('%s')", index));
+         ++warmed;
+      }
+      if (!prewarm) {
+         exists(conn, String.format("SELECT count(*) FROM (SELECT chat_id, msg_timestamp FROM message ORDER BY chat_id, msg_timestamp LIMIT %d) m", PROBE_ROWS));
+         exists(conn, String.format("SELECT count(*) FROM (SELECT login FROM usr ORDER BY login LIMIT %d) u", PROBE_ROWS));
+         exists(conn, String.format("SELECT count(*) FROM (SELECT list_id, list_member FROM user_list_contains ORDER BY list_id, list_member LIMIT %d) l", PROBE_ROWS));
+      }
+      addReport(warmed + " indexes" + (prewarm ? " prewarmed" : " probed"));
+   }//end warmIndexes
+
+   /**
+    * Prefetches the first page the client shows, the oldest one read with
+    * READER_PAGE, and the members and member lists of the most active
+    * chats.  The chats are split over parallel subtasks, each on its own
+    * helper connection.
+    */
+   private void warmChats () throws SQLException {
+      final List<Integer> chats = new ArrayList<Integer>();
+      helper(new Work() {
+         public void run (Connection conn) throws SQLException {
+            Statement stmt = conn.createStatement();
+            try {
+               ResultSet rs = stmt.executeQuery(String.format(
+                  "SELECT chat_id FROM chat_summary WHERE last_msg_timestamp IS NOT NULL ORDER BY last_msg_timestamp DESC LIMIT %d", _hotChats));
+               while (rs.next())
+                  chats.add(rs.getInt(1));
+            }finally {
+               stmt.close();
+            }
+         }
+      });
+      List<RecursiveAction> parts = new ArrayList<RecursiveAction>();
+      int step = Math.max(1, (chats.size() + _parallelism - 1) / _parallelism);
+      for (int from = 0; from < chats.size(); from += step) {
+         final List<Integer> part = chats.subList(from, Math.min(chats.size(), from + step));
+         parts.add(new Task(null) {
+            void warm () throws SQLException { helper(new Work() {
+               public void run (Connection conn) throws SQLException {
+                  PreparedStatement page = conn.prepareStatement(QueryCatalog.READER_PAGE);
+                  try {
+                     page.setString(2, "");
+                     page.setInt(3, HistoryView.PAGE_SIZE + 1);
+                     page.setInt(4, 0);
+                     for (int chat : part) {
+                        page.setInt(1, chat);
+                        page.executeQuery().close();
+                        exists(conn, String.format("SELECT u.login, u.status, l.list_member FROM chat_list c, usr u LEFT JOIN user_list_contains l ON l.list_id IN (u.block_list, u.contact_list) WHERE c.chat_id = %d AND u.login = c.member", chat));
+                     }
+                  }finally {
+                     page.close();
+                  }
+               }
+            }); }
+         });
+      }
+      RecursiveAction.invokeAll(parts);
+      addReport(chats.size() + " chats");
+   }//end warmChats
+
+   /**
+    * Unit of work run on a helper connection.
+    */
+   interface Work {
+      void run (Connection conn) throws SQLException;
+   }
+
+   private void helper (Work work) throws SQLException {
+      Connection conn = _esql.openHelperConnection();
+      try {
+         work.run(conn);
+      }finally {
+         conn.close();
+      }
+   }//end helper
+
+   /**
+    * Fork-join task that reports its own failure instead of failing the
+    * whole warm-up.
+    */
+   private abstract class Task extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final String _name;
+
+      Task (String name) {
+         this._name = name;
+      }
+
+      abstract void warm () throws SQLException;
+
+      protected void compute () {
+         long start = System.currentTimeMillis();
+         try {
+            warm();
+            if (_name != null)
+               addReport(_name + " " + (System.currentTimeMillis() - start) + " ms");
+         }catch (SQLException e) {
+            addReport((_name == null ? "warm-up" : _name) + " failed: " + e.getMessage());
+         }
+      }
+   }//end Task
+
+   private void addReport (String line) {
+      synchronized (_report) {
+         _report.add(line);
+      }
+   }//end addReport
+
+   private static boolean exists (Connection conn, String query) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         return stmt.executeQuery(query).next();
+      }finally {
+         stmt.close();
+      }
+   }//end exists
+
+   private static String join (List<String> parts) {
+      StringBuilder sb = new StringBuilder();
+      for (String part : parts) {
+         if (sb.length() > 0)
+            sb.append(", ");
+         sb.append(part);
+      }
+      return sb.toString();
+   }//end join
+
+}//end Warmup
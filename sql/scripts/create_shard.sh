@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# an empty shard for ShardedStore, the global database keeps the users
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_triggers.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_shard.sql
@@ -0,0 +1,56 @@
+#!/bin/bash
+# Exports a consistent snapshot of the database, or of one user, as gzip
+# compressed ';' delimited files in the same layout as data/*.csv.
+#
+#   export_data.sh [login]
+#
+# Every table is streamed with COPY ... TO STDOUT inside one REPEATABLE READ
+# transaction, so all files come from the same snapshot and nothing is held
+# in memory. Files are written to $EXPORT_DIR (default ./export).
+#
+# A full export round-trips with load_data.sql after gunzip. A single user
+# export holds that user's lists, chats and the messages of those chats; it
+# loads into a database that already has the other users it refers to.
+# message_revision.csv.gz holds the edit history and delete tombstones of
+# the exported messages, load_data.sql copies it right after message.csv.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+OUT="${EXPORT_DIR:-./export}"
+mkdir -p "$OUT"
+OUT="$( cd "$OUT" && pwd )"
+
+LOGIN="$1"
+# quote the login as an SQL literal
+LIT="'${LOGIN//\'/\'\'}'"
+
+if [ -z "$LOGIN" ]; then
+	USR_LIST="SELECT list_id, rtrim(list_type) FROM user_list"
+	USR="SELECT rtrim(login), rtrim(phoneNum), rtrim(password), rtrim(status), block_list, contact_list FROM usr"
+	USR_LIST_CONTAINS="SELECT list_id, rtrim(list_member) FROM user_list_contains"
+	CHAT="SELECT chat_id, rtrim(chat_type), rtrim(init_sender) FROM chat"
+	CHAT_LIST="SELECT chat_id, rtrim(member) FROM chat_list"
+	MESSAGE="SELECT msg_id, rtrim(msg_text), msg_timestamp, rtrim(sender_login), chat_id FROM message"
+	MESSAGE_REVISION="SELECT msg_id, rev, chat_id, rtrim(msg_text), rev_timestamp FROM message_revision"
+else
+	LISTS="SELECT block_list FROM usr WHERE login = $LIT UNION ALL SELECT contact_list FROM usr WHERE login = $LIT"
+	CHATS="SELECT chat_id FROM chat_list WHERE member = $LIT"
+	USR_LIST="SELECT list_id, rtrim(list_type) FROM user_list WHERE list_id IN ($LISTS)"
+	USR="SELECT rtrim(login), rtrim(phoneNum), rtrim(password), rtrim(status), block_list, contact_list FROM usr WHERE login = $LIT"
+	USR_LIST_CONTAINS="SELECT list_id, rtrim(list_member) FROM user_list_contains WHERE list_id IN ($LISTS)"
+	CHAT="SELECT chat_id, rtrim(chat_type), rtrim(init_sender) FROM chat WHERE chat_id IN ($CHATS)"
+	CHAT_LIST="SELECT chat_id, rtrim(member) FROM chat_list WHERE chat_id IN ($CHATS)"
+	MESSAGE="SELECT msg_id, rtrim(msg_text), msg_timestamp, rtrim(sender_login), chat_id FROM message WHERE chat_id IN ($CHATS) ORDER BY chat_id, msg_timestamp"
+	MESSAGE_REVISION="SELECT msg_id, rev, chat_id, rtrim(msg_text), rev_timestamp FROM message_revision WHERE chat_id IN ($CHATS) ORDER BY msg_id, rev"
+fi
+
+# \copy runs COPY ... TO STDOUT and pipes the rows straight into gzip
+psql -X -q -v ON_ERROR_STOP=1 -p $PGPORT $DB_NAME <<SQL
+BEGIN ISOLATION LEVEL REPEATABLE READ READ ONLY;
+\copy ($USR_LIST) TO PROGRAM 'gzip > "$OUT/usr_list.csv.gz"' WITH DELIMITER ';'
+\copy ($USR) TO PROGRAM 'gzip > "$OUT/usr.csv.gz"' WITH DELIMITER ';'
+\copy ($USR_LIST_CONTAINS) TO PROGRAM 'gzip > "$OUT/usr_list_contains.csv.gz"' WITH DELIMITER ';'
+\copy ($CHAT) TO PROGRAM 'gzip > "$OUT/chat.csv.gz"' WITH DELIMITER ';'
+\copy ($CHAT_LIST) TO PROGRAM 'gzip > "$OUT/chat_list.csv.gz"' WITH DELIMITER ';'
+\copy ($MESSAGE) TO PROGRAM 'gzip > "$OUT/message.csv.gz"' WITH DELIMITER ';'
+\copy ($MESSAGE_REVISION) TO PROGRAM 'gzip > "$OUT/message_revision.csv.gz"' WITH DELIMITER ';'
+COMMIT;
+SQL
@@ -0,0 +1,12 @@
+-- history pages and the chat_summary maintenance both read a chat's messages in time order
+CREATE INDEX message_chat_time_idx ON MESSAGE(chat_id, msg_timestamp);
+-- the chat list of a user starts from the chats the user is a member of, the primary key leads with chat_id
+CREATE INDEX chat_list_member_idx ON CHAT_LIST(member);
+-- the current text of a message is the last MESSAGE_REVISION row, one backward probe of its primary key (msg_id, rev)
+-- the block filter of history pages probes the USER_LIST_CONTAINS primary key (list_id, list_member) per sender
+-- contact discovery matches canonical phone numbers, see normalize_phone in create_triggers.sql
+CREATE INDEX usr_phone_norm_idx ON USR(phone_norm);
+-- deleting a user checks every reference to it, see USER_REFERENCES in QueryCatalog; the same
+-- indexes serve the foreign key checks of DELETE FROM usr
+CREATE INDEX message_sender_idx ON MESSAGE(sender_login);
+CREATE INDEX user_list_contains_member_idx ON USER_LIST_CONTAINS(list_member);
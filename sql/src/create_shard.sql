@@ -0,0 +1,6 @@
+-- Turns a database made by create_tables.sql, create_indexes.sql and
+-- create_triggers.sql into a shard of ShardedStore. Users and lists live in
+-- the global database, so the chat tables of a shard do not reference USR.
+ALTER TABLE CHAT DROP CONSTRAINT IF EXISTS chat_init_sender_fkey;
+ALTER TABLE CHAT_LIST DROP CONSTRAINT IF EXISTS chat_list_member_fkey;
+ALTER TABLE MESSAGE DROP CONSTRAINT IF EXISTS message_sender_login_fkey;
@@ -1,6 +1,12 @@
+DROP TABLE CHAT_BUCKET;
+DROP TABLE JOURNAL_APPLIED;
+DROP TABLE CHAT_RETENTION;
+DROP TABLE CHAT_SUMMARY;
+DROP TABLE MESSAGE_REVISION;
 DROP TABLE MESSAGE;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
+DROP TABLE USER_PRESENCE;
 DROP TABLE USER_LIST_CONTAINS;
 DROP TABLE USR;
 DROP TABLE USER_LIST;
@@ -13,6 +19,7 @@ CREATE TABLE USER_LIST(
 CREATE TABLE USR(
 	login char(50), 
 	phoneNum CHAR(16) UNIQUE NOT NULL, 
+	phone_norm varchar(17), -- '+' and up to the 16 digits of phoneNum
 	password char(50) NOT NULL,
 	status char(140),
 	block_list integer,
@@ -28,6 +35,13 @@ CREATE TABLE USER_LIST_CONTAINS(
 	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
 	FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
 
+CREATE TABLE USER_PRESENCE(
+	login char(50),
+	last_seen timestamptz NOT NULL,
+	online boolean NOT NULL DEFAULT false,
+	PRIMARY KEY(login),
+	FOREIGN KEY(login) REFERENCES USR(login) ON DELETE CASCADE);
+
 CREATE TABLE CHAT(
 	chat_id serial, 
 	chat_type char(50) NOT NULL,
@@ -44,12 +58,45 @@ CREATE TABLE CHAT_LIST(
 
 CREATE TABLE MESSAGE(
 	msg_id serial, 
-	msg_text char(300) NOT NULL, 
-	msg_timestamp timestamp NOT NULL,
+	msg_text varchar(300) NOT NULL, 
+	msg_timestamp timestamp NOT NULL DEFAULT now(),
 		sender_login char(50),
 	chat_id integer,
 	PRIMARY KEY(msg_id), 
 	FOREIGN KEY(sender_login) REFERENCES USR(login),
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
 
+CREATE TABLE MESSAGE_REVISION(
+	msg_id integer,
+	rev integer,
+	chat_id integer NOT NULL,
+	msg_text varchar(300),
+	rev_timestamp timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(msg_id,rev),
+	FOREIGN KEY(msg_id) REFERENCES MESSAGE(msg_id) ON DELETE CASCADE);
+
+CREATE TABLE CHAT_SUMMARY(
+	chat_id integer,
+	member_count integer NOT NULL DEFAULT 0,
+	message_count integer NOT NULL DEFAULT 0,
+	last_msg_timestamp timestamp,
+	last_activity timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(chat_id),
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+CREATE TABLE CHAT_RETENTION(
+	chat_id integer,
+	ttl_days integer,
+	max_messages integer,
+	PRIMARY KEY(chat_id),
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+CREATE TABLE JOURNAL_APPLIED(
+	node varchar(300),
+	applied_offset bigint NOT NULL,
+	PRIMARY KEY(node));
 
+CREATE TABLE CHAT_BUCKET(
+	bucket integer,
+	shard integer NOT NULL,
+	PRIMARY KEY(bucket));
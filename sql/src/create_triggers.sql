@@ -0,0 +1,218 @@
+-- Change notifications. Payloads are ';' delimited like the data/*.csv files:
+--   message_event   : <op>;<chat_id>;<msg_id>;<sender_login>
+--   chat_list_event : <op>;<chat_id>;<member>
+--   user_list_event : <op>;<list_id>;<list_member>
+--   status_event    : <login>
+--   presence_event  : <login>
+-- where <op> is I, U or D.
+
+CREATE OR REPLACE FUNCTION notify_message_event() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('message_event', 'D;' || OLD.chat_id || ';' || OLD.msg_id || ';' || rtrim(OLD.sender_login));
+		RETURN OLD;
+	END IF;
+	PERFORM pg_notify('message_event', substr(TG_OP, 1, 1) || ';' || NEW.chat_id || ';' || NEW.msg_id || ';' || rtrim(NEW.sender_login));
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_chat_list_event() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('chat_list_event', 'D;' || OLD.chat_id || ';' || rtrim(OLD.member));
+		RETURN OLD;
+	END IF;
+	PERFORM pg_notify('chat_list_event', substr(TG_OP, 1, 1) || ';' || NEW.chat_id || ';' || rtrim(NEW.member));
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_user_list_event() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('user_list_event', 'D;' || OLD.list_id || ';' || rtrim(OLD.list_member));
+		RETURN OLD;
+	END IF;
+	PERFORM pg_notify('user_list_event', substr(TG_OP, 1, 1) || ';' || NEW.list_id || ';' || rtrim(NEW.list_member));
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_event ON MESSAGE;
+CREATE TRIGGER message_event
+	AFTER INSERT OR UPDATE OR DELETE ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE notify_message_event();
+
+DROP TRIGGER IF EXISTS chat_list_event ON CHAT_LIST;
+CREATE TRIGGER chat_list_event
+	AFTER INSERT OR DELETE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE notify_chat_list_event();
+
+DROP TRIGGER IF EXISTS user_list_event ON USER_LIST_CONTAINS;
+CREATE TRIGGER user_list_event
+	AFTER INSERT OR DELETE ON USER_LIST_CONTAINS
+	FOR EACH ROW EXECUTE PROCEDURE notify_user_list_event();
+
+-- status_event when a status changes, presence_event when a user goes online
+-- or offline; last seen heartbeats that change neither raise nothing
+
+CREATE OR REPLACE FUNCTION notify_status_event() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('status_event', rtrim(NEW.login));
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_presence_event() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' OR OLD.online IS DISTINCT FROM NEW.online THEN
+		PERFORM pg_notify('presence_event', rtrim(NEW.login));
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS status_event ON USR;
+CREATE TRIGGER status_event
+	AFTER UPDATE OF status ON USR
+	FOR EACH ROW WHEN (OLD.status IS DISTINCT FROM NEW.status)
+	EXECUTE PROCEDURE notify_status_event();
+
+DROP TRIGGER IF EXISTS presence_event ON USER_PRESENCE;
+CREATE TRIGGER presence_event
+	AFTER INSERT OR UPDATE ON USER_PRESENCE
+	FOR EACH ROW EXECUTE PROCEDURE notify_presence_event();
+
+-- Chat summary. One CHAT_SUMMARY row per chat, kept current on every
+-- CHAT, CHAT_LIST and MESSAGE change so member and message counts are a
+-- primary key lookup instead of a scan. last_activity starts when the chat
+-- is created and only moves forward, deleting messages does not make a
+-- chat look older, RetentionJob expires chats by it.
+
+CREATE OR REPLACE FUNCTION chat_summary_on_chat() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO CHAT_SUMMARY(chat_id) VALUES (NEW.chat_id);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION chat_summary_on_chat_list() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		UPDATE CHAT_SUMMARY SET member_count = member_count - 1 WHERE chat_id = OLD.chat_id;
+		RETURN OLD;
+	END IF;
+	UPDATE CHAT_SUMMARY SET member_count = member_count + 1 WHERE chat_id = NEW.chat_id;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION chat_summary_on_message() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		-- only the newest message moves the timestamp, which the index finds without a scan
+		UPDATE CHAT_SUMMARY SET message_count = message_count - 1,
+			last_msg_timestamp = CASE WHEN last_msg_timestamp > OLD.msg_timestamp THEN last_msg_timestamp
+				ELSE (SELECT max(msg_timestamp) FROM MESSAGE WHERE chat_id = OLD.chat_id) END
+		WHERE chat_id = OLD.chat_id;
+		RETURN OLD;
+	END IF;
+	UPDATE CHAT_SUMMARY SET message_count = message_count + 1,
+		last_msg_timestamp = greatest(last_msg_timestamp, NEW.msg_timestamp),
+		last_activity = greatest(last_activity, NEW.msg_timestamp)
+	WHERE chat_id = NEW.chat_id;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_summary_on_chat ON CHAT;
+CREATE TRIGGER chat_summary_on_chat
+	AFTER INSERT ON CHAT
+	FOR EACH ROW EXECUTE PROCEDURE chat_summary_on_chat();
+
+DROP TRIGGER IF EXISTS chat_summary_on_chat_list ON CHAT_LIST;
+CREATE TRIGGER chat_summary_on_chat_list
+	AFTER INSERT OR DELETE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE chat_summary_on_chat_list();
+
+DROP TRIGGER IF EXISTS chat_summary_on_message ON MESSAGE;
+CREATE TRIGGER chat_summary_on_message
+	AFTER INSERT OR DELETE ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE chat_summary_on_message();
+
+-- Message revisions. MESSAGE rows are never updated: an edit appends a
+-- MESSAGE_REVISION row with the new text and a delete appends one with a
+-- NULL text, the tombstone. The current text is the highest revision, or
+-- MESSAGE.msg_text when there is none. A tombstone takes the message out of
+-- message_count, and gives it back when the tombstone itself goes away with
+-- the message, so a later hard delete of the message counts once.
+-- A tombstone does not move last_msg_timestamp; a hard delete of the newest
+-- message does, see chat_summary_on_message.
+
+CREATE OR REPLACE FUNCTION message_revision_event() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		IF OLD.msg_text IS NULL THEN
+			UPDATE CHAT_SUMMARY SET message_count = message_count + 1 WHERE chat_id = OLD.chat_id;
+		END IF;
+		RETURN OLD;
+	END IF;
+	IF NEW.msg_text IS NULL THEN
+		UPDATE CHAT_SUMMARY SET message_count = message_count - 1 WHERE chat_id = NEW.chat_id;
+	END IF;
+	PERFORM pg_notify('message_event', CASE WHEN NEW.msg_text IS NULL THEN 'D;' ELSE 'U;' END
+		|| NEW.chat_id || ';' || NEW.msg_id || ';' || (SELECT rtrim(sender_login) FROM MESSAGE WHERE msg_id = NEW.msg_id));
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_revision_event ON MESSAGE_REVISION;
+CREATE TRIGGER message_revision_event
+	AFTER INSERT OR DELETE ON MESSAGE_REVISION
+	FOR EACH ROW EXECUTE PROCEDURE message_revision_event();
+
+-- rebuild the summary of the rows bulk loaded before the triggers existed
+DELETE FROM CHAT_SUMMARY;
+INSERT INTO CHAT_SUMMARY(chat_id, member_count, message_count, last_msg_timestamp, last_activity)
+	SELECT c.chat_id,
+		(SELECT count(*) FROM CHAT_LIST l WHERE l.chat_id = c.chat_id),
+		(SELECT count(*) FROM MESSAGE m WHERE m.chat_id = c.chat_id)
+			- (SELECT count(*) FROM MESSAGE_REVISION r WHERE r.chat_id = c.chat_id AND r.msg_text IS NULL),
+		(SELECT max(m.msg_timestamp) FROM MESSAGE m WHERE m.chat_id = c.chat_id),
+		coalesce((SELECT max(m.msg_timestamp) FROM MESSAGE m WHERE m.chat_id = c.chat_id), now())
+	FROM CHAT c;
+
+-- Canonical phone numbers. phone_norm holds phoneNum as '+' and digits
+-- (E.164), so +1(180)393-1512 and 1 180 393 1512 both become +11803931512.
+-- Ten digit numbers without a leading '+' are taken as North American.
+-- PhoneDirectory.normalize in the Java code must stay in sync.
+
+CREATE OR REPLACE FUNCTION normalize_phone(phone text) RETURNS varchar AS $$
+DECLARE
+	digits text := regexp_replace(phone, '[^0-9]', '', 'g');
+BEGIN
+	IF digits = '' THEN
+		RETURN NULL;
+	END IF;
+	IF length(digits) = 10 AND ltrim(phone) NOT LIKE '+%' THEN
+		digits := '1' || digits;
+	END IF;
+	RETURN '+' || digits;
+END;
+$$ LANGUAGE plpgsql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION usr_phone_norm() RETURNS trigger AS $$
+BEGIN
+	NEW.phone_norm := normalize_phone(NEW.phoneNum);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS usr_phone_norm ON USR;
+CREATE TRIGGER usr_phone_norm
+	BEFORE INSERT OR UPDATE OF phoneNum ON USR
+	FOR EACH ROW EXECUTE PROCEDURE usr_phone_norm();
+
+-- normalize the bulk loaded users
+UPDATE USR SET phone_norm = normalize_phone(phoneNum) WHERE phone_norm IS DISTINCT FROM normalize_phone(phoneNum);
@@ -1,9 +1,16 @@
 COPY USER_LIST
 FROM '/home/csmajs/ddelo004/project/data/usr_list.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
+-- sequences continue after the loaded ids, whatever the files hold
+SELECT setval('user_list_list_id_seq', coalesce(max(list_id), 0) + 1, false) FROM USER_LIST;
 
 COPY USR
+	(login,
+	phoneNum,
+	password,
+	status,
+	block_list,
+	contact_list)
 FROM '/home/csmajs/ddelo004/project/data/usr.csv'
 WITH DELIMITER ';';
 
@@ -14,7 +21,7 @@ WITH DELIMITER ';';
 COPY CHAT
 FROM '/home/csmajs/ddelo004/project/data/chat.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
+SELECT setval('chat_chat_id_seq', coalesce(max(chat_id), 0) + 1, false) FROM CHAT;
 
 COPY CHAT_LIST
 FROM '/home/csmajs/ddelo004/project/data/chat_list.csv'
@@ -28,5 +35,16 @@ COPY MESSAGE
 	chat_id)
 FROM '/home/csmajs/ddelo004/project/data/message.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE message_msg_id_seq RESTART 50000;
+SELECT setval('message_msg_id_seq', coalesce(max(msg_id), 0) + 1, false) FROM MESSAGE;
+
+-- edits and delete tombstones of the messages, NULL text is a tombstone;
+-- the summary rebuild in create_triggers.sql counts them
+COPY MESSAGE_REVISION
+	(msg_id,
+	rev,
+	chat_id,
+	msg_text,
+	rev_timestamp)
+FROM '/home/csmajs/ddelo004/project/data/message_revision.csv'
+WITH DELIMITER ';';
 